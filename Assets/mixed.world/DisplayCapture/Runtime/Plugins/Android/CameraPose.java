@@ -0,0 +1,59 @@
+package com.trev3d.DisplayCapture;
+
+/**
+ * Latest camera orientation and field of view reported by Unity, read by the capture-side
+ * lighting stages to turn pixels into world directions.
+ *
+ * Orientation is a Unity quaternion (left-handed, y up, camera looking down +z). Writers and
+ * readers copy under a lock so a reader never sees half an update.
+ */
+public class CameraPose {
+
+    private final float[] orientation = { 0f, 0f, 0f, 1f };
+    // Quest 3 passthrough capture covers roughly 82 degrees
+    private float horizontalFov = 82f;
+    private float verticalFov = 82f;
+    private long updateCount = 0;
+
+    public synchronized void setOrientation(float x, float y, float z, float w) {
+        orientation[0] = x;
+        orientation[1] = y;
+        orientation[2] = z;
+        orientation[3] = w;
+        updateCount++;
+    }
+
+    public synchronized void setFieldOfView(float horizontalDegrees, float verticalDegrees) {
+        horizontalFov = horizontalDegrees;
+        verticalFov = verticalDegrees;
+    }
+
+    /**
+     * Copies the current pose into out as {qx, qy, qz, qw, tan(hfov/2), tan(vfov/2)}.
+     *
+     * @return the number of orientation updates so far, 0 if Unity never reported one
+     */
+    public synchronized long get(float[] out) {
+        out[0] = orientation[0];
+        out[1] = orientation[1];
+        out[2] = orientation[2];
+        out[3] = orientation[3];
+        out[4] = (float) Math.tan(Math.toRadians(horizontalFov) * 0.5);
+        out[5] = (float) Math.tan(Math.toRadians(verticalFov) * 0.5);
+        return updateCount;
+    }
+
+    // Rotates the vector in v (length 3, in place) by quaternion q = {x, y, z, w}
+    public static void rotate(float[] q, float[] v) {
+        float qx = q[0], qy = q[1], qz = q[2], qw = q[3];
+        float tx = 2f * (qy * v[2] - qz * v[1]);
+        float ty = 2f * (qz * v[0] - qx * v[2]);
+        float tz = 2f * (qx * v[1] - qy * v[0]);
+        float x = v[0] + qw * tx + (qy * tz - qz * ty);
+        float y = v[1] + qw * ty + (qz * tx - qx * tz);
+        float z = v[2] + qw * tz + (qx * ty - qy * tx);
+        v[0] = x;
+        v[1] = y;
+        v[2] = z;
+    }
+}
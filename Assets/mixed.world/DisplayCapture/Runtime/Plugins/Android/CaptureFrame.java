@@ -0,0 +1,170 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted lease on a captured {@link Image}.
+ *
+ * Receivers get a read-only view of the image plane together with its stride metadata, so no
+ * pixel data is copied on the way to them. The lease is valid for the duration of the callback
+ * that delivers it; a receiver that keeps the frame longer must {@link #retain} it and
+ * {@link #release} it when done. The image goes back to the ImageReader once the last holder
+ * releases, and the frame goes back to its {@link Pool} to lease the next image, so
+ * holders must not touch it after their last release.
+ */
+public class CaptureFrame {
+
+    private final Pool pool;
+    private Image image;
+    // The image's plane buffer the views below were made of
+    private ByteBuffer source;
+    private ByteBuffer plane;
+    // Scratch view for row-by-row copies, only touched by the thread compacting
+    private ByteBuffer rowView;
+    private int width;
+    private int height;
+    private int rowStride;
+    private int pixelStride;
+    private long timestamp;
+    private final AtomicInteger references = new AtomicInteger();
+
+    private CaptureFrame(Pool pool) {
+        this.pool = pool;
+    }
+
+    // Leases image, keeping the views when it hands out the same plane buffer as the last one
+    private void reset(Image image) {
+        this.image = image;
+        Image.Plane imagePlane = image.getPlanes()[0];
+        ByteBuffer buffer = imagePlane.getBuffer();
+        if (buffer != source) {
+            source = buffer;
+            plane = buffer.asReadOnlyBuffer();
+            rowView = buffer.duplicate();
+        }
+        else {
+            plane.clear();
+            rowView.clear();
+        }
+        width = image.getWidth();
+        height = image.getHeight();
+        rowStride = imagePlane.getRowStride();
+        pixelStride = imagePlane.getPixelStride();
+        timestamp = image.getTimestamp();
+        references.set(1);
+    }
+
+    public CaptureFrame retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0)
+                throw new IllegalStateException("Capture frame already released");
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            image.close();
+            image = null;
+            pool.recycle(this);
+        }
+        else if (count < 0)
+            throw new IllegalStateException("Capture frame released more times than retained");
+    }
+
+    // Read-only view shared by all holders, use absolute reads or duplicate() before moving it
+    public ByteBuffer getPlane() {
+        return plane;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Bytes between the starts of consecutive rows, may exceed width * pixelStride
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public int getPixelStride() {
+        return pixelStride;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isTightlyPacked() {
+        return rowStride == width * pixelStride;
+    }
+
+    /**
+     * Copies the plane into target with row padding removed, for consumers such as Unity's
+     * LoadRawTextureData that expect width * pixelStride bytes per row.
+     */
+    public void copyPacked(ByteBuffer target) {
+        copyPacked(target, false);
+    }
+
+    /**
+     * @param flipRows writes the bottom row first, the order Unity textures and glReadPixels use,
+     *                 at no extra cost since the copy goes row by row anyway
+     */
+    public void copyPacked(ByteBuffer target, boolean flipRows) {
+        PixelPacker.compact(rowView, width, height, rowStride, pixelStride, flipRows, target);
+    }
+
+    /**
+     * Frames for the images of one ImageReader, so leasing an image allocates nothing once every
+     * frame the reader can have out exists. Any thread may release a frame back.
+     */
+    static final class Pool {
+        private final CaptureFrame[] frames;
+        private int count;
+        // Frames obtained and not yet released by their last holder
+        private final AtomicInteger leased = new AtomicInteger();
+
+        // capacity is the reader's maxImages, more frames are never out at once
+        Pool(int capacity) {
+            frames = new CaptureFrame[capacity];
+        }
+
+        CaptureFrame obtain(Image image) {
+            leased.incrementAndGet();
+            CaptureFrame frame = null;
+            synchronized (this) {
+                if (count > 0) {
+                    frame = frames[--count];
+                    frames[count] = null;
+                }
+            }
+            if (frame == null)
+                frame = new CaptureFrame(this);
+            frame.reset(image);
+            return frame;
+        }
+
+        private void recycle(CaptureFrame frame) {
+            leased.decrementAndGet();
+            synchronized (this) {
+                if (count < frames.length)
+                    frames[count++] = frame;
+            }
+        }
+
+        // Images of the reader its frames still hold
+        int getLeased() {
+            return leased.get();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.trev3d.DisplayCapture;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Per-frame timings and drop counts of the capture pipeline.
+ *
+ * Each stage records into its own {@link LatencyHistogram} or counter, so recording never locks
+ * or allocates; a receiver gets its histogram the first time it is timed. {@link #snapshot}
+ * formats everything into one compact line, which Unity can poll and which can be appended to a
+ * file at a fixed interval. Nothing here depends on Android, so the same metrics come out of an
+ * offline trace replay.
+ */
+public class CaptureMetrics {
+
+    // System.nanoTime when a frame reaches the capture thread minus its buffer timestamp
+    public final LatencyHistogram arrival = new LatencyHistogram("arrival");
+    // Packed copy or GL readback of a frame
+    public final LatencyHistogram copy = new LatencyHistogram("copy");
+    // From publishing a frame to Unity acquiring it
+    public final LatencyHistogram unityNotify = new LatencyHistogram("notify");
+    // From the frame entering the encoder to its encoded output
+    public final LatencyHistogram encoder = new LatencyHistogram("encode");
+
+    private final ConcurrentHashMap<IDisplayCaptureReceiver, LatencyHistogram> receiverTimes =
+        new ConcurrentHashMap<IDisplayCaptureReceiver, LatencyHistogram>();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private long lastSnapshotNs = System.nanoTime();
+    private long lastSnapshotFrames = 0;
+    private ScheduledExecutorService dumper;
+
+    public void onFrameArrived(long frameTimestampNs, long nowNs) {
+        frames.incrementAndGet();
+        if (frameTimestampNs > 0)
+            arrival.recordNanos(nowNs - frameTimestampNs);
+    }
+
+    // A frame that reached the capture thread but was not delivered
+    public void onFrameDropped() {
+        droppedFrames.incrementAndGet();
+    }
+
+    public LatencyHistogram receiverHistogram(IDisplayCaptureReceiver receiver) {
+        LatencyHistogram histogram = receiverTimes.get(receiver);
+        if (histogram == null) {
+            IDisplayCaptureReceiver named = receiver instanceof QueuedDisplayCaptureReceiver
+                ? ((QueuedDisplayCaptureReceiver) receiver).getReceiver() : receiver;
+            histogram = new LatencyHistogram("recv:" + named.getClass().getSimpleName());
+            LatencyHistogram existing = receiverTimes.putIfAbsent(receiver, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+        return histogram;
+    }
+
+    public void forgetReceiver(IDisplayCaptureReceiver receiver) {
+        receiverTimes.remove(receiver);
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * One line with the frame rate since the last snapshot, then per histogram
+     * name=count/p50/p99/max in milliseconds, then the caller's gauges.
+     */
+    public synchronized String snapshot(String gauges) {
+        long now = System.nanoTime();
+        long frameCount = frames.get();
+        float fps = now > lastSnapshotNs ? (frameCount - lastSnapshotFrames) * 1e9f / (now - lastSnapshotNs) : 0f;
+        lastSnapshotNs = now;
+        lastSnapshotFrames = frameCount;
+
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("fps=").append(String.format(Locale.US, "%.1f", fps))
+            .append(" frames=").append(frameCount)
+            .append(" dropped=").append(droppedFrames.get());
+        LatencyHistogram[] stages = { arrival, copy, unityNotify, encoder };
+        for (LatencyHistogram histogram : stages) {
+            if (histogram.getCount() == 0) continue;
+            builder.append(' ');
+            histogram.appendTo(builder);
+        }
+        for (Map.Entry<IDisplayCaptureReceiver, LatencyHistogram> entry : receiverTimes.entrySet()) {
+            builder.append(' ');
+            entry.getValue().appendTo(builder);
+        }
+        if (gauges != null && !gauges.isEmpty())
+            builder.append(' ').append(gauges);
+        return builder.toString();
+    }
+
+    public void reset() {
+        arrival.reset();
+        copy.reset();
+        unityNotify.reset();
+        encoder.reset();
+        for (LatencyHistogram histogram : receiverTimes.values())
+            histogram.reset();
+        frames.set(0);
+        droppedFrames.set(0);
+        synchronized (this) {
+            lastSnapshotNs = System.nanoTime();
+            lastSnapshotFrames = 0;
+        }
+    }
+
+    // Appends "<epoch ms> <snapshot>" lines to path every intervalMs until stopFileDump; write errors go to onError
+    public synchronized void startFileDump(String path, long intervalMs, Supplier<String> snapshot, Consumer<String> onError) {
+        stopFileDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CaptureMetricsDump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try (FileWriter writer = new FileWriter(path, true)) {
+                writer.write(System.currentTimeMillis() + " " + snapshot.get() + "\n");
+            } catch (IOException e) {
+                onError.accept("Could not write metrics to " + path + ": " + e.getMessage());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopFileDump() {
+        if (dumper != null)
+            dumper.shutdown();
+        dumper = null;
+    }
+}
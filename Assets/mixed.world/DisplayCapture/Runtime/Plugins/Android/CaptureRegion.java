@@ -0,0 +1,88 @@
+package com.trev3d.DisplayCapture;
+
+/**
+ * A region of the frame scaled to a fixed size, e.g. a 64x64 image of the whole screen for light
+ * estimation or a crop around a marker. The crop is normalized from the top left of the screen.
+ *
+ * Subscriptions to equal regions share one render on the GL path and one CPU resample on the
+ * ImageReader path. Region frames are RGBA with the bottom row first, whatever the output
+ * orientation.
+ */
+public final class CaptureRegion {
+
+    private final int width;
+    private final int height;
+    private final float cropX;
+    private final float cropY;
+    private final float cropWidth;
+    private final float cropHeight;
+
+    public CaptureRegion(int width, int height) {
+        this(width, height, 0f, 0f, 1f, 1f);
+    }
+
+    public CaptureRegion(int width, int height, float cropX, float cropY, float cropWidth, float cropHeight) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid region size " + width + "x" + height);
+        if (cropWidth <= 0f || cropHeight <= 0f || cropX < 0f || cropY < 0f
+                || cropX + cropWidth > 1f || cropY + cropHeight > 1f)
+            throw new IllegalArgumentException("Crop outside the frame: " + cropX + ", " + cropY
+                + ", " + cropWidth + "x" + cropHeight);
+        this.width = width;
+        this.height = height;
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float getCropX() {
+        return cropX;
+    }
+
+    public float getCropY() {
+        return cropY;
+    }
+
+    public float getCropWidth() {
+        return cropWidth;
+    }
+
+    public float getCropHeight() {
+        return cropHeight;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof CaptureRegion)) return false;
+        CaptureRegion region = (CaptureRegion) other;
+        return width == region.width && height == region.height
+            && cropX == region.cropX && cropY == region.cropY
+            && cropWidth == region.cropWidth && cropHeight == region.cropHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + Float.floatToIntBits(cropX);
+        hash = 31 * hash + Float.floatToIntBits(cropY);
+        hash = 31 * hash + Float.floatToIntBits(cropWidth);
+        hash = 31 * hash + Float.floatToIntBits(cropHeight);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " of " + cropX + ", " + cropY + ", " + cropWidth + "x" + cropHeight;
+    }
+}
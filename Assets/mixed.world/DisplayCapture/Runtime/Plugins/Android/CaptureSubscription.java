@@ -0,0 +1,141 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What a receiver wants from the capture: at most maxRateHz frames per second (0 for every
+ * frame), at the capture size divided by its resolution tier, in one of the FrameFormat layouts.
+ * A subscription to a {@link CaptureRegion} gets that crop at that size instead, always as RGBA.
+ *
+ * Frames are decimated per subscription by {@link FrameDispatcher} before any scaling or packing,
+ * so a 5 Hz lighting receiver next to a 30 Hz preview only pays for the frames it gets.
+ */
+public class CaptureSubscription {
+
+    // Divisors of the capture size
+    public static final int TIER_FULL = 1;
+    public static final int TIER_HALF = 2;
+    public static final int TIER_QUARTER = 4;
+    public static final int TIER_EIGHTH = 8;
+    static final int TIER_COUNT = 4;
+
+    private final IDisplayCaptureReceiver receiver;
+    private final int tier;
+    private final int pixelFormat;
+    private final CaptureRegion region;
+    private volatile long periodNs;
+
+    // Only touched on the dispatching thread
+    private long nextDueNs = Long.MIN_VALUE;
+    private long pendingTiles = 0;
+    // The region resampled on the CPU, and the frame it was last resampled for
+    private ByteBuffer regionFrame;
+    private long regionFrameNumber = -1;
+
+    private volatile long deliveredFrames;
+    private volatile long skippedFrames;
+
+    public CaptureSubscription(IDisplayCaptureReceiver receiver, float maxRateHz, int tier, int pixelFormat) {
+        if (tier != TIER_FULL && tier != TIER_HALF && tier != TIER_QUARTER && tier != TIER_EIGHTH)
+            throw new IllegalArgumentException("Invalid resolution tier " + tier);
+        if (pixelFormat < 0 || pixelFormat >= FrameFormat.COUNT)
+            throw new IllegalArgumentException("Invalid pixel format " + pixelFormat);
+        this.receiver = receiver;
+        this.tier = tier;
+        this.pixelFormat = pixelFormat;
+        region = null;
+        setMaxRate(maxRateHz);
+    }
+
+    public CaptureSubscription(IDisplayCaptureReceiver receiver, float maxRateHz, CaptureRegion region) {
+        if (region == null)
+            throw new IllegalArgumentException("No region");
+        this.receiver = receiver;
+        tier = TIER_FULL;
+        pixelFormat = FrameFormat.RGBA;
+        this.region = region;
+        setMaxRate(maxRateHz);
+    }
+
+    public IDisplayCaptureReceiver getReceiver() {
+        return receiver;
+    }
+
+    // Null for a subscription to a resolution tier
+    public CaptureRegion getRegion() {
+        return region;
+    }
+
+    public int getTier() {
+        return tier;
+    }
+
+    // 0 for the full size, then one per halving
+    int getTierIndex() {
+        return Integer.numberOfTrailingZeros(tier);
+    }
+
+    public int getPixelFormat() {
+        return pixelFormat;
+    }
+
+    // 0 or less delivers every frame
+    public void setMaxRate(float maxRateHz) {
+        periodNs = maxRateHz > 0f ? (long) (1e9 / maxRateHz) : 0;
+    }
+
+    public float getMaxRate() {
+        long period = periodNs;
+        return period > 0 ? 1e9f / period : 0f;
+    }
+
+    // An eighth of a period early still counts, so capture jitter does not push frames back a whole interval
+    boolean isDue(long timestampNs) {
+        long period = periodNs;
+        return period == 0 || nextDueNs == Long.MIN_VALUE || timestampNs + period / 8 >= nextDueNs;
+    }
+
+    void onDelivered(long timestampNs) {
+        deliveredFrames++;
+        long period = periodNs;
+        if (period == 0) return;
+        // Keep the cadence unless the receiver fell a whole period behind
+        if (nextDueNs == Long.MIN_VALUE || timestampNs - nextDueNs > period)
+            nextDueNs = timestampNs + period;
+        else
+            nextDueNs += period;
+    }
+
+    void onSkipped(long changedTiles) {
+        skippedFrames++;
+        pendingTiles |= changedTiles;
+    }
+
+    // Tiles changed since the last delivered frame, including frames skipped in between
+    long takeChangedTiles(long changedTiles) {
+        long tiles = pendingTiles | changedTiles;
+        pendingTiles = 0;
+        return tiles;
+    }
+
+    ByteBuffer getRegionFrame() {
+        return regionFrame;
+    }
+
+    long getRegionFrameNumber() {
+        return regionFrameNumber;
+    }
+
+    void setRegionFrame(ByteBuffer frame, long frameNumber) {
+        regionFrame = frame;
+        regionFrameNumber = frameNumber;
+    }
+
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
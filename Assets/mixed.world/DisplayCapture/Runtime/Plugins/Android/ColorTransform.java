@@ -0,0 +1,61 @@
+package com.trev3d.DisplayCapture;
+
+/**
+ * Color adjustment a {@link RenderStage} applies in the same draw that copies the frame, before
+ * anything is read back.
+ *
+ * The captured sRGB colors are decoded to linear light, scaled by the exposure and the white
+ * balance gains, and encoded again: as sRGB, as linear values, or logarithmically over
+ * LOG_MIN_EV to LOG_MAX_EV stops around white, which keeps highlights above 1 and spreads the
+ * 8 bits evenly per stop. A log encoded value v decodes to 2^(LOG_MIN_EV + v * (LOG_MAX_EV - LOG_MIN_EV)).
+ * Immutable, so it can be swapped from any thread.
+ */
+public final class ColorTransform {
+
+    public static final int ENCODING_SRGB = 0;
+    public static final int ENCODING_LINEAR = 1;
+    public static final int ENCODING_LOG = 2;
+
+    public static final float LOG_MIN_EV = -8f;
+    public static final float LOG_MAX_EV = 4f;
+
+    private final float exposureEv;
+    private final float[] gain;
+    private final int encoding;
+
+    /**
+     * @param exposureEv stops of exposure, 0 leaves the brightness as captured
+     * @param gainR      white balance gains in linear light, 1 for all three leaves it as captured
+     */
+    public ColorTransform(float exposureEv, float gainR, float gainG, float gainB, int encoding) {
+        if (encoding < ENCODING_SRGB || encoding > ENCODING_LOG)
+            throw new IllegalArgumentException("Unknown color encoding " + encoding);
+        this.exposureEv = exposureEv;
+        this.encoding = encoding;
+        float scale = (float) Math.pow(2, exposureEv);
+        gain = new float[] { gainR * scale, gainG * scale, gainB * scale };
+    }
+
+    public float getExposureEv() {
+        return exposureEv;
+    }
+
+    // Exposure and white balance combined, per channel
+    float[] getGain() {
+        return gain;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    // True if frames come out as captured
+    public boolean isIdentity() {
+        return encoding == ENCODING_SRGB && gain[0] == 1f && gain[1] == 1f && gain[2] == 1f;
+    }
+
+    // Mode the shaders switch on, 0 skips the conversion
+    float getShaderMode() {
+        return isIdentity() ? 0f : encoding + 1;
+    }
+}
@@ -0,0 +1,65 @@
+package com.trev3d.DisplayCapture;
+
+/**
+ * Direction to cube face mapping shared by the capture-side lighting stages. Face order and
+ * orientation follow the usual cubemap layout (+x, -x, +y, -y, +z, -z).
+ */
+public final class CubeFaces {
+
+    public static final int COUNT = 6;
+
+    private CubeFaces() {
+    }
+
+    /**
+     * Finds the face a direction points at and writes its face coordinates, each in [0, 1],
+     * to uv[0] and uv[1]. The direction does not need to be normalized.
+     */
+    public static int faceOf(float x, float y, float z, float[] uv) {
+        float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+        int face;
+        float sc, tc, ma;
+        if (ax >= ay && ax >= az) {
+            face = x > 0 ? 0 : 1;
+            sc = x > 0 ? -z : z;
+            tc = -y;
+            ma = ax;
+        }
+        else if (ay >= az) {
+            face = y > 0 ? 2 : 3;
+            sc = x;
+            tc = y > 0 ? z : -z;
+            ma = ay;
+        }
+        else {
+            face = z > 0 ? 4 : 5;
+            sc = z > 0 ? x : -x;
+            tc = -y;
+            ma = az;
+        }
+        uv[0] = 0.5f * (sc / ma + 1f);
+        uv[1] = 0.5f * (tc / ma + 1f);
+        return face;
+    }
+
+    // Unnormalized direction through face coordinates s, t in [-1, 1]
+    public static void direction(int face, float s, float t, float[] out) {
+        switch (face) {
+            case 0: out[0] = 1f; out[1] = -t; out[2] = -s; break;
+            case 1: out[0] = -1f; out[1] = -t; out[2] = s; break;
+            case 2: out[0] = s; out[1] = 1f; out[2] = t; break;
+            case 3: out[0] = s; out[1] = -1f; out[2] = -t; break;
+            case 4: out[0] = s; out[1] = -t; out[2] = 1f; break;
+            default: out[0] = -s; out[1] = -t; out[2] = -1f; break;
+        }
+    }
+
+    // Solid angle of the face rectangle [s0, s1] x [t0, t1], coordinates in [-1, 1]
+    public static float solidAngle(float s0, float t0, float s1, float t1) {
+        return (float) (areaElement(s0, t0) - areaElement(s0, t1) - areaElement(s1, t0) + areaElement(s1, t1));
+    }
+
+    private static double areaElement(double x, double y) {
+        return Math.atan2(x * y, Math.sqrt(x * x + y * y + 1.0));
+    }
+}
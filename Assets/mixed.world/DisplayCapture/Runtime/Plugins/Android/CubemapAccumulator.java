@@ -0,0 +1,268 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stitches captured frames into a six-face environment cubemap on the capture side.
+ *
+ * Every face texel has a fixed world direction; for each frame the texels in view are projected
+ * into the frame with the camera orientation and blended with what is already stored, weighted
+ * by a confidence that falls off towards the frame edges and decays over time. Faces are
+ * processed in parallel on a private fork-join pool using preallocated float storage.
+ *
+ * Each face is also kept as tightly packed RGBA8 in a direct buffer for Unity to upload. Changes
+ * are tracked per tile on an 8x8 grid per face, so the consumer only needs to touch faces and
+ * tiles that changed, see {@link #takeDirtyTiles}. The face tasks write those buffers while a
+ * frame is accumulated, so a sequence counter (odd while writing) tells readers whether what
+ * they copied can have torn, see {@link #getSequenceBuffer}.
+ */
+public class CubemapAccumulator implements IDisplayCaptureReceiver {
+
+    public static final int TILES_PER_EDGE = 8;
+
+    private final CameraPose cameraPose;
+    private final int faceSize;
+    private final int tileSize;
+    private final float decayPerFrame;
+    private final float maxWeight;
+    private volatile boolean firstRowIsTop = true;
+
+    // Per face, per texel: normalized world direction, RGB and confidence
+    private final float[][] directions = new float[CubeFaces.COUNT][];
+    private final float[][] colors = new float[CubeFaces.COUNT][];
+    private final float[][] weights = new float[CubeFaces.COUNT][];
+    private final ByteBuffer[] faceBuffers = new ByteBuffer[CubeFaces.COUNT];
+    private final AtomicLongArray dirtyTiles = new AtomicLongArray(CubeFaces.COUNT);
+    private final ByteBuffer sequenceBuffer = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+    private int sequence = 0;
+    // Written around the sequence updates for the barriers a volatile store implies
+    private volatile int publishFence;
+
+    private final ForkJoinPool pool;
+    private final Face[] faces = new Face[CubeFaces.COUNT];
+    private final RecursiveAction root;
+
+    // Shared with the face tasks for the frame being processed
+    private ByteBuffer frame;
+    private int frameWidth;
+    private int frameHeight;
+    private int redShift;
+    private int greenShift;
+    private int blueShift;
+    private final float[] pose = new float[6];
+    private final float[] inverseRotation = new float[4];
+
+    private volatile long framesAccumulated;
+    private volatile long lastAccumulateTimeNs;
+
+    /**
+     * @param faceSize      texels along each face edge, must be a multiple of {@link #TILES_PER_EDGE}
+     * @param decayPerFrame factor existing confidence is scaled by each frame, e.g. 0.98
+     * @param maxWeight     confidence cap, lower values let new frames replace old ones faster
+     */
+    public CubemapAccumulator(CameraPose cameraPose, int faceSize, float decayPerFrame, float maxWeight, int parallelism) {
+        if (faceSize < TILES_PER_EDGE || faceSize % TILES_PER_EDGE != 0)
+            throw new IllegalArgumentException("Face size must be a multiple of " + TILES_PER_EDGE + ", got " + faceSize);
+        this.cameraPose = cameraPose;
+        this.faceSize = faceSize;
+        this.tileSize = faceSize / TILES_PER_EDGE;
+        this.decayPerFrame = decayPerFrame;
+        this.maxWeight = maxWeight;
+
+        int texels = faceSize * faceSize;
+        float[] direction = new float[3];
+        for (int face = 0; face < CubeFaces.COUNT; face++) {
+            float[] faceDirections = new float[texels * 3];
+            for (int y = 0; y < faceSize; y++) {
+                for (int x = 0; x < faceSize; x++) {
+                    CubeFaces.direction(face, 2f * (x + 0.5f) / faceSize - 1f, 2f * (y + 0.5f) / faceSize - 1f, direction);
+                    float length = (float) Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+                    int i = (y * faceSize + x) * 3;
+                    faceDirections[i] = direction[0] / length;
+                    faceDirections[i + 1] = direction[1] / length;
+                    faceDirections[i + 2] = direction[2] / length;
+                }
+            }
+            directions[face] = faceDirections;
+            colors[face] = new float[texels * 3];
+            weights[face] = new float[texels];
+            faceBuffers[face] = ByteBuffer.allocateDirect(texels * 4).order(ByteOrder.LITTLE_ENDIAN);
+            faces[face] = new Face(face);
+        }
+
+        pool = new ForkJoinPool(Math.max(1, Math.min(CubeFaces.COUNT, parallelism)));
+        root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(faces);
+            }
+        };
+    }
+
+    // Whether the first row of delivered buffers is the top of the image, as with ImageReader frames
+    public void setFirstRowIsTop(boolean firstRowIsTop) {
+        this.firstRowIsTop = firstRowIsTop;
+    }
+
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        if (cameraPose.get(pose) == 0) return;
+        accumulate(byteBuffer, width, height, pose);
+    }
+
+    /**
+     * Blends one frame into the cubemap.
+     *
+     * @param cameraPose {qx, qy, qz, qw, tan(hfov/2), tan(vfov/2)} as produced by {@link CameraPose#get}
+     */
+    public void accumulate(ByteBuffer byteBuffer, int width, int height, float[] cameraPose) {
+        long start = System.nanoTime();
+        frame = byteBuffer;
+        frameWidth = width;
+        frameHeight = height;
+        boolean bigEndian = byteBuffer.order() == ByteOrder.BIG_ENDIAN;
+        redShift = bigEndian ? 24 : 0;
+        greenShift = bigEndian ? 16 : 8;
+        blueShift = bigEndian ? 8 : 16;
+        // World to camera is the conjugate of the camera orientation
+        inverseRotation[0] = -cameraPose[0];
+        inverseRotation[1] = -cameraPose[1];
+        inverseRotation[2] = -cameraPose[2];
+        inverseRotation[3] = cameraPose[3];
+        pose[4] = cameraPose[4];
+        pose[5] = cameraPose[5];
+
+        sequenceBuffer.putInt(0, ++sequence);
+        publishFence = sequence;
+        for (Face face : faces)
+            face.reinitialize();
+        root.reinitialize();
+        pool.invoke(root);
+        publishFence = sequence;
+        sequenceBuffer.putInt(0, ++sequence);
+
+        frame = null;
+        framesAccumulated++;
+        lastAccumulateTimeNs = System.nanoTime() - start;
+    }
+
+    public int getFaceSize() {
+        return faceSize;
+    }
+
+    // Tightly packed RGBA8 face, rows in increasing face t coordinate
+    public ByteBuffer getFaceBuffer(int face) {
+        return faceBuffers[face];
+    }
+
+    /**
+     * Native-order buffer of one word, bumped to odd before the face buffers are written and back
+     * to even after. A copy of a face is whole if the word was the same even value before and
+     * after it; 0 until the first frame.
+     */
+    public ByteBuffer getSequenceBuffer() {
+        return sequenceBuffer;
+    }
+
+    /**
+     * Returns and clears the dirty tiles of a face as a bit mask, bit (ty * 8 + tx) set for every
+     * tile that changed since the last call.
+     */
+    public long takeDirtyTiles(int face) {
+        return dirtyTiles.getAndSet(face, 0L);
+    }
+
+    public long getFramesAccumulated() {
+        return framesAccumulated;
+    }
+
+    public long getLastAccumulateTimeNs() {
+        return lastAccumulateTimeNs;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    // One per cube face, lives as long as the accumulator and is never serialized
+    @SuppressWarnings("serial")
+    private final class Face extends RecursiveAction {
+        private final int face;
+        private final float[] direction = new float[3];
+
+        Face(int face) {
+            this.face = face;
+        }
+
+        @Override
+        protected void compute() {
+            float[] faceDirections = directions[face];
+            float[] faceColors = colors[face];
+            float[] faceWeights = weights[face];
+            ByteBuffer output = faceBuffers[face];
+            ByteBuffer pixels = frame;
+            int width = frameWidth, height = frameHeight;
+            float tanX = pose[4], tanY = pose[5];
+            boolean topFirst = firstRowIsTop;
+            long dirty = 0;
+
+            for (int texel = 0; texel < faceSize * faceSize; texel++) {
+                int d = texel * 3;
+                direction[0] = faceDirections[d];
+                direction[1] = faceDirections[d + 1];
+                direction[2] = faceDirections[d + 2];
+                CameraPose.rotate(inverseRotation, direction);
+
+                float weight = faceWeights[texel] * decayPerFrame;
+                float z = direction[2];
+                if (z > 0f) {
+                    float px = direction[0] / (z * tanX);
+                    float py = direction[1] / (z * tanY);
+                    // Trust the middle of the frame more than its distorted edges
+                    float confidence = (1f - px * px) * (1f - py * py);
+                    if (px > -1f && px < 1f && py > -1f && py < 1f && confidence > 0f) {
+                        float u = 0.5f * (px + 1f);
+                        float v = topFirst ? 0.5f * (1f - py) : 0.5f * (py + 1f);
+                        int column = Math.min(width - 1, (int) (u * width));
+                        int row = Math.min(height - 1, (int) (v * height));
+                        int pixel = pixels.getInt((row * width + column) * 4);
+
+                        float total = weight + confidence;
+                        float keep = weight / total;
+                        float take = confidence / total;
+                        faceColors[d] = faceColors[d] * keep + ((pixel >>> redShift) & 0xFF) * take;
+                        faceColors[d + 1] = faceColors[d + 1] * keep + ((pixel >>> greenShift) & 0xFF) * take;
+                        faceColors[d + 2] = faceColors[d + 2] * keep + ((pixel >>> blueShift) & 0xFF) * take;
+                        weight = Math.min(maxWeight, total);
+
+                        int packed = 0xFF000000
+                            | (Math.round(faceColors[d + 2]) << 16)
+                            | (Math.round(faceColors[d + 1]) << 8)
+                            | Math.round(faceColors[d]);
+                        int offset = texel * 4;
+                        // Face buffers are little endian, so bytes land as R, G, B, A
+                        if (output.getInt(offset) != packed) {
+                            output.putInt(offset, packed);
+                            int tx = (texel % faceSize) / tileSize;
+                            int ty = (texel / faceSize) / tileSize;
+                            dirty |= 1L << (ty * TILES_PER_EDGE + tx);
+                        }
+                    }
+                }
+                faceWeights[texel] = weight;
+            }
+
+            if (dirty != 0) {
+                long current;
+                do {
+                    current = dirtyTiles.get(face);
+                } while (!dirtyTiles.compareAndSet(face, current, current | dirty));
+            }
+        }
+    }
+}
@@ -8,77 +8,189 @@ import android.content.Intent;
 import android.content.ContentValues;
 import android.content.ContentResolver;
 import android.graphics.PixelFormat;
-import android.graphics.SurfaceTexture;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.view.Surface;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.unity3d.player.UnityPlayer;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import android.provider.MediaStore;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 
-import android.opengl.EGL14;
-import android.opengl.EGLConfig;
-import android.opengl.EGLContext;
-import android.opengl.EGLDisplay;
-import android.opengl.EGLSurface;
 import android.opengl.GLES20;
-import android.opengl.GLES11Ext;  // For GL_TEXTURE_EXTERNAL_OES
 
-public class DisplayCaptureManager implements ImageReader.OnImageAvailableListener {
+public class DisplayCaptureManager implements ImageReader.OnImageAvailableListener, IDisplayCaptureSource {
 
     public static DisplayCaptureManager instance = null;
     private static Intent staticMPIntentData;
     private static int staticMPResultCode;
-    public ArrayList<IDisplayCaptureReceiver> receivers;
+    // Zero-copy consumers of ImageReader planes, see CaptureFrame. Sessions captured through the
+    // render pipeline draw a copy of each processed frame into an ImageReader of their own for them.
+    private final CopyOnWriteArrayList<IDisplayCaptureFrameReceiver> frameReceivers = new CopyOnWriteArrayList<IDisplayCaptureFrameReceiver>();
 
+    // Only created for sessions captured through the ImageReader instead of the render pipeline
     private ImageReader reader;
+    // Leases on the reader's images, reused so a frame allocates nothing
+    private CaptureFrame.Pool capturedFrames;
+    // Frame receivers' copy of the frame in sessions rendering through the pipeline, and the images
+    // swapped into it that its listener has not acquired yet; only touched on the capture thread
+    private ImageReader mirrorReader;
+    private CaptureFrame.Pool mirroredFrames;
+    private int mirrorPending;
+    private final RenderStage mirrorStage = new RenderStage("frameReceivers", false);
     private MediaProjection projection;
-    private VirtualDisplay virtualDisplayForUnity;
-    private VirtualDisplay virtualDisplayForEncoder;
+    // The one display of a session; recording and every frame target render from its texture
+    private VirtualDisplay virtualDisplay;
     private Intent notifServiceIntent;
 
-    private ByteBuffer byteBuffer;
+    // Capture, GL work, frame copies and receiver dispatch all run here instead of the UI thread
+    private final HandlerThread captureThread;
+    private final Handler captureHandler;
+
+    // Frames handed to Unity and receivers, see FramePool for the publish/acquire protocol
+    private FramePool framePool;
+    private static final int FRAME_POOL_SLOTS = 3;
+
+    // Images frame receivers may hold on to at once, on top of the two the reader cycles through
+    private int maxHeldFrames = 2;
+    private boolean deliverPackedFrames = true;
+    private volatile long droppedImages;
+
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    // ByteBuffer receivers, each with its own rate, resolution tier and format
+    private final FrameDispatcher dispatcher = new FrameDispatcher(metrics);
+    // Rate of the luminance, spherical harmonics and cubemap receivers, 0 for every frame
+    private volatile float lightingRateHz = 0f;
+    // Drops frames nobody needs before they are copied or drawn, see setFramePacing
+    private final FramePacer pacer = new FramePacer();
+    // Pacing, change detection and dispatch, the same for both capture paths and TraceReplay
+    private final FrameProcessor processor = new FrameProcessor(metrics, pacer, dispatcher);
+    // The receiver of start, when the capture is used as an IDisplayCaptureSource
+    private volatile IDisplayCaptureReceiver sourceReceiver;
+    // Records dispatched frames for off-device replay, see TraceReplay
+    private volatile FrameTraceWriter traceWriter;
+
+    // Loopback streams for companion tools, see startStreamServer
+    public static final int STREAM_ENCODED = 0;
+    public static final int STREAM_MJPEG = 1;
+    private volatile FrameStreamServer encodedStream;
+    private volatile FrameStreamServer jpegStream;
+    private volatile JpegStreamReceiver jpegStreamReceiver;
+    private volatile FrameStreamServer statsStream;
+    // Last frame Unity was told about, to time how long it takes to pick it up
+    private volatile long notifiedSequence = -1;
+    private volatile long notifiedTimeNs;
+    private long acquiredSequence = -1;
+
+    // How Unity learns about new frames, see setNotificationMode
+    public static final int NOTIFY_EVERY_FRAME = 0;
+    public static final int NOTIFY_COALESCED = 1;
+    public static final int NOTIFY_POLL = 2;
+    private volatile int notificationMode = NOTIFY_COALESCED;
+    // Set while an OnNewFrameAvailable message is queued on Unity's main thread
+    private final AtomicBoolean notificationPending = new AtomicBoolean(false);
+    private final AtomicLong coalescedNotifications = new AtomicLong();
 
     private int width;
     private int height;
 
-    private SurfaceTexture inputSurfaceTexture;
-    private Surface inputSurface;
     private Surface encoderSurface;
-    private EGLDisplay eglDisplay;
-    private EGLContext eglContext;
-    private EGLSurface eglSurface;
-    private int textureId;
+    // EGL context, programs and capture texture, kept alive across recordings
+    private final RenderPipeline pipeline = new RenderPipeline();
+    // Encoder kept unconfigured between recordings so the next start does not create one
+    private MediaCodec idleCodec;
+    private String idleCodecMime;
+    // Time from startEncoding to the first encoded frame
+    private long encodingStartNs;
+    private volatile boolean warmStart;
+    private volatile long timeToFirstFrameNs;
+
+    // Encoder surface size; unless a recording at the capture size is attached, the frame Unity
+    // reads is drawn into its own framebuffer first
+    private int encoderWidth;
+    private int encoderHeight;
+    private int readbackFramebuffer = 0;
+    private int readbackTexture = 0;
+
+    // 0 reads back synchronously with glReadPixels, 2+ uses a PBO ring of that depth (GLES3 only)
+    private int readbackRingDepth = 2;
+    private PixelBufferReadback pixelBufferReadback;
+    // Frames drawn this session, so the readback rings can tell paced frames from a steady stream
+    private long drawnFrames;
+
+    // Cropped and scaled targets rendered alongside the full frame for region subscriptions, and the
+    // regions subscribed to this frame; only touched on the capture thread
+    private final HashMap<CaptureRegion, ScaledCaptureTarget> regionTargets = new HashMap<CaptureRegion, ScaledCaptureTarget>();
+    private final ArrayList<CaptureRegion> regions = new ArrayList<CaptureRegion>();
+
+    // Draws of the full frame: at capture size for readback, and at encoder size when that differs
+    private final RenderStage frameStage = new RenderStage("frame", false);
+    private final RenderStage encoderStage = new RenderStage("encoder", false);
+    // Packed YUV and luma frames for receivers that do not need RGBA, see FrameFormat
+    private final PackedFrameTarget[] packedTargets = new PackedFrameTarget[FrameFormat.COUNT];
+    // Half, quarter and eighth size frames for subscriptions to a scaled tier, by tier index
+    private final ScaledCaptureTarget[] tierTargets = new ScaledCaptureTarget[CaptureSubscription.TIER_COUNT];
+    private int unsupportedFormats = 0;
+    // Rows delivered top first instead of Unity's bottom-first order
+    private volatile boolean outputFlipY = false;
+
+    private LuminanceStatistics luminanceStatistics;
+    private SphericalHarmonicsAccumulator sphericalHarmonics;
+    private CubemapAccumulator cubemapAccumulator;
+    private final CameraPose cameraPose = new CameraPose();
 
     private UnityInterface unityInterface;
     private MediaCodec mediaCodec;
-    private MediaMuxer mediaMuxer;
-    private int trackIndex;
-    private boolean muxerStarted = false;
-    private boolean isEncoding = false;
-    private boolean isCapturing = false;
+    private String mediaCodecMime;
+    private EncoderProfile encoderProfile = new EncoderProfile();
+    private EncoderBitrateController bitrateController;
+    // Read by the encoder callback for every sample, so a recording can join a running encoder
+    private volatile MuxerWriter muxerWriter;
+    // Encoded samples the writer can queue before it starts dropping frames
+    private static final int MUXER_QUEUE_DEPTH = 30;
+    private static final long FRAGMENT_DURATION_US = 1000000;
+    // 0 records one file
+    private float segmentSeconds = 0f;
+    private long segmentRetentionBytes = 0;
+    private boolean fragmentedRecording = false;
+    // False while the encoder only feeds the replay buffer
+    private boolean recordToFile = true;
+    private volatile ReplayBuffer replayBuffer;
+    // Set once a keyframe was requested for the replay buffer, until it accepts samples again
+    private boolean replaySyncRequested = false;
+    private volatile boolean isEncoding = false;
+    private volatile boolean isCapturing = false;
+    // Set while the virtual display renders into the pipeline's texture, so recording can attach
+    private boolean renderSessionActive = false;
     private boolean requestEncoding = false;
+    private volatile long lastSyncReadbackTimeNs;
     private String outputPath;
     private String oculusVideoPath = "/storage/emulated/0/Movies/";
     private static final int TIMEOUT_USEC = 10000;
@@ -122,13 +234,157 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
             Call("OnEncodingError");
         }
 
+        public void OnReplaySaved(String path) {
+            Call("OnReplaySaved", path);
+        }
+
+        public void OnReplayFailed(String path) {
+            Call("OnReplayFailed", path);
+        }
+
         public void OnLogText(String message) {
             Call("OnLogText", message);
         }
     }
 
     public DisplayCaptureManager() {
-        receivers = new ArrayList<IDisplayCaptureReceiver>();
+        captureThread = new HandlerThread("DisplayCapture", Process.THREAD_PRIORITY_DISPLAY);
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+    }
+
+    private boolean isOnCaptureThread() {
+        return Looper.myLooper() == captureThread.getLooper();
+    }
+
+    // Every frame at the capture size, in the receiver's own pixel format
+    public CaptureSubscription addReceiver(IDisplayCaptureReceiver receiver) {
+        return addReceiver(receiver, 0f, CaptureSubscription.TIER_FULL, receiver.getPixelFormat());
+    }
+
+    /**
+     * Delivers at most maxRateHz frames a second (0 for every frame) at the capture size divided
+     * by tier, one of the CaptureSubscription.TIER constants, in pixelFormat. Can be called from
+     * any thread; the receiver is called on the capture thread.
+     */
+    public CaptureSubscription addReceiver(IDisplayCaptureReceiver receiver, float maxRateHz, int tier, int pixelFormat) {
+        return dispatcher.add(new CaptureSubscription(receiver, maxRateHz, tier, pixelFormat));
+    }
+
+    /**
+     * Delivers at most maxRateHz frames a second (0 for every frame) of region: a crop of the
+     * frame scaled to a fixed size, rendered on the GPU in the same pass as the full frame, so
+     * the receiver never touches the full frame. Subscriptions to equal regions share a render.
+     */
+    public CaptureSubscription addReceiver(IDisplayCaptureReceiver receiver, float maxRateHz, CaptureRegion region) {
+        return dispatcher.add(new CaptureSubscription(receiver, maxRateHz, region));
+    }
+
+    // Frames already being dispatched may still reach the receiver
+    public void removeReceiver(IDisplayCaptureReceiver receiver) {
+        dispatcher.remove(receiver);
+    }
+
+    // Gives a slow receiver its own thread and a queue of at most depth frames, dropping the oldest
+    public CaptureSubscription addQueuedReceiver(IDisplayCaptureReceiver receiver, int depth) {
+        return addQueuedReceiver(receiver, depth, 0f, CaptureSubscription.TIER_FULL, receiver.getPixelFormat());
+    }
+
+    public CaptureSubscription addQueuedReceiver(IDisplayCaptureReceiver receiver, int depth,
+                                                 float maxRateHz, int tier, int pixelFormat) {
+        return addReceiver(new QueuedDisplayCaptureReceiver(receiver, depth), maxRateHz, tier, pixelFormat);
+    }
+
+    public CaptureSubscription addQueuedReceiver(IDisplayCaptureReceiver receiver, int depth,
+                                                 float maxRateHz, CaptureRegion region) {
+        return addReceiver(new QueuedDisplayCaptureReceiver(receiver, depth), maxRateHz, region);
+    }
+
+    public void removeQueuedReceiver(IDisplayCaptureReceiver receiver) {
+        CaptureSubscription removed = dispatcher.remove(receiver);
+        if (removed != null && removed.getReceiver() instanceof QueuedDisplayCaptureReceiver)
+            ((QueuedDisplayCaptureReceiver) removed.getReceiver()).close();
+    }
+
+    /**
+     * Hands the receiver every processed frame as an ImageReader image, without a copy on the CPU,
+     * see CaptureFrame. Sessions rendering through the pipeline draw the frame into a reader of
+     * their own for it, oriented like the recording and with the captured colors, so recording
+     * keeps working.
+     */
+    public void addFrameReceiver(IDisplayCaptureFrameReceiver receiver) {
+        frameReceivers.addIfAbsent(receiver);
+        captureHandler.post(this::updateMirror);
+    }
+
+    public void removeFrameReceiver(IDisplayCaptureFrameReceiver receiver) {
+        frameReceivers.remove(receiver);
+        captureHandler.post(this::updateMirror);
+    }
+
+    // Keeps the frame receivers' reader in GL sessions while there are frame receivers
+    private void updateMirror() {
+        boolean wanted = renderSessionActive && !frameReceivers.isEmpty();
+        if (wanted == (mirrorReader != null)) return;
+        if (!wanted) {
+            releaseMirror();
+            return;
+        }
+        mirrorReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2 + maxHeldFrames);
+        mirroredFrames = new CaptureFrame.Pool(2 + maxHeldFrames);
+        mirrorPending = 0;
+        mirrorReader.setOnImageAvailableListener(this::onMirrorImageAvailable, captureHandler);
+        try {
+            pipeline.attachMirror(mirrorReader.getSurface());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot render frames for frame receivers: " + e.getMessage());
+            releaseMirror();
+        }
+    }
+
+    private void releaseMirror() {
+        if (mirrorReader == null) return;
+        if (pipeline.isInitialized())
+            pipeline.detachMirror();
+        // As with the session reader, closing it invalidates images receivers still hold
+        mirrorReader.setOnImageAvailableListener(null, null);
+        mirrorReader.close();
+        mirrorReader = null;
+    }
+
+    private void onMirrorImageAvailable(ImageReader imageReader) {
+        Image image;
+        try {
+            image = imageReader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            droppedImages++;
+            return;
+        }
+        // acquireLatestImage drains every image swapped in so far
+        mirrorPending = 0;
+        if (image == null) return;
+        CaptureFrame frame = mirroredFrames.obtain(image);
+        for (IDisplayCaptureFrameReceiver frameReceiver : frameReceivers) {
+            frameReceiver.onNewFrame(frame);
+        }
+        frame.release();
+    }
+
+    // Draws the frame into the frame receivers' reader, unless they already hold all it can spare
+    private void renderMirror(long timestamp) {
+        // One image stays free for the swap to dequeue, so it never blocks the capture thread
+        if (mirroredFrames.getLeased() + mirrorPending >= 1 + maxHeldFrames) {
+            droppedImages++;
+            return;
+        }
+        pipeline.beginMirror();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        mirrorStage.copyOrientation(encoderStage);
+        pipeline.draw(mirrorStage);
+        pipeline.endMirror(timestamp);
+        mirrorPending++;
     }
 
     public static synchronized DisplayCaptureManager getInstance() {
@@ -159,7 +415,7 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
             DisplayCaptureNotificationService.class);
         UnityPlayer.currentContext.startService(notifServiceIntent);
 
-        new Handler(Looper.getMainLooper()).postDelayed(() -> {
+        captureHandler.postDelayed(() -> {
             Log.i(TAG, "Starting screen capture...");
 
             MediaProjectionManager projectionManager = (MediaProjectionManager)
@@ -172,54 +428,119 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
                     Log.i(TAG, "Screen capture ended!");
                     handleScreenCaptureEnd();
                 }
-            }, new Handler(Looper.getMainLooper()));
+            }, captureHandler);
+            createVirtualDisplay();
+            isCapturing = true;
+            unityInterface.OnCaptureStarted();
+
+            // Recording attaches to the running session, and can come and go without restarting it
             if (requestEncoding) {
                 startEncoding();
             }
-            else {
-                isCapturing = true;
-                // Create virtual display for Unity feedback
-                virtualDisplayForUnity = projection.createVirtualDisplay("ScreenCaptureUnity",
-                    width, height, 300,
-                    DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                    reader.getSurface(), null, null);
-                
-                unityInterface.OnCaptureStarted();
-            }
 
         }, 100);
     }
 
+    // Renders into the pipeline's texture, falling back to the ImageReader without GL
+    private void createVirtualDisplay() {
+        Surface surface = null;
+        try {
+            startRenderSession();
+            surface = pipeline.getInputSurface(width, height);
+            updateMirror();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Render pipeline unavailable, capturing through the ImageReader: " + e.getMessage());
+        }
+        if (surface == null) {
+            if (reader == null) {
+                reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2 + maxHeldFrames);
+                capturedFrames = new CaptureFrame.Pool(2 + maxHeldFrames);
+                reader.setOnImageAvailableListener(this, captureHandler);
+            }
+            surface = reader.getSurface();
+        }
+        virtualDisplay = projection.createVirtualDisplay("ScreenCapture",
+            width, height, 300,
+            DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
+            surface, null, null);
+    }
+
     @Override
     public void onImageAvailable(ImageReader imageReader) {
-        Image image = imageReader.acquireLatestImage();
+        Image image;
+        try {
+            image = imageReader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // Frame receivers are still holding every image the reader can hand out
+            droppedImages++;
+            return;
+        }
         if (image == null) return;
 
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        buffer.rewind();
+        CaptureFrame frame = capturedFrames.obtain(image);
+
+        // Frames the pacer skips cost nothing beyond acquiring the image
+        if (!processor.arrive(frame.getTimestamp())) {
+            frame.release();
+            return;
+        }
+
+        // Near duplicates of the last delivered frame are dropped before any copy or fan-out
+        if (!processor.check(frame.getPlane(), frame.getWidth(), frame.getHeight(),
+                frame.getRowStride(), frame.getPixelStride())) {
+            frame.release();
+            return;
+        }
 
-        byteBuffer.clear();
-        byteBuffer.put(buffer);
+        // Only Unity and ByteBuffer receivers due for a frame need the padding-free copy
+        if (deliverPackedFrames || processor.isDue(frame.getTimestamp())) {
+            int slot = framePool.beginWrite();
+            if (slot >= 0) {
+                ByteBuffer byteBuffer = framePool.getBuffer(slot);
+                long copyStart = System.nanoTime();
+                frame.copyPacked(byteBuffer, !outputFlipY);
+                metrics.copy.recordNanos(System.nanoTime() - copyStart);
+                long published = framePool.publish(slot);
 
-        long timestamp = image.getTimestamp();
-        image.close();
+                processor.dispatch(byteBuffer, width, height, frame.getTimestamp(), true);
 
-        for(int i = 0; i < receivers.size(); i++) {
-            buffer.rewind();
-            receivers.get(i).onNewImage(byteBuffer, width, height, timestamp);
+                if (deliverPackedFrames)
+                    notifyNewFrame(published);
+            }
+            else {
+                metrics.onFrameDropped();
+            }
         }
 
-        unityInterface.OnNewFrameAvailable();
+        for (IDisplayCaptureFrameReceiver frameReceiver : frameReceivers) {
+            frameReceiver.onNewFrame(frame);
+        }
+
+        frame.release();
+        processor.finish();
+    }
+
+    // Layout of format at the capture size, or null if the capture size cannot be packed that way
+    private FrameFormat getFrameFormat(int format) {
+        FrameFormat frameFormat = dispatcher.getFrameFormat(0, format, width, height);
+        if (frameFormat == null && (unsupportedFormats & (1 << format)) == 0) {
+            Log.w(TAG, "Cannot pack format " + format + " at " + width + "x" + height);
+            unsupportedFormats |= 1 << format;
+        }
+        return frameFormat;
     }
 
     private void handleScreenCaptureEnd() {
-        if (virtualDisplayForUnity != null) {
-            virtualDisplayForUnity.release();
+        if (isEncoding) {
+            stopEncoder();
         }
-        if (virtualDisplayForEncoder != null) {
-            stopEncoding();
-            //virtualDisplayForEncoder.release();
+        isCapturing = false;
+        if (virtualDisplay != null) {
+            virtualDisplay.release();
+            virtualDisplay = null;
         }
+        endRenderSession();
+        cleanup();
         UnityPlayer.currentContext.stopService(notifServiceIntent);
         unityInterface.OnCaptureStopped();
     }
@@ -230,6 +551,34 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
         this.width = width;
         this.height = height;
         init();
+        // Get the GL pipeline and an encoder ready now, so the first recording starts warm
+        captureHandler.post(this::prewarm);
+    }
+
+    private void prewarm() {
+        try {
+            pipeline.initialize();
+            EncoderProfile profile = encoderProfile;
+            String mime = profile.createFormat(profile.getWidth(width), profile.getHeight(height))
+                .getString(MediaFormat.KEY_MIME);
+            if (idleCodec == null || !mime.equals(idleCodecMime)) {
+                releaseIdleCodec();
+                long start = System.nanoTime();
+                idleCodec = MediaCodec.createEncoderByType(mime);
+                idleCodecMime = mime;
+                Log.i(TAG, "Created " + mime + " encoder in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not prewarm the capture pipeline: " + e.getMessage());
+        }
+    }
+
+    private void releaseIdleCodec() {
+        if (idleCodec != null) {
+            idleCodec.release();
+            idleCodec = null;
+            idleCodecMime = null;
+        }
     }
 
     public void setupVideoOutput(String fileName) {
@@ -255,17 +604,24 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
         //     Log.e(TAG, "Error setting up video output, falling back to default." + e);
         // }
         // Check if we have write permission for external storage
+        outputPath = resolveVideoPath(fileName);
+    }
+
+    private String resolveVideoPath(String fileName) {
         if (UnityPlayer.currentActivity.checkSelfPermission(android.Manifest.permission.WRITE_EXTERNAL_STORAGE) 
                 == android.content.pm.PackageManager.PERMISSION_GRANTED) {
-            outputPath = oculusVideoPath + fileName;
+            return oculusVideoPath + fileName;
         }
         else
         {
             // Fallback to app-specific directory
             File outputDir = UnityPlayer.currentActivity.getExternalFilesDir(null);
-            outputPath = new File(outputDir, fileName).getAbsolutePath();
+            return new File(outputDir, fileName).getAbsolutePath();
         }
+    }
 
+    private static String timestampedFileName(String prefix) {
+        return prefix + new java.text.SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new java.util.Date()) + ".mp4";
     }
 
     public String getOutputPath() {
@@ -288,25 +644,48 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
 
     public void requestEncoding() {
         if (isEncoding) {
-            Log.i(TAG, "Already encoding!");
+            if (recordToFile) {
+                Log.i(TAG, "Already encoding!");
+                return;
+            }
+            // The encoder already runs for the replay buffer or a stream, the recording joins it
+            setupVideoOutput(timestampedFileName("mixedworld_reallightcapture_"));
+            captureHandler.post(this::attachRecording);
+            return;
+        }
+        setupVideoOutput(timestampedFileName("mixedworld_reallightcapture_"));
+        recordToFile = true;
+        if (isCapturing) {
+            startEncoding();
             return;
         }
-        setupVideoOutput("mixedworld_reallightcapture_" + new java.text.SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new java.util.Date()) + ".mp4");
         requestEncoding = true;
         requestCapture();
     }
 
+    // Attaches the encoder to the running capture session, leaving the frames Unity and receivers get as they are
     public void startEncoding() {
+        if (!isOnCaptureThread()) {
+            captureHandler.post(this::startEncoding);
+            return;
+        }
         requestEncoding = false;
         if (isEncoding) {
             Log.i(TAG, "Already encoding!");
             return;
         }
+        if (!renderSessionActive) {
+            Log.e(TAG, "Cannot record, the capture session is not rendering through the pipeline");
+            unityInterface.Call("OnEncodingError");
+            return;
+        }
         try {
+            encodingStartNs = System.nanoTime();
+            timeToFirstFrameNs = 0;
+            warmStart = idleCodec != null;
             prepareMediaCodec(width, height);
             isEncoding = true;
             Log.i(TAG, "Started encoding");
-            unityInterface.OnCaptureStarted();
             unityInterface.OnLogText("Started encoding");
         } catch (Exception e) {
             Log.e(TAG, "Failed to start encoding: " + e.getMessage());
@@ -316,122 +695,219 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
 
     private void prepareMediaCodec(int screenWidth, int screenHeight) {
         try {
-            mediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            trackIndex = -1;
-            muxerStarted = false;
-
-            MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", screenWidth, screenHeight);
-            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, 6000000);
-            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
-            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, 
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-
-            mediaCodec = MediaCodec.createEncoderByType("video/avc");
+            EncoderProfile profile = encoderProfile;
+            encoderWidth = profile.getWidth(screenWidth);
+            encoderHeight = profile.getHeight(screenHeight);
+            MediaFormat mediaFormat = profile.createFormat(encoderWidth, encoderHeight);
+            Log.i(TAG, "Encoder format: " + mediaFormat);
+
+            String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
+            if (recordToFile) {
+                muxerWriter = createMuxerWriter(mime);
+            }
+
+            if (idleCodec != null && mime.equals(idleCodecMime)) {
+                mediaCodec = idleCodec;
+                idleCodec = null;
+                idleCodecMime = null;
+            }
+            else {
+                releaseIdleCodec();
+                mediaCodec = MediaCodec.createEncoderByType(mime);
+            }
+            mediaCodecMime = mime;
+            bitrateController = profile.isAdaptive() ? new EncoderBitrateController(profile) : null;
+            // Async mode has to be set up before configure
+            mediaCodec.setCallback(createEncoderCallback(bitrateController));
             mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             
             // Create input surface for encoder
             encoderSurface = mediaCodec.createInputSurface();
-            
-            // Initialize EGL
-            initializeEGL();
-            
-            // Create input surface texture using the texture ID created in initializeEGL
-            inputSurfaceTexture = new SurfaceTexture(textureId);
-            inputSurfaceTexture.setDefaultBufferSize(width, height);
-            inputSurface = new Surface(inputSurfaceTexture);
-            
-            // Reinitialize ImageReader for Unity feedback
-            if (reader != null) {
-                reader.close();
+
+            // The next frame copyFrame draws also goes to the encoder
+            pipeline.attachOutput(encoderSurface);
+
+            mediaCodec.start();
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error preparing MediaCodec: " + e.getMessage());
+            unityInterface.Call("OnEncodingError");
+        }
+    }
+
+    private MuxerWriter createMuxerWriter(String mime) {
+        EncoderProfile profile = encoderProfile;
+        // Room for a couple of average frames per buffer; keyframes grow theirs once
+        int averageFrameSize = profile.getBitrate() / 8 / profile.getFrameRate();
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        return new MuxerWriter(createRecordingSink(outputPath, hevc), hevc,
+            MUXER_QUEUE_DEPTH, Math.max(64 * 1024, averageFrameSize * 2));
+    }
+
+    // Starts recording the output of the encoder the replay buffer or a stream is running, from its next keyframe
+    private void attachRecording() {
+        MediaCodec codec = mediaCodec;
+        if (!isEncoding || codec == null) {
+            // The encoder stopped in the meantime, start one for the recording
+            requestEncoding();
+            return;
+        }
+        if (muxerWriter != null) return;
+        try {
+            MediaFormat format = codec.getOutputFormat();
+            MuxerWriter writer = createMuxerWriter(format.getString(MediaFormat.KEY_MIME));
+            // Without the codec config yet, the encoder callback starts the writer when it comes
+            if (format.containsKey("csd-0"))
+                writer.startMidStream(format);
+            recordToFile = true;
+            muxerWriter = writer;
+            requestSyncFrame(codec);
+            Log.i(TAG, "Recording the running encoder to " + outputPath);
+            unityInterface.OnLogText("Started encoding");
+        } catch (Exception e) {
+            Log.e(TAG, "Could not record the running encoder: " + e.getMessage());
+            unityInterface.Call("OnEncodingError");
+        }
+    }
+
+    // Ends a recording that shares the encoder with the replay buffer or a stream, which keep going
+    private void detachRecording() {
+        MuxerWriter writer = muxerWriter;
+        // Encoder callbacks run on this thread, so no sample is on its way into the writer
+        muxerWriter = null;
+        recordToFile = false;
+        if (writer != null) {
+            writer.stop();
+            outputPath = writer.getPath();
+        }
+        Log.i(TAG, "Recording finished, the encoder keeps running");
+        unityInterface.Call("OnEncodingComplete");
+    }
+
+    private MediaCodec.Callback createEncoderCallback(EncoderBitrateController controller) {
+        return new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Not used with Surface input
             }
-            reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
-            reader.setOnImageAvailableListener(this, new Handler(Looper.getMainLooper()));
-            
-            // Set up frame listener
-            inputSurfaceTexture.setOnFrameAvailableListener(texture -> {
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int outputBufferId, MediaCodec.BufferInfo info) {
                 try {
-                    copyFrame();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error processing frame", e);
-                }
-            });
+                    ByteBuffer encodedData = codec.getOutputBuffer(outputBufferId);
+                    if (encodedData == null) {
+                        return;
+                    }
 
-            // Create virtual display that writes to input surface
-            virtualDisplayForEncoder = projection.createVirtualDisplay(
-                "ScreenCaptureEncoder",
-                width, height, 
-                300,
-                DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                inputSurface,  // Use input surface instead of encoder surface
-                null, 
-                null);
-
-            mediaCodec.setCallback(new MediaCodec.Callback() {
-                @Override
-                public void onInputBufferAvailable(MediaCodec codec, int index) {
-                    // Not used with Surface input
-                }
+                    if (timeToFirstFrameNs == 0 && info.size != 0
+                            && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        timeToFirstFrameNs = System.nanoTime() - encodingStartNs;
+                        Log.i(TAG, "First encoded frame after " + timeToFirstFrameNs / 1000000 + " ms ("
+                            + (warmStart ? "warm" : "cold") + " start)");
+                    }
+                    if (info.size != 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        // Surface input is stamped with the System.nanoTime of the swap
+                        metrics.encoder.record(System.nanoTime() / 1000 - info.presentationTimeUs);
+                    }
 
-                @Override
-                public void onOutputBufferAvailable(MediaCodec codec, int outputBufferId, MediaCodec.BufferInfo info) {
-                    try {
-                        ByteBuffer encodedData = codec.getOutputBuffer(outputBufferId);
-                        if (encodedData == null) {
-                            return;
+                    MuxerWriter writer = muxerWriter;
+                    ReplayBuffer replay = replayBuffer;
+                    FrameStreamServer stream = encodedStream;
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        if (replay != null) {
+                            replay.setFormat(codec.getOutputFormat());
                         }
-
-                        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                            if (!muxerStarted) {
-                                MediaFormat format = codec.getOutputFormat();
-                                trackIndex = mediaMuxer.addTrack(format);
-                                mediaMuxer.start();
-                                muxerStarted = true;
-                                Log.i(TAG, "MediaMuxer started");
-                            }
-                            info.size = 0;
+                        if (stream != null) {
+                            stream.setConfig(getStreamConfig(codec.getOutputFormat()));
                         }
-
-                        if (info.size != 0 && muxerStarted) {
-                            encodedData.position(info.offset);
-                            encodedData.limit(info.offset + info.size);
-                            mediaMuxer.writeSampleData(trackIndex, encodedData, info);
-                            Log.d(TAG, "Writing sample data to muxer");
+                        if (writer != null) {
+                            writer.start(codec.getOutputFormat());
                         }
+                        info.size = 0;
+                    }
 
-                        codec.releaseOutputBuffer(outputBufferId, false);
+                    if (info.size != 0 && writer != null && !writer.submit(encodedData, info)) {
+                        // The writer is backed up and lost a reference frame
+                        requestSyncFrame(codec);
+                    }
 
-                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            Log.i(TAG, "Received EOS");
-                            stopEncoding();
+                    if (info.size != 0 && replay != null) {
+                        if (replay.append(encodedData, info)) {
+                            replaySyncRequested = false;
+                        }
+                        else if (!replaySyncRequested) {
+                            // Attached mid-GOP or overflowed, the replay has to restart at a keyframe
+                            requestSyncFrame(codec);
+                            replaySyncRequested = true;
                         }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception in encoder output callback", e);
-                        unityInterface.Call("OnEncodingError");
                     }
-                }
 
-                @Override
-                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
-                    Log.e(TAG, "MediaCodec error: " + e.getMessage());
+                    if (info.size != 0 && stream != null) {
+                        ByteBuffer unit = encodedData.duplicate();
+                        unit.limit(info.offset + info.size).position(info.offset);
+                        stream.send(unit, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    }
+
+                    if (info.size != 0 && controller != null) {
+                        controller.onFrameEncoded(codec, System.nanoTime());
+                    }
+
+                    codec.releaseOutputBuffer(outputBufferId, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        Log.i(TAG, "Received EOS");
+                        stopEncoder();
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception in encoder output callback", e);
                     unityInterface.Call("OnEncodingError");
                 }
+            }
 
-                @Override
-                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
-                    Log.i(TAG, "Encoder output format changed: " + format);
-                }
-            });
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.e(TAG, "MediaCodec error: " + e.getMessage());
+                unityInterface.Call("OnEncodingError");
+            }
 
-            mediaCodec.start();
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                Log.i(TAG, "Encoder output format changed: " + format);
+            }
+        };
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error preparing MediaCodec: " + e.getMessage());
-            unityInterface.Call("OnEncodingError");
-        }
+    private SampleSink createRecordingSink(String path, boolean hevc) {
+        boolean fragmented = fragmentedRecording && !hevc;
+        if (fragmentedRecording && hevc)
+            Log.w(TAG, "Fragmented MP4 is only written for AVC, recording HEVC through MediaMuxer");
+        SegmentedSampleSink.Factory factory = fragmented
+            ? segmentPath -> new FragmentedMp4Sink(segmentPath, FRAGMENT_DURATION_US)
+            : MediaMuxerSink::new;
+        if (segmentSeconds > 0f)
+            return new SegmentedSampleSink(path, (long) (segmentSeconds * 1000000L), segmentRetentionBytes, factory);
+        return factory.create(path);
     }
 
+    // Stops the recording; the encoder keeps running while the replay buffer or a stream uses it
     public void stopEncoding() {
+        if (!isOnCaptureThread()) {
+            captureHandler.post(this::stopEncoding);
+            return;
+        }
+        if (isEncoding && recordToFile && (replayBuffer != null || encodedStream != null)) {
+            detachRecording();
+            return;
+        }
+        stopEncoder();
+    }
+
+    private void stopEncoder() {
+        // EGL and the frame pool belong to the capture thread
+        if (!isOnCaptureThread()) {
+            captureHandler.post(this::stopEncoder);
+            return;
+        }
         requestEncoding = false;
         if (!isEncoding) {
             Log.i(TAG, "Encoder already stopped");
@@ -441,55 +917,68 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
         try {
             Log.i(TAG, "Beginning encoder shutdown sequence");
             isEncoding = false;
-            
-            if (virtualDisplayForEncoder != null) {
-                virtualDisplayForEncoder.release();
-                virtualDisplayForEncoder = null;
-            }
 
             if (mediaCodec != null) {
                 try {
                     mediaCodec.signalEndOfInputStream();
                     mediaCodec.stop();
-                    mediaCodec.release();
-                    mediaCodec = null;
+                    // Back to the uninitialized state, ready to be configured for the next recording
+                    mediaCodec.reset();
+                    releaseIdleCodec();
+                    idleCodec = mediaCodec;
+                    idleCodecMime = mediaCodecMime;
                 } catch (Exception e) {
                     Log.e(TAG, "Error during mediaCodec shutdown: " + e.getMessage(), e);
+                    mediaCodec.release();
                 }
+                mediaCodec = null;
+                bitrateController = null;
             }
 
-            if (mediaMuxer != null) {
-                if (muxerStarted) {
-                    try {
-                        mediaMuxer.stop();
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error stopping mediaMuxer: " + e.getMessage(), e);
-                    }
-                }
-                try {
-                    mediaMuxer.release();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error releasing mediaMuxer: " + e.getMessage(), e);
-                }
-                mediaMuxer = null;
-                muxerStarted = false;
+            if (muxerWriter != null) {
+                // Waits for queued samples to be written
+                muxerWriter.stop();
+                outputPath = muxerWriter.getPath();
+                muxerWriter = null;
             }
-            cleanupEGL();
-            cleanup();
+            // The capture session and its frame targets keep running
+            detachEncoderSurface();
             Log.i(TAG, "Encoder shutdown complete");
-            unityInterface.Call("OnEncodingComplete");
+            if (recordToFile)
+                unityInterface.Call("OnEncodingComplete");
         } catch (Exception e) {
             Log.e(TAG, "Error during encoder shutdown: ", e);
             unityInterface.Call("OnEncodingError");
         }
     }
 
+    // Subscribes receiver to every frame and starts the capture, see IDisplayCaptureSource
+    @Override
+    public void start(IDisplayCaptureReceiver receiver) {
+        IDisplayCaptureReceiver previous = sourceReceiver;
+        if (previous != null)
+            removeReceiver(previous);
+        sourceReceiver = receiver;
+        addReceiver(receiver);
+        requestCapture();
+    }
+
+    // Unsubscribes the receiver given to start and stops the capture
+    @Override
+    public void stop() {
+        IDisplayCaptureReceiver receiver = sourceReceiver;
+        sourceReceiver = null;
+        if (receiver != null)
+            removeReceiver(receiver);
+        stopCapture();
+    }
+
     public void requestCapture() {
         if (isEncoding || isCapturing) {
             Log.i(TAG, "Already capturing...");
             return;
         }
-        if (reader == null || byteBuffer == null){
+        if (framePool == null){
             init();
         }
         Log.i(TAG, "Asking for screen capture permission...");
@@ -505,16 +994,21 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
     }
 
     public void stopCapture() {
-        if (isEncoding){
-            stopEncoding();
+        if (!isOnCaptureThread()) {
+            captureHandler.post(this::stopCapture);
             return;
         }
+        if (isEncoding){
+            stopEncoder();
+        }
         if (isCapturing){
-            isCapturing = false;
             try {
                 Log.i(TAG, "Stopping screen capture...");
-                cleanup();
-                if(projection == null) return;
+                // The projection callback releases the session
+                if (projection == null) {
+                    handleScreenCaptureEnd();
+                    return;
+                }
                 projection.stop();
             } catch (Exception e) {
                 Log.e(TAG, "Error during capture shutdown: ", e);
@@ -522,210 +1016,1030 @@ public class DisplayCaptureManager implements ImageReader.OnImageAvailableListen
         }
     }
 
+    // Buffer of the most recently published frame. Prefer acquireLatestFrame, this one may be
+    // overwritten while it is read once newer frames have been published.
     public ByteBuffer getByteBuffer() {
-        return byteBuffer;
+        return framePool != null ? framePool.getLatestBuffer() : null;
     }
 
-    private void initializeEGL() {
-        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
-        int[] version = new int[2];
-        EGL14.eglInitialize(eglDisplay, version, 0, version, 1);
-        
-        int[] attribList = {
-            EGL14.EGL_RED_SIZE, 8,
-            EGL14.EGL_GREEN_SIZE, 8,
-            EGL14.EGL_BLUE_SIZE, 8,
-            EGL14.EGL_ALPHA_SIZE, 8,
-            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-            EGL14.EGL_NONE
-        };
-        
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] numConfigs = new int[1];
-        EGL14.eglChooseConfig(eglDisplay, attribList, 0, configs, 0, 1, numConfigs, 0);
-        
-        int[] contextAttribs = {
-            EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-            EGL14.EGL_NONE
-        };
-        eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
-        
-        // Create surface for encoder
-        eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], encoderSurface, new int[]{EGL14.EGL_NONE}, 0);
-        
-        // Make current
-        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
-            throw new RuntimeException("eglMakeCurrent failed");
+    public int getFrameBufferCount() {
+        return framePool != null ? framePool.getSlotCount() : 0;
+    }
+
+    // Slot buffers never move, so callers can resolve their addresses once per capture
+    public ByteBuffer getFrameBuffer(int slot) {
+        return framePool != null ? framePool.getBuffer(slot) : null;
+    }
+
+    // Pins the latest complete frame; returns FramePool.NONE or (sequence << 8 | slot)
+    public long acquireLatestFrame() {
+        // Frames published from here on need a new message
+        notificationPending.set(false);
+        FramePool pool = framePool;
+        long frame = pool != null ? pool.acquireLatest() : FramePool.NONE;
+        if (frame != FramePool.NONE) {
+            long sequence = FramePool.sequenceOf(frame);
+            if (sequence == notifiedSequence && sequence != acquiredSequence) {
+                metrics.unityNotify.recordNanos(System.nanoTime() - notifiedTimeNs);
+                acquiredSequence = sequence;
+            }
         }
-        
-        // Create and setup texture for external OES
-        int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-        textureId = textures[0];
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        
-        // Initialize shaders and buffers
-        initializeShaders();
+        return frame;
+    }
+
+    private void notifyNewFrame(long sequence) {
+        notifiedTimeNs = System.nanoTime();
+        notifiedSequence = sequence;
+
+        int mode = notificationMode;
+        if (mode == NOTIFY_POLL) return;
+        // Unity picks up the latest frame when it handles the queued message, so one is enough
+        if (mode == NOTIFY_COALESCED && !notificationPending.compareAndSet(false, true)) {
+            coalescedNotifications.incrementAndGet();
+            return;
+        }
+        unityInterface.OnNewFrameAvailable();
+    }
+
+    /**
+     * NOTIFY_EVERY_FRAME sends OnNewFrameAvailable for every published frame, NOTIFY_COALESCED
+     * only when no message is still waiting for Unity to acquire a frame, and NOTIFY_POLL never,
+     * leaving Unity to compare getLatestFrameSequence against the last frame it uploaded.
+     */
+    public void setNotificationMode(int mode) {
+        notificationMode = mode;
+        notificationPending.set(false);
+    }
+
+    // Notifications skipped because an earlier one was still pending
+    public long getCoalescedNotifications() {
+        return coalescedNotifications.get();
+    }
+
+    public void releaseFrame(int slot) {
+        FramePool pool = framePool;
+        if (pool != null)
+            pool.release(slot);
+    }
+
+    // Takes effect the next time the ImageReader is created
+    public void setMaxHeldFrames(int count) {
+        maxHeldFrames = Math.max(0, count);
+    }
+
+    // Unity can turn off the packed copy and OnNewFrameAvailable when it does not read frames
+    public void setDeliverPackedFrames(boolean deliver) {
+        deliverPackedFrames = deliver;
+    }
+
+    // Images skipped because frame receivers still held all of them
+    public long getDroppedImages() {
+        return droppedImages;
+    }
+
+    public long getLatestFrameSequence() {
+        FramePool pool = framePool;
+        return pool != null ? pool.getLatestSequence() : 0;
+    }
+
+    private void addLightingReceiver(IDisplayCaptureReceiver receiver) {
+        addReceiver(receiver, lightingRateHz, CaptureSubscription.TIER_FULL, receiver.getPixelFormat());
+    }
+
+    // Caps the frame rate of the lighting receivers, e.g. 5 Hz next to a full rate preview; 0 for every frame
+    public void setLightingRate(float maxRateHz) {
+        lightingRateHz = maxRateHz;
+        IDisplayCaptureReceiver[] lighting = { luminanceStatistics, sphericalHarmonics, cubemapAccumulator };
+        for (IDisplayCaptureReceiver receiver : lighting) {
+            CaptureSubscription subscription = receiver != null ? dispatcher.find(receiver) : null;
+            if (subscription != null)
+                subscription.setMaxRate(maxRateHz);
+        }
+    }
+
+    /**
+     * mode is one of the FramePacer.MODE constants. FIXED processes frames at maxRateHz, ON_DEMAND
+     * only the frame after each requestFrame, ADAPTIVE as many as processing keeps up with, up to
+     * maxRateHz if that is above 0. Skipped frames are dropped before any copy or readback; while
+     * recording they are still encoded.
+     */
+    public void setFramePacing(int mode, float maxRateHz) {
+        pacer.setMode(mode, maxRateHz);
+    }
+
+    public void requestFrame() {
+        pacer.requestFrame();
+    }
+
+    // Rate of the frames the pacer lets through
+    public float getEffectiveFrameRate() {
+        return pacer.getEffectiveRate();
+    }
+
+    public float getFrameJitterMs() {
+        return pacer.getJitterMs();
+    }
+
+    // Frames the pacer skipped
+    public long getPacerDroppedFrames() {
+        return pacer.getDroppedFrames();
+    }
+
+    // Starts computing luminance statistics for every frame; Unity reads the returned buffer directly
+    public ByteBuffer enableLuminanceStatistics(int gridWidth, int gridHeight, float topFraction, int sampleStep) {
+        disableLuminanceStatistics();
+        luminanceStatistics = new LuminanceStatistics(gridWidth, gridHeight, topFraction, sampleStep,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+        LuminanceStatistics statistics = luminanceStatistics;
+        addLightingReceiver(statistics);
+        return statistics.getResultBuffer();
+    }
+
+    public void disableLuminanceStatistics() {
+        LuminanceStatistics statistics = luminanceStatistics;
+        if (statistics == null) return;
+        luminanceStatistics = null;
+        captureHandler.post(() -> {
+            dispatcher.remove(statistics);
+            statistics.close();
+        });
+    }
+
+    // Called by Unity with the head pose the lighting stages project frames from
+    public void setCameraOrientation(float x, float y, float z, float w) {
+        cameraPose.setOrientation(x, y, z, w);
+    }
+
+    public void setCameraFieldOfView(float horizontalDegrees, float verticalDegrees) {
+        cameraPose.setFieldOfView(horizontalDegrees, verticalDegrees);
+    }
+
+    // Starts accumulating L2 ambient lighting from every frame; Unity reads the returned buffer directly
+    public ByteBuffer enableSphericalHarmonics(int binsPerEdge, int samplesPerAxis, float decaySeconds) {
+        disableSphericalHarmonics();
+        sphericalHarmonics = new SphericalHarmonicsAccumulator(cameraPose, binsPerEdge, samplesPerAxis, decaySeconds);
+        updateRowOrder();
+        SphericalHarmonicsAccumulator accumulator = sphericalHarmonics;
+        addLightingReceiver(accumulator);
+        return accumulator.getResultBuffer();
+    }
+
+    public void disableSphericalHarmonics() {
+        SphericalHarmonicsAccumulator accumulator = sphericalHarmonics;
+        if (accumulator == null) return;
+        sphericalHarmonics = null;
+        dispatcher.remove(accumulator);
+    }
+
+    public void resetSphericalHarmonics() {
+        SphericalHarmonicsAccumulator accumulator = sphericalHarmonics;
+        if (accumulator != null)
+            captureHandler.post(accumulator::reset);
+    }
+
+    // Starts stitching frames into an environment cubemap; Unity reads faces with getCubemapFace
+    public void enableCubemapAccumulator(int faceSize, float decayPerFrame, float maxWeight) {
+        disableCubemapAccumulator();
+        cubemapAccumulator = new CubemapAccumulator(cameraPose, faceSize, decayPerFrame, maxWeight,
+            Math.min(CubeFaces.COUNT, Runtime.getRuntime().availableProcessors()));
+        updateRowOrder();
+        CubemapAccumulator accumulator = cubemapAccumulator;
+        addLightingReceiver(accumulator);
+    }
+
+    public void disableCubemapAccumulator() {
+        CubemapAccumulator accumulator = cubemapAccumulator;
+        if (accumulator == null) return;
+        cubemapAccumulator = null;
+        captureHandler.post(() -> {
+            dispatcher.remove(accumulator);
+            accumulator.close();
+        });
+    }
+
+    public ByteBuffer getCubemapFace(int face) {
+        CubemapAccumulator accumulator = cubemapAccumulator;
+        return accumulator != null ? accumulator.getFaceBuffer(face) : null;
+    }
+
+    // Odd while the faces are being written, see CubemapAccumulator.getSequenceBuffer
+    public ByteBuffer getCubemapSequence() {
+        CubemapAccumulator accumulator = cubemapAccumulator;
+        return accumulator != null ? accumulator.getSequenceBuffer() : null;
+    }
+
+    // Tiles of the face changed since the last call, 0 when Unity can skip uploading it
+    public long takeCubemapDirtyTiles(int face) {
+        CubemapAccumulator accumulator = cubemapAccumulator;
+        return accumulator != null ? accumulator.takeDirtyTiles(face) : 0L;
+    }
+
+    /**
+     * Skips frames that barely differ from the last delivered one, before the packed copy,
+     * receivers and the Unity notification. Receivers implementing IDisplayCaptureTileReceiver
+     * are told which tiles changed.
+     */
+    public void enableChangeDetection(int tilesX, int tilesY, int samplesPerTileAxis, float threshold, int maxSkippedFrames) {
+        processor.setChangeDetector(new FrameChangeDetector(tilesX, tilesY, samplesPerTileAxis, threshold, maxSkippedFrames));
+    }
+
+    public void disableChangeDetection() {
+        processor.setChangeDetector(null);
+    }
+
+    public long getSkippedFrames() {
+        FrameChangeDetector detector = processor.getChangeDetector();
+        return detector != null ? detector.getFramesSkipped() : 0;
+    }
+
+    public long getSkippedBytes() {
+        FrameChangeDetector detector = processor.getChangeDetector();
+        return detector != null ? detector.getBytesSkipped() : 0;
+    }
+
+    // Both capture paths deliver rows bottom first unless the output is flipped
+    private void updateRowOrder() {
+        boolean firstRowIsTop = outputFlipY;
+        dispatcher.setFirstRowIsTop(firstRowIsTop);
+        JpegStreamReceiver jpegReceiver = jpegStreamReceiver;
+        if (jpegReceiver != null)
+            jpegReceiver.setFirstRowIsTop(firstRowIsTop);
+        SphericalHarmonicsAccumulator accumulator = sphericalHarmonics;
+        if (accumulator != null)
+            accumulator.setFirstRowIsTop(firstRowIsTop);
+        CubemapAccumulator cubemap = cubemapAccumulator;
+        if (cubemap != null)
+            cubemap.setFirstRowIsTop(firstRowIsTop);
+    }
+
+    /**
+     * Orients the frame Unity and receivers get, and the recording, in the same draw that copies
+     * it. rotationDegrees turns the image clockwise in steps of 90 at the same output size; the
+     * crop region is normalized from the top left. Sessions captured through the ImageReader
+     * skip the GL pass and only honour flipY. Lighting receivers assume an unrotated, uncropped frame.
+     */
+    public void setOutputOrientation(boolean flipX, boolean flipY, int rotationDegrees,
+                                     float cropX, float cropY, float cropWidth, float cropHeight) {
+        frameStage.setOrientation(flipX, flipY, rotationDegrees, cropX, cropY, cropWidth, cropHeight);
+        encoderStage.setOrientation(flipX, flipY, rotationDegrees, cropX, cropY, cropWidth, cropHeight);
+        outputFlipY = flipY;
+        updateRowOrder();
+    }
+
+    /**
+     * Adjusts the colors of every frame that is read back (Unity's, the receivers' and the scaled
+     * targets') in the GL pass: exposureEv stops of exposure and per-channel white balance gains
+     * in linear light, then encoded as one of the ColorTransform.ENCODING constants. The
+     * recording keeps the colors as captured. Sessions captured through the ImageReader are not
+     * adjusted.
+     */
+    public void setColorPipeline(float exposureEv, float gainR, float gainG, float gainB, int encoding) {
+        ColorTransform transform = new ColorTransform(exposureEv, gainR, gainG, gainB, encoding);
+        // An identity transform would only keep the frame from being drawn straight into the encoder
+        frameStage.setColorTransform(transform.isIdentity() ? null : transform);
+    }
+
+    public void resetColorPipeline() {
+        frameStage.setColorTransform(null);
+    }
+
+    // Average GPU time of each render stage, or "unavailable" without timer query support
+    public String getRenderStageTimes() {
+        return pipeline.getStageTimes();
+    }
+
+    /**
+     * Sets up the next recording. codec is EncoderProfile.CODEC_AVC or CODEC_HEVC, bitrateMode one
+     * of the EncoderProfile.BITRATE_MODE constants; a width or height of 0 encodes at the capture size.
+     */
+    public void setEncoderProfile(int codec, int encodeWidth, int encodeHeight, int bitrate, int bitrateMode,
+                                  int frameRate, float keyFrameIntervalSeconds) {
+        EncoderProfile profile = new EncoderProfile()
+            .setCodec(codec)
+            .setSize(encodeWidth, encodeHeight)
+            .setBitrate(bitrate, bitrateMode)
+            .setFrameRate(frameRate)
+            .setKeyFrameInterval(keyFrameIntervalSeconds);
+        EncoderProfile current = encoderProfile;
+        profile.setAdaptiveBitrate(current.getMinAdaptiveBitrate(), current.getMaxEncoderBacklog());
+        encoderProfile = profile;
+    }
+
+    /**
+     * Keeps the last encoded seconds in memory without writing a file, so saveReplay can write
+     * them out on demand. Starts capture and the encoder if they are not running; while a file
+     * recording is running the replay attaches to it instead.
+     */
+    public void startReplayBuffer(int maxSeconds, int capacityBytes) {
+        ReplayBuffer previous = replayBuffer;
+        if (previous != null)
+            previous.close();
+        // Slack for frames above the nominal rate
+        int maxSamples = maxSeconds * encoderProfile.getFrameRate() * 2;
+        replayBuffer = new ReplayBuffer(capacityBytes, maxSamples);
+
+        if (isEncoding) {
+            MediaCodec codec = mediaCodec;
+            ReplayBuffer replay = replayBuffer;
+            if (codec != null)
+                captureHandler.post(() -> {
+                    // The codec config was emitted long ago, take it from the current output format
+                    try {
+                        replay.setFormat(codec.getOutputFormat());
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Encoder stopped before the replay buffer attached");
+                    }
+                });
+            return;
+        }
+        // A recording waiting for the capture to start keeps its file
+        if (!requestEncoding)
+            recordToFile = false;
+        if (isCapturing) {
+            startEncoding();
+            return;
+        }
+        requestEncoding = true;
+        requestCapture();
+    }
+
+    public void stopReplayBuffer() {
+        ReplayBuffer replay = replayBuffer;
+        if (replay == null) return;
+        replayBuffer = null;
+        replay.close();
+        if (isEncoding && !recordToFile && encodedStream == null)
+            stopEncoder();
+    }
+
+    // Writes the last seconds of the replay buffer to a new file, answering with OnReplaySaved or OnReplayFailed
+    public boolean saveReplay(float seconds) {
+        ReplayBuffer replay = replayBuffer;
+        if (replay == null) return false;
+        String path = resolveVideoPath(timestampedFileName("mixedworld_replay_"));
+        return replay.save(seconds, path, new ReplayBuffer.SaveCallback() {
+            @Override
+            public void onSaved(String savedPath) {
+                unityInterface.OnReplaySaved(savedPath);
+            }
+
+            @Override
+            public void onFailed(String failedPath, Exception e) {
+                unityInterface.OnReplayFailed(failedPath);
+            }
+        });
+    }
+
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(parameters);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not request a sync frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes effect on the next recording. With segmentSeconds above 0 the recording is split into
+     * files of about that length at keyframes, keeping finished ones up to retentionBytes in total
+     * (0 keeps all). Fragmented files stay playable while being written; H.264 only.
+     */
+    public void setSegmentedRecording(float segmentSeconds, long retentionBytes, boolean fragmented) {
+        this.segmentSeconds = segmentSeconds;
+        segmentRetentionBytes = retentionBytes;
+        fragmentedRecording = fragmented;
+    }
+
+    // Writer queue and latency figures for the current recording, empty when not recording to a file
+    public String getMuxerStats() {
+        MuxerWriter writer = muxerWriter;
+        return writer != null ? writer.getStats() : "";
+    }
+
+    // One line of per-stage latencies (count/p50/p99/max in ms), frame rate, drops and queue occupancy
+    public String getMetricsSnapshot() {
+        return metrics.snapshot(metricsGauges());
+    }
+
+    private String metricsGauges() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("readerDrops=").append(droppedImages)
+            .append(" coalesced=").append(coalescedNotifications.get());
+        if (pacer.getMode() != FramePacer.MODE_EVERY_FRAME)
+            builder.append(" pacedHz=").append(String.format(Locale.US, "%.1f", pacer.getEffectiveRate()))
+                .append(" pacedJitterMs=").append(String.format(Locale.US, "%.2f", pacer.getJitterMs()))
+                .append(" pacedDrops=").append(pacer.getDroppedFrames())
+                .append(" processMs=").append(String.format(Locale.US, "%.2f", pacer.getAverageProcessingMs()));
+        FrameChangeDetector detector = processor.getChangeDetector();
+        if (detector != null)
+            builder.append(" unchanged=").append(detector.getFramesSkipped());
+        PixelBufferReadback readback = pixelBufferReadback;
+        if (readback != null)
+            builder.append(" readbackDrops=").append(readback.getDroppedFrames());
+        EncoderBitrateController controller = bitrateController;
+        if (controller != null)
+            builder.append(" encoderBacklog=").append(controller.getBacklog())
+                .append(" encoderSkips=").append(controller.getSkippedFrames())
+                .append(" encoderResyncs=").append(controller.getResyncs())
+                .append(" encoderInMs=").append(String.format(Locale.US, "%.1f", controller.getAverageInputIntervalNs() / 1e6))
+                .append(" encoderOutMs=").append(String.format(Locale.US, "%.1f", controller.getAverageOutputIntervalNs() / 1e6));
+        MuxerWriter writer = muxerWriter;
+        if (writer != null)
+            builder.append(" muxerQueue=").append(writer.getQueueDepth()).append('/').append(MUXER_QUEUE_DEPTH)
+                .append(" muxerDrops=").append(writer.getDroppedNonReference() + writer.getDroppedReference());
+        ReplayBuffer replay = replayBuffer;
+        if (replay != null)
+            builder.append(" replayMs=").append(replay.getBufferedDurationUs() / 1000);
+        FrameStreamServer stream = encodedStream != null ? encodedStream : jpegStream;
+        if (stream != null)
+            builder.append(" streamClients=").append(stream.getClientCount())
+                .append(" streamDrops=").append(stream.getDroppedUnits());
+        return builder.toString();
+    }
+
+    public void resetMetrics() {
+        metrics.reset();
+        pacer.resetStatistics();
+    }
+
+    // Appends a snapshot line to fileName in the app's external files directory every intervalSeconds
+    public void startMetricsDump(String fileName, float intervalSeconds) {
+        File outputDir = UnityPlayer.currentActivity.getExternalFilesDir(null);
+        String path = new File(outputDir, fileName).getAbsolutePath();
+        long intervalMs = Math.max(100, (long) (intervalSeconds * 1000));
+        metrics.startFileDump(path, intervalMs, this::getMetricsSnapshot, message -> Log.w(TAG, message));
+        Log.i(TAG, "Dumping capture metrics to " + path + " every " + intervalMs + " ms");
+    }
+
+    public void stopMetricsDump() {
+        metrics.stopFileDump();
+    }
+
+    /**
+     * Records frames with their timestamps and camera pose into fileName in the app's external
+     * files directory, at most maxRateHz a second (0 for every frame) and at the capture size
+     * divided by tier. Writing runs on its own thread behind a short queue. Replay the file with
+     * TraceReplay on a desktop JVM.
+     */
+    public synchronized boolean startTraceRecording(String fileName, float maxRateHz, int tier, boolean compress) {
+        stopTraceRecording();
+        File outputDir = UnityPlayer.currentActivity.getExternalFilesDir(null);
+        String path = new File(outputDir, fileName).getAbsolutePath();
+        try {
+            traceWriter = new FrameTraceWriter(path, compress, outputFlipY, cameraPose);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create frame trace " + path, e);
+            return false;
+        }
+        addQueuedReceiver(traceWriter, 4, maxRateHz, tier, FrameFormat.RGBA);
+        Log.i(TAG, "Recording frame trace to " + path);
+        return true;
+    }
+
+    public synchronized void stopTraceRecording() {
+        FrameTraceWriter writer = traceWriter;
+        if (writer == null) return;
+        traceWriter = null;
+        removeQueuedReceiver(writer);
+        try {
+            // Frames still queued for the writer are dropped once it is closed
+            writer.close();
+            Log.i(TAG, "Frame trace finished: " + writer.getFramesWritten() + " frames, "
+                + writer.getBytesWritten() / 1024 + " KB");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not finish frame trace", e);
+        }
+    }
+
+    public long getTraceFramesWritten() {
+        FrameTraceWriter writer = traceWriter;
+        return writer != null ? writer.getFramesWritten() : 0;
+    }
+
+    /**
+     * Serves the capture to companion tools on 127.0.0.1:port, reachable from a laptop after
+     * adb forward tcp:port tcp:port. STREAM_ENCODED sends the encoder's elementary stream and starts
+     * the encoder without a file if nothing is recording; STREAM_MJPEG sends JPEG frames at the
+     * capture size divided by tier, at most maxRateHz a second. Each client has a queue of
+     * queueDepth units and loses frames when it falls behind; capture never waits for a client.
+     */
+    public synchronized boolean startStreamServer(int port, int format, float maxRateHz, int tier,
+                                                  int jpegQuality, int queueDepth) {
+        stopStreamServer();
+        try {
+            if (format == STREAM_MJPEG) {
+                jpegStream = new FrameStreamServer(port, queueDepth, false, null);
+                jpegStreamReceiver = new JpegStreamReceiver(jpegStream, jpegQuality, outputFlipY);
+                // A single slot: a preview wants the newest frame, not a backlog
+                addQueuedReceiver(jpegStreamReceiver, 1, maxRateHz, tier, FrameFormat.RGBA);
+                Log.i(TAG, "Streaming MJPEG on port " + jpegStream.getPort());
+                return true;
+            }
+            FrameStreamServer stream = new FrameStreamServer(port, queueDepth, true,
+                () -> captureHandler.post(() -> {
+                    if (mediaCodec != null)
+                        requestSyncFrame(mediaCodec);
+                }));
+            encodedStream = stream;
+            Log.i(TAG, "Streaming encoded video on port " + stream.getPort());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open stream server on port " + port, e);
+            return false;
+        }
+
+        if (isEncoding) {
+            captureHandler.post(() -> {
+                // The codec config went out when the encoder started, take it from the output format
+                try {
+                    if (mediaCodec != null)
+                        encodedStream.setConfig(getStreamConfig(mediaCodec.getOutputFormat()));
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Encoder stopped before the stream attached");
+                }
+            });
+            return true;
+        }
+        // A recording waiting for the capture to start keeps its file
+        if (!requestEncoding)
+            recordToFile = false;
+        if (isCapturing) {
+            startEncoding();
+            return true;
+        }
+        requestEncoding = true;
+        requestCapture();
+        return true;
+    }
+
+    public synchronized void stopStreamServer() {
+        FrameStreamServer stream = encodedStream;
+        if (stream != null) {
+            encodedStream = null;
+            stream.close();
+            if (isEncoding && !recordToFile && replayBuffer == null)
+                stopEncoder();
+        }
+        stream = jpegStream;
+        if (stream != null) {
+            removeQueuedReceiver(jpegStreamReceiver);
+            jpegStream = null;
+            jpegStreamReceiver = null;
+            stream.close();
+        }
+    }
+
+    public int getStreamClientCount() {
+        FrameStreamServer stream = encodedStream != null ? encodedStream : jpegStream;
+        return stream != null ? stream.getClientCount() : 0;
+    }
+
+    public long getStreamDroppedUnits() {
+        FrameStreamServer stream = encodedStream != null ? encodedStream : jpegStream;
+        return stream != null ? stream.getDroppedUnits() : 0;
+    }
+
+    // Parameter sets from the encoder output format, in the Annex B form the stream is in
+    private static ByteBuffer getStreamConfig(MediaFormat format) {
+        ByteBuffer first = format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null;
+        ByteBuffer second = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+        int size = (first != null ? first.remaining() : 0) + (second != null ? second.remaining() : 0);
+        ByteBuffer config = ByteBuffer.allocate(size);
+        if (first != null)
+            config.put(first.duplicate());
+        if (second != null)
+            config.put(second.duplicate());
+        config.flip();
+        return config;
+    }
+
+    /**
+     * Sends a line of text with the metrics snapshot and the lighting results every intervalSeconds
+     * to clients on 127.0.0.1:port, e.g. nc 127.0.0.1 port after adb forward.
+     */
+    public synchronized boolean startStatsStream(int port, float intervalSeconds) {
+        stopStatsStream();
+        FrameStreamServer stream;
+        try {
+            stream = new FrameStreamServer(port, 16, false, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open stats stream on port " + port, e);
+            return false;
+        }
+        statsStream = stream;
+        long intervalMs = Math.max(100, (long) (intervalSeconds * 1000));
+        captureHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (statsStream != stream) return;
+                if (stream.getClientCount() > 0) {
+                    String line = System.currentTimeMillis() + " " + getMetricsSnapshot() + getLightingStats() + "\n";
+                    stream.send(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)), true);
+                }
+                captureHandler.postDelayed(this, intervalMs);
+            }
+        }, intervalMs);
+        Log.i(TAG, "Streaming statistics on port " + stream.getPort() + " every " + intervalMs + " ms");
+        return true;
+    }
+
+    public synchronized void stopStatsStream() {
+        FrameStreamServer stream = statsStream;
+        if (stream == null) return;
+        statsStream = null;
+        stream.close();
+    }
+
+    private String getLightingStats() {
+        StringBuilder builder = new StringBuilder();
+        LuminanceStatistics statistics = luminanceStatistics;
+        if (statistics != null) {
+            float[] color = statistics.getTopMeanColor();
+            builder.append(String.format(Locale.US, " luminance=%.4f variance=%.4f top=%.3f/%.3f/%.3f",
+                statistics.getMeanLuminance(), statistics.getLuminanceVariance(), color[0], color[1], color[2]));
+        }
+        SphericalHarmonicsAccumulator harmonics = sphericalHarmonics;
+        if (harmonics != null) {
+            float[] coefficients = new float[27];
+            harmonics.getCoefficients(coefficients);
+            builder.append(String.format(Locale.US, " harmonicsCoverage=%.2f dc=%.4f/%.4f/%.4f",
+                harmonics.getCoverage(), coefficients[0], coefficients[9], coefficients[18]));
+        }
+        CubemapAccumulator cubemap = cubemapAccumulator;
+        if (cubemap != null)
+            builder.append(" cubemapFrames=").append(cubemap.getFramesAccumulated());
+        return builder.toString();
+    }
+
+    // minBitrate of 0 keeps the bitrate fixed while recording
+    public void setAdaptiveBitrate(int minBitrate, int maxBacklog) {
+        encoderProfile.setAdaptiveBitrate(minBitrate, maxBacklog);
+    }
+
+    public EncoderProfile getEncoderProfile() {
+        return encoderProfile;
+    }
+
+    public int getEncoderBitrate() {
+        EncoderBitrateController controller = bitrateController;
+        return controller != null ? controller.getCurrentBitrate() : encoderProfile.getBitrate();
+    }
+
+    public long getEncoderBacklog() {
+        EncoderBitrateController controller = bitrateController;
+        return controller != null ? controller.getBacklog() : 0;
+    }
+
+    // Frames not handed to the encoder because it was falling behind
+    public long getEncoderSkippedFrames() {
+        EncoderBitrateController controller = bitrateController;
+        return controller != null ? controller.getSkippedFrames() : 0;
+    }
+
+    // Milliseconds from startEncoding to the first encoded frame of the current or last recording, 0 until then
+    public float getTimeToFirstEncodedFrameMs() {
+        return timeToFirstFrameNs / 1000000f;
+    }
+
+    public boolean wasWarmStart() {
+        return warmStart;
+    }
+
+    // Takes effect on the next startEncoding
+    public void setReadbackRingDepth(int depth) {
+        if (depth == 1 || depth < 0 || depth > 4) {
+            Log.w(TAG, "Unsupported readback ring depth " + depth + ", using synchronous readback");
+            depth = 0;
+        }
+        readbackRingDepth = depth;
+    }
+
+    public int getReadbackRingDepth() {
+        return readbackRingDepth;
+    }
+
+    // Frames by which delivery to receivers trails the encoder while every frame is read back,
+    // 0 when reading back synchronously; paced frames are waited for and arrive without delay
+    public int getReadbackLatencyFrames() {
+        PixelBufferReadback readback = pixelBufferReadback;
+        return readback != null ? readback.getLatencyFrames() : 0;
+    }
+
+    public long getReadbackIssueTimeNs() {
+        PixelBufferReadback readback = pixelBufferReadback;
+        return readback != null ? readback.getAverageIssueTimeNs() : lastSyncReadbackTimeNs;
+    }
+
+    public long getReadbackMapTimeNs() {
+        PixelBufferReadback readback = pixelBufferReadback;
+        return readback != null ? readback.getAverageMapTimeNs() : 0;
+    }
+
+    public long getReadbackDroppedFrames() {
+        PixelBufferReadback readback = pixelBufferReadback;
+        return readback != null ? readback.getDroppedFrames() : 0;
+    }
+
+    // Per-session GL state; the context, programs and capture texture come from the pipeline
+    private void startRenderSession() {
+        pipeline.initialize();
+        pipeline.makeCurrent();
+        createReadbackFramebuffer();
+
+        if (readbackRingDepth >= 2 && pipeline.getGlesVersion() >= 3) {
+            pixelBufferReadback = new PixelBufferReadback(width, height, readbackRingDepth);
+            pixelBufferReadback.initialize();
+            Log.i(TAG, "Using PBO readback, " + pixelBufferReadback.getLatencyFrames() + " frame(s) latency");
+        }
+
+        pipeline.getSurfaceTexture().setOnFrameAvailableListener(texture -> {
+            try {
+                copyFrame();
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing frame", e);
+            }
+        }, captureHandler);
+        renderSessionActive = true;
+    }
+
+    // Capture-sized color target for the frame Unity reads, unless the encoder surface has the same size
+    private void createReadbackFramebuffer() {
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        readbackTexture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, readbackTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, ids, 0);
+        readbackFramebuffer = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, readbackFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+            GLES20.GL_TEXTURE_2D, readbackTexture, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        Log.i(TAG, "Reading back at " + width + "x" + height);
     }
 
     private void copyFrame() {
-        // Make sure we're using our EGL context
-        EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
+        // A frame can still arrive after the session ended
+        if (!renderSessionActive) return;
+        pipeline.makeCurrent();
         
         // Update texture with new frame
-        inputSurfaceTexture.updateTexImage();
-        
+        pipeline.updateFrame();
+        long frameTimestamp = pipeline.getFrameTimestamp();
+        long frameNumber = drawnFrames++;
+        // Everything read back from this frame carries its capture time, however late it lands
+        long captureTime = frameTimestamp > 0 ? frameTimestamp : System.nanoTime();
+
+        // Frames the pacer skips still go to the encoder, but nothing is read back or dispatched
+        boolean encoding = pipeline.hasOutput();
+        boolean process = processor.arrive(captureTime);
+
+        // The full RGBA frame is only read back when Unity or a due full-size RGBA receiver wants it;
+        // due and delivered are both judged by capture time, scaled tiers are rendered on their own
+        int formats = process ? dispatcher.dueFormats(captureTime, 0) : 0;
+        boolean readRgba = process && (deliverPackedFrames || (formats & (1 << FrameFormat.RGBA)) != 0);
+
+        // Draw at capture size, straight into the encoder surface only when a recording at that size
+        // is attached and no color adjustment has to be kept out of it
+        boolean separateReadback = !encoding || encoderWidth != width || encoderHeight != height
+            || frameStage.getColorTransform() != null;
+        if (separateReadback) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, readbackFramebuffer);
+        }
+        GLES20.glViewport(0, 0, width, height);
+
         // Clear the surface
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         
         // Draw the texture to the encoder surface
-        drawTexture();
-        byteBuffer.clear();
-        // Read pixels into the ImageReader buffer
-        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, byteBuffer);
-
-        long timestamp = System.nanoTime();
+        if (readRgba || !separateReadback) {
+            pipeline.draw(frameStage);
+        }
 
-        for(int i = 0; i < receivers.size(); i++) {
-            byteBuffer.rewind();
-            receivers.get(i).onNewImage(byteBuffer, width, height, timestamp);
+        long timestamp = captureTime;
+        long readbackStart = System.nanoTime();
+        boolean frameReady;
+        int slot = readRgba ? framePool.beginWrite() : -1;
+        ByteBuffer byteBuffer = slot >= 0 ? framePool.getBuffer(slot) : null;
+        if (byteBuffer == null) {
+            // Not wanted, or all slots pinned by readers; keep the encoder going and skip the readback
+            if (readRgba)
+                metrics.onFrameDropped();
+            frameReady = false;
+        }
+        else if (pixelBufferReadback != null) {
+            // Delivers the frame drawn (depth - 1) frames ago while every frame is read back,
+            // and a paced frame itself
+            frameReady = pixelBufferReadback.readback(byteBuffer, timestamp, frameNumber);
+            metrics.copy.recordNanos(System.nanoTime() - readbackStart);
+            timestamp = pixelBufferReadback.getDeliveredTimestamp();
+        }
+        else {
+            byteBuffer.clear();
+            // Read pixels into the ImageReader buffer
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, byteBuffer);
+            lastSyncReadbackTimeNs = System.nanoTime() - readbackStart;
+            metrics.copy.recordNanos(lastSyncReadbackTimeNs);
+            frameReady = true;
         }
 
-        unityInterface.OnNewFrameAvailable();
+        // The readback has already happened here, but receivers and the Unity upload can still be spared
+        if (frameReady && !processor.check(byteBuffer, width, height, width * 4, 4)) {
+            frameReady = false;
+        }
 
-        // Swap buffers
-        EGL14.eglSwapBuffers(eglDisplay, eglSurface);
-    }
-
-    private String vertexShader;
-    private String fragmentShader;
-    private int shaderProgram;
-    private FloatBuffer fullQuadCoordsBuffer;
-    private FloatBuffer fullQuadTexCoordsBuffer;
-
-    private void initializeShaders() {
-        vertexShader =
-            "attribute vec4 position;\n" +
-            "attribute vec2 texcoord;\n" +
-            "varying vec2 v_texcoord;\n" +
-            "void main() {\n" +
-            "    gl_Position = position;\n" +
-            "    // Flip vertically by inverting y-coordinates\n" +
-            "    v_texcoord = vec2(texcoord.x, 1.0 - texcoord.y);\n" +
-            "}\n";
-
-        fragmentShader =
-            "#extension GL_OES_EGL_image_external : require\n" +
-            "precision mediump float;\n" +
-            "uniform samplerExternalOES texture;\n" +
-            "varying vec2 v_texcoord;\n" +
-            "void main() {\n" +
-            "    gl_FragColor = texture2D(texture, v_texcoord);\n" +
-            "}\n";
-
-        shaderProgram = createProgram(vertexShader, fragmentShader);
-
-        // Full screen quad coordinates
-        float[] FULL_QUAD_COORDS = {
-            -1.0f, -1.0f,
-             1.0f, -1.0f,
-            -1.0f,  1.0f,
-             1.0f,  1.0f,
-        };
+        if (frameReady) {
+            long published = framePool.publish(slot);
+            processor.dispatch(byteBuffer, width, height, timestamp, false);
 
-        float[] FULL_QUAD_TEXCOORDS = {
-            0.0f, 0.0f,
-            1.0f, 0.0f,
-            0.0f, 1.0f,
-            1.0f, 1.0f,
-        };
+            notifyNewFrame(published);
+        }
+        else if (slot >= 0) {
+            framePool.abortWrite(slot);
+        }
 
-        fullQuadCoordsBuffer = ByteBuffer.allocateDirect(FULL_QUAD_COORDS.length * 4)
-            .order(ByteOrder.nativeOrder())
-            .asFloatBuffer()
-            .put(FULL_QUAD_COORDS);
-        fullQuadCoordsBuffer.position(0);
+        if (separateReadback) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        }
+        if (encoding && separateReadback) {
+            GLES20.glViewport(0, 0, encoderWidth, encoderHeight);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            pipeline.draw(encoderStage);
+        }
 
-        fullQuadTexCoordsBuffer = ByteBuffer.allocateDirect(FULL_QUAD_TEXCOORDS.length * 4)
-            .order(ByteOrder.nativeOrder())
-            .asFloatBuffer()
-            .put(FULL_QUAD_TEXCOORDS);
-        fullQuadTexCoordsBuffer.position(0);
-    }
+        if (process) {
+            renderRegionTargets(captureTime, frameNumber);
+            renderTierTargets(captureTime, frameNumber);
+        }
 
-    private void drawTexture() {
-        // Use the shader program
-        GLES20.glUseProgram(shaderProgram);
+        if ((formats & ~(1 << FrameFormat.RGBA)) != 0) {
+            renderPackedTargets(formats, captureTime, frameNumber);
+        }
+        if (process)
+            processor.finish();
+
+        // Swap buffers, unless the encoder is too far behind to take another frame
+        EncoderBitrateController controller = bitrateController;
+        if (encoding && (controller == null || controller.shouldSubmitFrame(System.nanoTime()))) {
+            pipeline.swapBuffers();
+            if (controller != null)
+                controller.onFrameSubmitted();
+        }
 
-        int posLocation = GLES20.glGetAttribLocation(shaderProgram, "position");
-        int texLocation = GLES20.glGetAttribLocation(shaderProgram, "texcoord");
-        
-        GLES20.glVertexAttribPointer(posLocation, 2, GLES20.GL_FLOAT, false, 0, fullQuadCoordsBuffer);
-        GLES20.glVertexAttribPointer(texLocation, 2, GLES20.GL_FLOAT, false, 0, fullQuadTexCoordsBuffer);
+        if (process && mirrorReader != null) {
+            renderMirror(captureTime);
+        }
+    }
 
-        GLES20.glEnableVertexAttribArray(posLocation);
-        GLES20.glEnableVertexAttribArray(texLocation);
-        
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    // Crops and scales on the GPU for the due region subscriptions, one render per distinct region
+    private void renderRegionTargets(long timestamp, long frameNumber) {
+        regions.clear();
+        dispatcher.collectRegions(regions);
+        boolean rendered = false;
+        for (int i = 0; i < regions.size(); i++) {
+            CaptureRegion region = regions.get(i);
+            if (!dispatcher.isDue(region, timestamp)) continue;
+            ScaledCaptureTarget target = regionTargets.get(region);
+            if (target == null) {
+                target = new ScaledCaptureTarget(region);
+                regionTargets.put(region, target);
+            }
+            if (!target.isInitialized()) {
+                target.initialize(pipeline.getGlesVersion() >= 3 ? readbackRingDepth : 0);
+            }
+            target.getStage().setColorTransform(frameStage.getColorTransform());
+            target.bind();
+            pipeline.draw(target.getStage());
+            if (target.read(timestamp, frameNumber)) {
+                dispatcher.dispatchRegion(region, target.getByteBuffer(), target.getDeliveredTimestamp(),
+                    processor.getDetector());
+            }
+            rendered = true;
+        }
+        if (rendered)
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // Targets of regions nobody subscribes to any more
+        if (regionTargets.size() > regions.size()) {
+            Iterator<Map.Entry<CaptureRegion, ScaledCaptureTarget>> targets = regionTargets.entrySet().iterator();
+            while (targets.hasNext()) {
+                Map.Entry<CaptureRegion, ScaledCaptureTarget> entry = targets.next();
+                if (regions.contains(entry.getKey())) continue;
+                ScaledCaptureTarget target = entry.getValue();
+                target.release();
+                pipeline.releaseStage(target.getStage());
+                targets.remove();
+            }
+        }
     }
 
-    // Helper method to create shader program
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        int program = GLES20.glCreateProgram();
-        GLES20.glAttachShader(program, vertexShader);
-        GLES20.glAttachShader(program, fragmentShader);
-        GLES20.glLinkProgram(program);
-        return program;
+    // Downscales on the GPU for the due subscriptions of each scaled tier, so none needs the full frame
+    private void renderTierTargets(long timestamp, long frameNumber) {
+        boolean rendered = false;
+        for (int tierIndex = 1; tierIndex < CaptureSubscription.TIER_COUNT; tierIndex++) {
+            if (dispatcher.dueFormats(timestamp, tierIndex) == 0) continue;
+            int tierWidth = width >> tierIndex;
+            int tierHeight = height >> tierIndex;
+            if (tierWidth == 0 || tierHeight == 0) continue;
+            ScaledCaptureTarget target = tierTargets[tierIndex];
+            if (target == null || target.getWidth() != tierWidth || target.getHeight() != tierHeight) {
+                if (target != null)
+                    target.release();
+                target = new ScaledCaptureTarget(tierWidth, tierHeight);
+                tierTargets[tierIndex] = target;
+            }
+            if (!target.isInitialized()) {
+                target.initialize(pipeline.getGlesVersion() >= 3 ? readbackRingDepth : 0);
+            }
+            // Tiers share the orientation and colors of the full frame
+            target.getStage().copyOrientation(frameStage);
+            target.getStage().setColorTransform(frameStage.getColorTransform());
+            target.bind();
+            pipeline.draw(target.getStage());
+            if (target.read(timestamp, frameNumber)) {
+                dispatcher.dispatchScaled(tierIndex, target.getByteBuffer(), tierWidth, tierHeight,
+                    target.getDeliveredTimestamp(), processor.getDetector());
+            }
+            rendered = true;
+        }
+        if (rendered)
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     }
 
-    private int loadShader(int type, String shaderCode) {
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
-        return shader;
+    private void renderPackedTargets(int formats, long timestamp, long frameNumber) {
+        for (int format = 0; format < FrameFormat.COUNT; format++) {
+            if (format == FrameFormat.RGBA || (formats & (1 << format)) == 0) continue;
+            FrameFormat frameFormat = getFrameFormat(format);
+            if (frameFormat == null) continue;
+            PackedFrameTarget target = packedTargets[format];
+            if (target == null || target.getFormat() != frameFormat) {
+                if (target != null)
+                    target.release();
+                target = new PackedFrameTarget(frameFormat);
+                packedTargets[format] = target;
+            }
+            if (!target.isInitialized()) {
+                target.initialize(pipeline.getGlesVersion() >= 3 ? readbackRingDepth : 0);
+            }
+            // Packed frames share the orientation and colors of the RGBA frame
+            target.getStage().copyOrientation(frameStage);
+            target.getStage().setColorTransform(frameStage.getColorTransform());
+            if (target.render(pipeline, timestamp, frameNumber)) {
+                dispatcher.dispatchPacked(frameFormat, target.getByteBuffer(), target.getDeliveredTimestamp(), processor.getDetector());
+            }
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     }
-    private void cleanupEGL() {
-        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
-            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
-            if (eglSurface != EGL14.EGL_NO_SURFACE) {
-                EGL14.eglDestroySurface(eglDisplay, eglSurface);
+
+    private void endRenderSession() {
+        renderSessionActive = false;
+        releaseMirror();
+        if (pipeline.isInitialized()) {
+            if (pipeline.getSurfaceTexture() != null)
+                pipeline.getSurfaceTexture().setOnFrameAvailableListener(null);
+            pipeline.makeCurrent();
+            if (pixelBufferReadback != null) {
+                pixelBufferReadback.release();
+                pixelBufferReadback = null;
             }
-            if (eglContext != EGL14.EGL_NO_CONTEXT) {
-                EGL14.eglDestroyContext(eglDisplay, eglContext);
+            if (readbackFramebuffer != 0) {
+                GLES20.glDeleteFramebuffers(1, new int[] { readbackFramebuffer }, 0);
+                GLES20.glDeleteTextures(1, new int[] { readbackTexture }, 0);
+                readbackFramebuffer = 0;
+                readbackTexture = 0;
             }
-            EGL14.eglTerminate(eglDisplay);
+            // Scaled targets keep their GL objects, the context outlives the session
+        }
+        detachEncoderSurface();
+    }
+
+    // Stops drawing into the encoder; the session keeps rendering the other targets
+    private void detachEncoderSurface() {
+        if (pipeline.isInitialized())
+            pipeline.detachOutput();
+        if (encoderSurface != null) {
+            encoderSurface.release();
+            encoderSurface = null;
         }
-        eglDisplay = EGL14.EGL_NO_DISPLAY;
-        eglContext = EGL14.EGL_NO_CONTEXT;
-        eglSurface = EGL14.EGL_NO_SURFACE;
     }
 
     private void init() {
         
         // Calculate the exact buffer size required (4 bytes per pixel for RGBA_8888)
         int bufferSize = width * height * 4;
-        if (byteBuffer == null) {
-            // Allocate a direct ByteBuffer for better performance
-            byteBuffer = ByteBuffer.allocateDirect(bufferSize);
-        }
-        if (reader == null) {
-            reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
-            reader.setOnImageAvailableListener(this, new Handler(Looper.getMainLooper()));
+        if (framePool == null) {
+            // Preallocate direct buffers so frames never allocate or tear under readers
+            framePool = new FramePool(FRAME_POOL_SLOTS, bufferSize);
+            notificationPending.set(false);
         }
     }
 
     private void cleanup() {
-        if (byteBuffer != null) {
-            byteBuffer.clear();
-            byteBuffer = null;
-        }
+        framePool = null;
         if (reader != null) {
             reader.close();  // Close the ImageReader
             reader = null;
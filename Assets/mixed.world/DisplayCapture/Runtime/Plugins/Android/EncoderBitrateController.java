@@ -0,0 +1,200 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Keeps the encoder from falling behind the capture.
+ *
+ * The render pass counts frames it submits to the encoder surface, the output callback counts
+ * frames coming out, and the difference is the number of frames in flight. Once per window of
+ * output frames the controller looks at the worst backlog and at the average spacing of outputs
+ * against that of the frames submitted over the same time. A virtual display only produces
+ * frames when the screen changes, so slow input alone says nothing about the encoder; only
+ * outputs spaced well beyond the inputs do. If frames are piling up or coming out slower than
+ * they go in it lowers the bitrate through setParameters, and
+ * after a few healthy windows it steps back up towards the profile bitrate. Piling up means a
+ * backlog above the one measured over the first window, which is how many frames this encoder
+ * keeps in flight when it keeps up. When the backlog reaches the hard limit, new frames are not
+ * submitted at all, which lowers the frame rate until the encoder catches up.
+ *
+ * Frames the encoder drops without output would keep the count up forever, so when nothing
+ * comes out for a few frame intervals while submission is held back, the frames still counted
+ * as in flight are written off and submission resumes.
+ */
+public class EncoderBitrateController {
+
+    private static final float DECREASE = 0.8f;
+    private static final float INCREASE = 1.1f;
+    private static final int HEALTHY_WINDOWS_BEFORE_INCREASE = 3;
+    // Frame intervals without output, while held back, after which the backlog is written off
+    private static final int STALL_TIMEOUT_INTERVALS = 8;
+
+    private final int targetBitrate;
+    private final int minBitrate;
+    private final long frameIntervalNs;
+    private final int maxBacklog;
+    private final int windowFrames;
+    private final long stallTimeoutNs;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong encoded = new AtomicLong();
+    private volatile int currentBitrate;
+    private volatile long skippedFrames;
+    private volatile long averageOutputIntervalNs;
+    private volatile long averageInputIntervalNs;
+    private volatile int adjustments;
+    private volatile int resyncs;
+    private volatile long lastOutputNs;
+    // Backlog above which a window counts as congested, -1 until the first window is measured
+    private volatile long congestedBacklog = -1;
+
+    // Only touched from the render pass
+    private long stallStartNs;
+    private int skippedInRow = 0;
+
+    // Only touched from the encoder output callback
+    private final Bundle parameters = new Bundle();
+    private int windowCount = 0;
+    private long windowStartNs = 0;
+    private long windowStartSubmitted = 0;
+    private long windowMaxBacklog = 0;
+    private long windowMinBacklog = Long.MAX_VALUE;
+    private int healthyWindows = 0;
+
+    public EncoderBitrateController(EncoderProfile profile) {
+        targetBitrate = profile.getBitrate();
+        minBitrate = Math.min(profile.getMinAdaptiveBitrate(), targetBitrate);
+        frameIntervalNs = 1000000000L / profile.getFrameRate();
+        maxBacklog = profile.getMaxEncoderBacklog();
+        windowFrames = profile.getFrameRate();
+        stallTimeoutNs = frameIntervalNs * STALL_TIMEOUT_INTERVALS;
+        currentBitrate = targetBitrate;
+    }
+
+    // Called before handing a frame to the encoder surface; false skips this frame
+    public boolean shouldSubmitFrame(long nowNs) {
+        if (getBacklog() < maxBacklog) {
+            skippedInRow = 0;
+            return true;
+        }
+        if (skippedInRow++ == 0)
+            stallStartNs = nowNs;
+        if (nowNs - Math.max(stallStartNs, lastOutputNs) >= stallTimeoutNs) {
+            // Nothing came out although nothing new went in, the missing frames were dropped
+            Log.w(TAG, "Encoder produced no output for " + (nowNs - stallStartNs) / 1000000
+                + " ms, writing off " + getBacklog() + " frame(s) in flight");
+            encoded.set(submitted.get());
+            resyncs++;
+            skippedInRow = 0;
+            return true;
+        }
+        skippedFrames++;
+        return false;
+    }
+
+    public void onFrameSubmitted() {
+        submitted.incrementAndGet();
+    }
+
+    // Called from the encoder output callback for every encoded frame
+    public void onFrameEncoded(MediaCodec codec, long nowNs) {
+        lastOutputNs = nowNs;
+        long count;
+        do {
+            count = encoded.get();
+            // A frame written off as dropped came out after all
+            if (count >= submitted.get()) break;
+        } while (!encoded.compareAndSet(count, count + 1));
+
+        long backlog = getBacklog();
+        windowMaxBacklog = Math.max(windowMaxBacklog, backlog);
+        windowMinBacklog = Math.min(windowMinBacklog, backlog);
+        if (windowCount++ == 0) {
+            windowStartNs = nowNs;
+            windowStartSubmitted = submitted.get();
+            return;
+        }
+        if (windowCount < windowFrames) return;
+
+        long averageInterval = (nowNs - windowStartNs) / (windowCount - 1);
+        averageOutputIntervalNs = averageInterval;
+        // Nothing submitted while a window comes out means the encoder is draining, not late
+        long submittedInWindow = submitted.get() - windowStartSubmitted;
+        long averageInputInterval = submittedInWindow > 0 ? (nowNs - windowStartNs) / submittedInWindow : 0;
+        averageInputIntervalNs = averageInputInterval;
+        if (congestedBacklog < 0) {
+            // Frames an encoder that keeps up still holds, plus one; always below the hard limit
+            congestedBacklog = Math.max(1, Math.min(maxBacklog - 1, windowMinBacklog + 1));
+        }
+        boolean late = submittedInWindow > 0 && averageInterval > averageInputInterval * 3 / 2;
+        boolean congested = windowMaxBacklog > congestedBacklog || late;
+        windowCount = 0;
+        windowMaxBacklog = 0;
+        windowMinBacklog = Long.MAX_VALUE;
+
+        int bitrate = currentBitrate;
+        if (congested) {
+            healthyWindows = 0;
+            bitrate = Math.max(minBitrate, (int) (bitrate * DECREASE));
+        }
+        else if (++healthyWindows >= HEALTHY_WINDOWS_BEFORE_INCREASE) {
+            healthyWindows = 0;
+            bitrate = Math.min(targetBitrate, (int) (bitrate * INCREASE));
+        }
+        if (bitrate != currentBitrate)
+            applyBitrate(codec, bitrate);
+    }
+
+    private void applyBitrate(MediaCodec codec, int bitrate) {
+        try {
+            parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            codec.setParameters(parameters);
+            currentBitrate = bitrate;
+            adjustments++;
+            Log.i(TAG, "Encoder bitrate set to " + bitrate);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not change encoder bitrate: " + e.getMessage());
+        }
+    }
+
+    public long getBacklog() {
+        return submitted.get() - encoded.get();
+    }
+
+    public int getCurrentBitrate() {
+        return currentBitrate;
+    }
+
+    // Frames not submitted to the encoder because it was too far behind
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    public long getAverageOutputIntervalNs() {
+        return averageOutputIntervalNs;
+    }
+
+    // Spacing of the frames submitted while the last window came out, 0 if none were
+    public long getAverageInputIntervalNs() {
+        return averageInputIntervalNs;
+    }
+
+    public int getAdjustments() {
+        return adjustments;
+    }
+
+    // Times the backlog was written off because the encoder stopped producing output
+    public int getResyncs() {
+        return resyncs;
+    }
+
+    public long getCongestedBacklog() {
+        return congestedBacklog;
+    }
+}
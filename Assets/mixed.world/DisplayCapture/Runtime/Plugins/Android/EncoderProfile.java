@@ -0,0 +1,169 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Recording settings for the MediaCodec encoder: codec, resolution, rate control and keyframe
+ * spacing.
+ *
+ * HEVC is only used when the device has an encoder for it at the requested size, and a bitrate
+ * mode the chosen encoder does not support is left to the encoder default, so a profile never
+ * fails to configure just because the headset lacks a feature. The defaults match what recording
+ * used before profiles existed.
+ */
+public class EncoderProfile {
+
+    public static final int CODEC_AVC = 0;
+    public static final int CODEC_HEVC = 1;
+
+    public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+
+    private int codec = CODEC_AVC;
+    // 0 encodes at the capture size
+    private int width = 0;
+    private int height = 0;
+    private int bitrate = 6000000;
+    private int bitrateMode = BITRATE_MODE_VBR;
+    // Only used in CQ mode, encoder specific scale
+    private int quality = 70;
+    private int frameRate = 30;
+    private float keyFrameIntervalSeconds = 1f;
+
+    // Lowest bitrate the adaptive controller may drop to, 0 disables adaptation
+    private int minAdaptiveBitrate = 1500000;
+    // Frames in flight in the encoder before new ones are skipped
+    private int maxEncoderBacklog = 4;
+
+    public EncoderProfile setCodec(int codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public EncoderProfile setSize(int width, int height) {
+        // Encoders want even dimensions
+        this.width = width & ~1;
+        this.height = height & ~1;
+        return this;
+    }
+
+    public EncoderProfile setBitrate(int bitrate, int bitrateMode) {
+        this.bitrate = bitrate;
+        this.bitrateMode = bitrateMode;
+        return this;
+    }
+
+    public EncoderProfile setQuality(int quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    public EncoderProfile setFrameRate(int frameRate) {
+        this.frameRate = Math.max(1, frameRate);
+        return this;
+    }
+
+    public EncoderProfile setKeyFrameInterval(float seconds) {
+        keyFrameIntervalSeconds = seconds;
+        return this;
+    }
+
+    public EncoderProfile setAdaptiveBitrate(int minBitrate, int maxBacklog) {
+        minAdaptiveBitrate = minBitrate;
+        maxEncoderBacklog = Math.max(1, maxBacklog);
+        return this;
+    }
+
+    public int getWidth(int captureWidth) {
+        return width > 0 ? width : captureWidth;
+    }
+
+    public int getHeight(int captureHeight) {
+        return height > 0 ? height : captureHeight;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getBitrateMode() {
+        return bitrateMode;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public float getKeyFrameInterval() {
+        return keyFrameIntervalSeconds;
+    }
+
+    public int getMinAdaptiveBitrate() {
+        return minAdaptiveBitrate;
+    }
+
+    public int getMaxEncoderBacklog() {
+        return maxEncoderBacklog;
+    }
+
+    // CQ leaves the bitrate to the encoder, so there is nothing to adapt
+    public boolean isAdaptive() {
+        return minAdaptiveBitrate > 0 && bitrateMode != BITRATE_MODE_CQ;
+    }
+
+    /**
+     * Picks an encoder for this profile and builds its format. Falls back from HEVC to AVC and
+     * drops unsupported settings rather than failing.
+     *
+     * @return the format; its mime type tells which codec was chosen
+     */
+    public MediaFormat createFormat(int encodeWidth, int encodeHeight) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        String mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+        if (codec == CODEC_HEVC) {
+            MediaFormat probe = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, encodeWidth, encodeHeight);
+            if (codecList.findEncoderForFormat(probe) != null)
+                mimeType = MediaFormat.MIMETYPE_VIDEO_HEVC;
+            else
+                Log.w(TAG, "No HEVC encoder for " + encodeWidth + "x" + encodeHeight + ", using AVC");
+        }
+
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, encodeWidth, encodeHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        if (Build.VERSION.SDK_INT >= 25)
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSeconds);
+        else
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, Math.max(1, Math.round(keyFrameIntervalSeconds)));
+
+        MediaCodecInfo.EncoderCapabilities capabilities = findEncoderCapabilities(codecList, format, mimeType);
+        if (capabilities == null || capabilities.isBitrateModeSupported(bitrateMode)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+        else {
+            Log.w(TAG, "Encoder does not support bitrate mode " + bitrateMode + ", using its default");
+        }
+        if (bitrateMode == BITRATE_MODE_CQ)
+            format.setInteger(MediaFormat.KEY_QUALITY, quality);
+        // Also required in CQ mode by some encoders
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        return format;
+    }
+
+    private static MediaCodecInfo.EncoderCapabilities findEncoderCapabilities(MediaCodecList codecList, MediaFormat format, String mimeType) {
+        String name = codecList.findEncoderForFormat(format);
+        if (name == null) return null;
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (info.isEncoder() && info.getName().equals(name))
+                return info.getCapabilitiesForType(mimeType).getEncoderCapabilities();
+        }
+        return null;
+    }
+}
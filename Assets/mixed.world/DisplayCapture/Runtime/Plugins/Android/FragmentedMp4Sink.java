@@ -0,0 +1,379 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Fragmented MP4 writer for H.264, so a recording is playable up to its last fragment even if it
+ * never gets closed.
+ *
+ * The file starts with an ftyp and a moov holding the avcC built from the encoder's csd-0/csd-1
+ * and no samples. Samples are then gathered, converted from Annex-B start codes to 4-byte
+ * length prefixes, and written out as one moof + mdat pair per fragment. A fragment ends at
+ * every keyframe or after the fragment duration, whichever comes first. Timestamps are in
+ * microseconds relative to the first sample; B-frames are not expected from the surface encoder.
+ */
+public class FragmentedMp4Sink implements SampleSink {
+
+    private static final int TIMESCALE = 1000000;
+    private static final int TRACK_ID = 1;
+    private static final long DEFAULT_DURATION_US = 33333;
+    // trun sample flags: sync sample, and non-sync sample depending on others
+    private static final int FLAGS_SYNC = 0x02000000;
+    private static final int FLAGS_NON_SYNC = 0x01010000;
+
+    private final String path;
+    private final long fragmentDurationUs;
+    private FileOutputStream stream;
+    private FileChannel channel;
+
+    private ByteBuffer header = ByteBuffer.allocate(16 * 1024).order(ByteOrder.BIG_ENDIAN);
+    private ByteBuffer payload = ByteBuffer.allocateDirect(1024 * 1024);
+    private final ByteBuffer[] output = new ByteBuffer[2];
+
+    private long[] sampleTimes = new long[64];
+    private int[] sampleSizes = new int[64];
+    private int[] sampleFlags = new int[64];
+    private int sampleCount = 0;
+    private int fragmentSequence = 0;
+    private long firstTimeUs = -1;
+    private long lastDurationUs = DEFAULT_DURATION_US;
+
+    public FragmentedMp4Sink(String path, long fragmentDurationUs) {
+        this.path = path;
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    @Override
+    public void start(MediaFormat format) throws IOException {
+        byte[][] parameterSets = new byte[2][];
+        collectParameterSets(format.getByteBuffer("csd-0"), parameterSets);
+        collectParameterSets(format.getByteBuffer("csd-1"), parameterSets);
+        byte[] sps = parameterSets[0];
+        byte[] pps = parameterSets[1];
+        if (sps == null || pps == null || sps.length < 4)
+            throw new IOException("Encoder format has no usable SPS/PPS for fragmented MP4");
+
+        stream = new FileOutputStream(path);
+        channel = stream.getChannel();
+        writeHeader(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+        Log.i(TAG, "Fragmented MP4 started: " + path);
+    }
+
+    @Override
+    public void write(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) return;
+        if (firstTimeUs < 0)
+            firstTimeUs = info.presentationTimeUs;
+        long time = info.presentationTimeUs - firstTimeUs;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        if (sampleCount > 0 && (keyFrame || time - sampleTimes[0] >= fragmentDurationUs))
+            flush(time);
+
+        if (sampleCount == sampleTimes.length) {
+            sampleTimes = Arrays.copyOf(sampleTimes, sampleCount * 2);
+            sampleSizes = Arrays.copyOf(sampleSizes, sampleCount * 2);
+            sampleFlags = Arrays.copyOf(sampleFlags, sampleCount * 2);
+        }
+        int start = payload.position();
+        appendAnnexB(data, info.offset, info.offset + info.size);
+        sampleTimes[sampleCount] = time;
+        sampleSizes[sampleCount] = payload.position() - start;
+        sampleFlags[sampleCount] = keyFrame ? FLAGS_SYNC : FLAGS_NON_SYNC;
+        sampleCount++;
+    }
+
+    @Override
+    public void stop() {
+        if (channel == null) return;
+        try {
+            if (sampleCount > 0)
+                flush(sampleTimes[sampleCount - 1] + lastDurationUs);
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Error finishing fragmented MP4: " + e.getMessage(), e);
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing fragmented MP4: " + e.getMessage(), e);
+        }
+        channel = null;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    // Writes the gathered samples as one moof + mdat; nextTimeUs closes the last sample's duration
+    private void flush(long nextTimeUs) throws IOException {
+        ensureHeaderCapacity(128 + sampleCount * 12);
+        header.clear();
+        int moof = beginBox("moof");
+        int mfhd = beginFullBox("mfhd", 0, 0);
+        header.putInt(++fragmentSequence);
+        endBox(mfhd);
+        int traf = beginBox("traf");
+        int tfhd = beginFullBox("tfhd", 0, 0x020000);
+        header.putInt(TRACK_ID);
+        endBox(tfhd);
+        int tfdt = beginFullBox("tfdt", 1, 0);
+        header.putLong(sampleTimes[0]);
+        endBox(tfdt);
+        // Data offset, duration, size and flags per sample
+        int trun = beginFullBox("trun", 0, 0x000701);
+        header.putInt(sampleCount);
+        int dataOffset = header.position();
+        header.putInt(0);
+        for (int i = 0; i < sampleCount; i++) {
+            long next = i + 1 < sampleCount ? sampleTimes[i + 1] : nextTimeUs;
+            long duration = Math.max(1, next - sampleTimes[i]);
+            header.putInt((int) duration);
+            header.putInt(sampleSizes[i]);
+            header.putInt(sampleFlags[i]);
+            lastDurationUs = duration;
+        }
+        endBox(trun);
+        endBox(traf);
+        endBox(moof);
+        int moofSize = header.position() - moof;
+        header.putInt(dataOffset, moofSize + 8);
+
+        header.putInt(8 + payload.position());
+        putType("mdat");
+
+        header.flip();
+        payload.flip();
+        writeFully(header, payload);
+        payload.clear();
+        sampleCount = 0;
+    }
+
+    private void writeHeader(int width, int height, byte[] sps, byte[] pps) throws IOException {
+        ensureHeaderCapacity(1024 + sps.length + pps.length);
+        header.clear();
+
+        int ftyp = beginBox("ftyp");
+        putType("isom");
+        header.putInt(0x200);
+        putType("isom");
+        putType("iso6");
+        putType("avc1");
+        putType("mp41");
+        endBox(ftyp);
+
+        int moov = beginBox("moov");
+        int mvhd = beginFullBox("mvhd", 0, 0);
+        header.putInt(0).putInt(0).putInt(1000).putInt(0);
+        header.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putInt(0).putInt(0);
+        putMatrix();
+        for (int i = 0; i < 6; i++)
+            header.putInt(0);
+        header.putInt(TRACK_ID + 1);
+        endBox(mvhd);
+
+        int trak = beginBox("trak");
+        int tkhd = beginFullBox("tkhd", 0, 0x000003);
+        header.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        header.putInt(0).putInt(0).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        putMatrix();
+        header.putInt(width << 16).putInt(height << 16);
+        endBox(tkhd);
+
+        int mdia = beginBox("mdia");
+        int mdhd = beginFullBox("mdhd", 0, 0);
+        // Language "und"
+        header.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55C4).putShort((short) 0);
+        endBox(mdhd);
+        int hdlr = beginFullBox("hdlr", 0, 0);
+        header.putInt(0);
+        putType("vide");
+        header.putInt(0).putInt(0).putInt(0);
+        header.put("VideoHandler".getBytes()).put((byte) 0);
+        endBox(hdlr);
+
+        int minf = beginBox("minf");
+        int vmhd = beginFullBox("vmhd", 0, 1);
+        header.putLong(0);
+        endBox(vmhd);
+        int dinf = beginBox("dinf");
+        int dref = beginFullBox("dref", 0, 0);
+        header.putInt(1);
+        endBox(beginFullBox("url ", 0, 1));
+        endBox(dref);
+        endBox(dinf);
+
+        int stbl = beginBox("stbl");
+        int stsd = beginFullBox("stsd", 0, 0);
+        header.putInt(1);
+        int avc1 = beginBox("avc1");
+        header.putInt(0).putShort((short) 0).putShort((short) 1);
+        header.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).putInt(0);
+        header.putShort((short) width).putShort((short) height);
+        header.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);
+        header.put(new byte[32]);
+        header.putShort((short) 0x0018).putShort((short) -1);
+        int avcC = beginBox("avcC");
+        header.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]);
+        // 4-byte NAL lengths, one SPS, one PPS
+        header.put((byte) 0xFF).put((byte) 0xE1);
+        header.putShort((short) sps.length).put(sps);
+        header.put((byte) 1).putShort((short) pps.length).put(pps);
+        endBox(avcC);
+        endBox(avc1);
+        endBox(stsd);
+        endBox(emptyTable("stts"));
+        endBox(emptyTable("stsc"));
+        int stsz = beginFullBox("stsz", 0, 0);
+        header.putInt(0).putInt(0);
+        endBox(stsz);
+        endBox(emptyTable("stco"));
+        endBox(stbl);
+        endBox(minf);
+        endBox(mdia);
+        endBox(trak);
+
+        int mvex = beginBox("mvex");
+        int trex = beginFullBox("trex", 0, 0);
+        header.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        endBox(trex);
+        endBox(mvex);
+        endBox(moov);
+
+        header.flip();
+        writeFully(header, null);
+    }
+
+    private int emptyTable(String type) {
+        int box = beginFullBox(type, 0, 0);
+        header.putInt(0);
+        return box;
+    }
+
+    private void putMatrix() {
+        header.putInt(0x00010000).putInt(0).putInt(0);
+        header.putInt(0).putInt(0x00010000).putInt(0);
+        header.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private int beginBox(String type) {
+        int start = header.position();
+        header.putInt(0);
+        putType(type);
+        return start;
+    }
+
+    private int beginFullBox(String type, int version, int flags) {
+        int start = beginBox(type);
+        header.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private void endBox(int start) {
+        header.putInt(start, header.position() - start);
+    }
+
+    private void putType(String type) {
+        for (int i = 0; i < 4; i++)
+            header.put((byte) type.charAt(i));
+    }
+
+    private void ensureHeaderCapacity(int size) {
+        if (header.capacity() < size)
+            header = ByteBuffer.allocate(size * 2).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private void writeFully(ByteBuffer first, ByteBuffer second) throws IOException {
+        output[0] = first;
+        output[1] = second != null ? second : ByteBuffer.allocate(0);
+        while (first.hasRemaining() || output[1].hasRemaining())
+            channel.write(output);
+        output[0] = null;
+        output[1] = null;
+    }
+
+    // Copies an Annex-B access unit into the payload as length-prefixed NAL units
+    private void appendAnnexB(ByteBuffer source, int start, int end) {
+        int nalStart = -1;
+        int i = start;
+        while (i + 2 < end) {
+            if (source.get(i) == 0 && source.get(i + 1) == 0 && source.get(i + 2) == 1) {
+                if (nalStart >= 0)
+                    appendNal(source, nalStart, i);
+                i += 3;
+                nalStart = i;
+            }
+            else {
+                i++;
+            }
+        }
+        if (nalStart >= 0)
+            appendNal(source, nalStart, end);
+        else
+            appendNal(source, start, end);
+    }
+
+    private void appendNal(ByteBuffer source, int start, int end) {
+        // The leading zero of a 4-byte start code belongs to the previous unit
+        while (end > start && source.get(end - 1) == 0)
+            end--;
+        if (end <= start) return;
+        int type = source.get(start) & 0x1F;
+        // Parameter sets live in the avcC, access unit delimiters are not needed
+        if (type == 7 || type == 8 || type == 9) return;
+
+        int length = end - start;
+        if (payload.remaining() < length + 4) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(payload.capacity() * 2, payload.position() + length + 4));
+            payload.flip();
+            larger.put(payload);
+            payload = larger;
+        }
+        payload.putInt(length);
+        source.limit(end);
+        source.position(start);
+        payload.put(source);
+    }
+
+    private static void collectParameterSets(ByteBuffer csd, byte[][] out) {
+        if (csd == null) return;
+        ByteBuffer data = csd.duplicate();
+        int end = data.limit();
+        int i = data.position();
+        int nalStart = -1;
+        while (i <= end) {
+            boolean boundary = i == end || (i + 2 < end && data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1);
+            if (boundary) {
+                if (nalStart >= 0) {
+                    int nalEnd = i;
+                    while (nalEnd > nalStart && data.get(nalEnd - 1) == 0)
+                        nalEnd--;
+                    byte[] nal = new byte[nalEnd - nalStart];
+                    for (int j = 0; j < nal.length; j++)
+                        nal[j] = data.get(nalStart + j);
+                    int type = nal.length > 0 ? nal[0] & 0x1F : 0;
+                    if (type == 7 && out[0] == null) out[0] = nal;
+                    else if (type == 8 && out[1] == null) out[1] = nal;
+                }
+                if (i == end) break;
+                i += 3;
+                nalStart = i;
+            }
+            else {
+                i++;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap check for whether a frame differs enough from the last delivered one to be worth copying
+ * and fanning out.
+ *
+ * The frame is split into a grid of tiles and a few pixels per tile are sampled into a luma
+ * signature. A tile counts as changed when its mean absolute difference from the reference
+ * signature exceeds the threshold. The reference only moves when a frame is let through, so slow
+ * drift still adds up to a change eventually. After maxSkippedFrames skips in a row a frame is
+ * let through regardless, which keeps consumers from going stale on a static scene.
+ *
+ * Only used from the capture thread.
+ */
+public class FrameChangeDetector {
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int samplesPerTileAxis;
+    private final float threshold;
+    private final int maxSkippedFrames;
+
+    private final int[] current;
+    private final int[] reference;
+    private boolean hasReference = false;
+    private int skippedInRow = 0;
+    private long changedTiles = 0;
+
+    private volatile long framesChecked;
+    private volatile long framesSkipped;
+    private volatile long bytesSkipped;
+
+    /**
+     * @param tilesX             tile columns, tilesX * tilesY must not exceed 64
+     * @param samplesPerTileAxis pixels sampled along each axis of a tile
+     * @param threshold          mean absolute luma difference (0-255) for a tile to count as changed
+     * @param maxSkippedFrames   consecutive frames skipped before one is let through anyway, 0 for no limit
+     */
+    public FrameChangeDetector(int tilesX, int tilesY, int samplesPerTileAxis, float threshold, int maxSkippedFrames) {
+        if (tilesX < 1 || tilesY < 1 || tilesX * tilesY > 64)
+            throw new IllegalArgumentException("Tile grid must have between 1 and 64 tiles, got " + tilesX + "x" + tilesY);
+        if (samplesPerTileAxis < 1)
+            throw new IllegalArgumentException("Need at least one sample per tile axis");
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.samplesPerTileAxis = samplesPerTileAxis;
+        this.threshold = threshold;
+        this.maxSkippedFrames = maxSkippedFrames;
+        current = new int[tilesX * tilesY * samplesPerTileAxis * samplesPerTileAxis];
+        reference = new int[current.length];
+    }
+
+    /**
+     * Samples an RGBA frame and decides whether to deliver it. Reads are absolute, the buffer
+     * position is left alone.
+     *
+     * @return true if the frame should be delivered, in which case it becomes the new reference
+     */
+    public boolean check(ByteBuffer pixels, int width, int height, int rowStride, int pixelStride) {
+        framesChecked++;
+        int samplesPerTile = samplesPerTileAxis * samplesPerTileAxis;
+        int samplesX = tilesX * samplesPerTileAxis;
+        int samplesY = tilesY * samplesPerTileAxis;
+
+        for (int sy = 0; sy < samplesY; sy++) {
+            int row = Math.min(height - 1, (int) ((sy + 0.5f) * height / samplesY));
+            int ty = sy / samplesPerTileAxis;
+            for (int sx = 0; sx < samplesX; sx++) {
+                int column = Math.min(width - 1, (int) ((sx + 0.5f) * width / samplesX));
+                int tx = sx / samplesPerTileAxis;
+                int offset = row * rowStride + column * pixelStride;
+                // Bytes are R, G, B, A in memory regardless of buffer order
+                int luma = (pixels.get(offset) & 0xFF)
+                    + 2 * (pixels.get(offset + 1) & 0xFF)
+                    + (pixels.get(offset + 2) & 0xFF);
+                int sample = (ty * tilesX + tx) * samplesPerTile
+                    + (sy % samplesPerTileAxis) * samplesPerTileAxis + (sx % samplesPerTileAxis);
+                current[sample] = luma;
+            }
+        }
+
+        long changed = 0;
+        if (!hasReference) {
+            changed = tilesX * tilesY == 64 ? -1L : (1L << (tilesX * tilesY)) - 1;
+        }
+        else {
+            // Luma above is scaled by 4
+            float limit = threshold * 4f * samplesPerTile;
+            for (int tile = 0; tile < tilesX * tilesY; tile++) {
+                int difference = 0;
+                int base = tile * samplesPerTile;
+                for (int i = base; i < base + samplesPerTile; i++)
+                    difference += Math.abs(current[i] - reference[i]);
+                if (difference > limit)
+                    changed |= 1L << tile;
+            }
+        }
+
+        boolean forced = maxSkippedFrames > 0 && skippedInRow >= maxSkippedFrames;
+        if (changed == 0 && !forced) {
+            skippedInRow++;
+            framesSkipped++;
+            bytesSkipped += (long) width * height * 4;
+            return false;
+        }
+
+        System.arraycopy(current, 0, reference, 0, current.length);
+        hasReference = true;
+        skippedInRow = 0;
+        changedTiles = changed;
+        return true;
+    }
+
+    // Forgets the reference so the next frame is always delivered
+    public void reset() {
+        hasReference = false;
+        skippedInRow = 0;
+    }
+
+    // Tiles that changed in the last delivered frame, bit (ty * tilesX + tx)
+    public long getChangedTiles() {
+        return changedTiles;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public long getFramesChecked() {
+        return framesChecked;
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    // Packed RGBA bytes that were not copied or delivered because their frame was skipped
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+}
@@ -0,0 +1,315 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Registry of {@link CaptureSubscription}s and the fan-out of frames to them.
+ *
+ * Subscriptions live in a copy-on-write array, so any thread can add or remove one while the
+ * capture thread dispatches without locking. Each frame is decimated per subscription first;
+ * the frames that are due are downscaled and packed once per tier and format and shared by every
+ * subscription asking for the same. The GL path renders the scaled tiers and regions on the GPU
+ * and hands them in through {@link #dispatchScaled} and {@link #dispatchRegion}; the ImageReader
+ * path downscales and crops on the CPU. Nothing here depends on Android.
+ */
+public class FrameDispatcher {
+
+    private static final CaptureSubscription[] EMPTY = new CaptureSubscription[0];
+
+    private final Object lock = new Object();
+    private volatile CaptureSubscription[] subscriptions = EMPTY;
+    private final CaptureMetrics metrics;
+    // Row order of the full frames handed to dispatch, for cropping regions on the CPU
+    private volatile boolean firstRowIsTop = false;
+
+    // Per tier and format, only touched on the dispatching thread
+    private final FrameFormat[][] formats = new FrameFormat[CaptureSubscription.TIER_COUNT][FrameFormat.COUNT];
+    private final ByteBuffer[][] buffers = new ByteBuffer[CaptureSubscription.TIER_COUNT][FrameFormat.COUNT];
+    // Formats already converted for the frame being dispatched, one mask per tier
+    private final int[] converted = new int[CaptureSubscription.TIER_COUNT];
+    private long dispatchedFrames;
+
+    public FrameDispatcher(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public CaptureSubscription add(CaptureSubscription subscription) {
+        synchronized (lock) {
+            CaptureSubscription[] current = subscriptions;
+            CaptureSubscription[] next = new CaptureSubscription[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscription;
+            subscriptions = next;
+        }
+        return subscription;
+    }
+
+    // Removes the subscription of receiver, or of the queued receiver wrapping it; returns it or null
+    public CaptureSubscription remove(IDisplayCaptureReceiver receiver) {
+        synchronized (lock) {
+            CaptureSubscription[] current = subscriptions;
+            for (int i = 0; i < current.length; i++) {
+                IDisplayCaptureReceiver subscribed = current[i].getReceiver();
+                if (subscribed != receiver && !(subscribed instanceof QueuedDisplayCaptureReceiver
+                        && ((QueuedDisplayCaptureReceiver) subscribed).getReceiver() == receiver))
+                    continue;
+                CaptureSubscription removed = current[i];
+                CaptureSubscription[] next = new CaptureSubscription[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                subscriptions = next;
+                metrics.forgetReceiver(removed.getReceiver());
+                return removed;
+            }
+        }
+        return null;
+    }
+
+    public CaptureSubscription find(IDisplayCaptureReceiver receiver) {
+        for (CaptureSubscription subscription : subscriptions) {
+            if (subscription.getReceiver() == receiver)
+                return subscription;
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return subscriptions.length == 0;
+    }
+
+    public void setFirstRowIsTop(boolean firstRowIsTop) {
+        this.firstRowIsTop = firstRowIsTop;
+    }
+
+    // Adds the distinct regions subscribed to that are not in regions yet
+    public void collectRegions(List<CaptureRegion> regions) {
+        for (CaptureSubscription subscription : subscriptions) {
+            CaptureRegion region = subscription.getRegion();
+            if (region != null && !regions.contains(region))
+                regions.add(region);
+        }
+    }
+
+    // Whether a subscription to region wants a frame at timestampNs
+    public boolean isDue(CaptureRegion region, long timestampNs) {
+        for (CaptureSubscription subscription : subscriptions) {
+            if (region.equals(subscription.getRegion()) && subscription.isDue(timestampNs))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * What a frame at timestampNs has to provide, as a mask of 1 << FrameFormat constant: the
+     * full-size formats due subscriptions want, plus RGBA when a scaled tier or region is due since
+     * the CPU path derives those from the full RGBA frame. Does not advance any subscription.
+     */
+    public int dueFormats(long timestampNs) {
+        int mask = 0;
+        for (CaptureSubscription subscription : subscriptions) {
+            if (!subscription.isDue(timestampNs)) continue;
+            mask |= subscription.getTierIndex() == 0 ? 1 << subscription.getPixelFormat() : 1 << FrameFormat.RGBA;
+        }
+        return mask;
+    }
+
+    // The formats due subscriptions of one tier want, as a mask of 1 << FrameFormat constant
+    public int dueFormats(long timestampNs, int tierIndex) {
+        int mask = 0;
+        for (CaptureSubscription subscription : subscriptions) {
+            if (subscription.getRegion() == null && subscription.getTierIndex() == tierIndex
+                    && subscription.isDue(timestampNs))
+                mask |= 1 << subscription.getPixelFormat();
+        }
+        return mask;
+    }
+
+    /**
+     * Hands a full-size RGBA frame to every due subscription. With packOnCpu false, full-size
+     * subscriptions to other formats are left to {@link #dispatchPacked}, scaled tiers to
+     * {@link #dispatchScaled} and regions to {@link #dispatchRegion}.
+     */
+    public void dispatch(ByteBuffer rgba, int width, int height, long timestampNs,
+                         FrameChangeDetector detector, boolean packOnCpu) {
+        for (int i = 0; i < converted.length; i++)
+            converted[i] = 0;
+        long frameNumber = dispatchedFrames++;
+        long changedTiles = detector != null ? detector.getChangedTiles() : 0;
+
+        CaptureSubscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            CaptureSubscription subscription = current[i];
+            int tierIndex = subscription.getTierIndex();
+            int format = subscription.getPixelFormat();
+            CaptureRegion region = subscription.getRegion();
+            if (!packOnCpu && (region != null || tierIndex > 0 || format != FrameFormat.RGBA)) continue;
+            if (!subscription.isDue(timestampNs)) {
+                subscription.onSkipped(changedTiles);
+                continue;
+            }
+
+            if (region != null) {
+                ByteBuffer cropped = crop(current, i, rgba, width, height, frameNumber);
+                notifyTiles(subscription, detector, changedTiles);
+                deliver(subscription, cropped, region.getWidth(), region.getHeight(), null, timestampNs);
+                continue;
+            }
+
+            ByteBuffer source = rgba;
+            int frameWidth = width >> tierIndex;
+            int frameHeight = height >> tierIndex;
+            if (frameWidth == 0 || frameHeight == 0) continue;
+            if (tierIndex > 0) {
+                source = buffer(tierIndex, FrameFormat.RGBA, frameWidth * frameHeight * 4);
+                if ((converted[tierIndex] & (1 << FrameFormat.RGBA)) == 0) {
+                    PixelPacker.downscale(rgba, width, height, subscription.getTier(), source);
+                    converted[tierIndex] |= 1 << FrameFormat.RGBA;
+                }
+            }
+
+            deliverConverted(subscription, source, frameWidth, frameHeight, timestampNs, detector, changedTiles);
+        }
+    }
+
+    /**
+     * Hands a scaled tier rendered on the GPU to the due subscriptions of that tier; formats other
+     * than RGBA are packed from it on the CPU, at the tier's size.
+     */
+    public void dispatchScaled(int tierIndex, ByteBuffer rgba, int width, int height, long timestampNs,
+                               FrameChangeDetector detector) {
+        converted[tierIndex] = 0;
+        long changedTiles = detector != null ? detector.getChangedTiles() : 0;
+        for (CaptureSubscription subscription : subscriptions) {
+            if (subscription.getRegion() != null || subscription.getTierIndex() != tierIndex) continue;
+            if (!subscription.isDue(timestampNs)) {
+                subscription.onSkipped(changedTiles);
+                continue;
+            }
+            deliverConverted(subscription, rgba, width, height, timestampNs, detector, changedTiles);
+        }
+    }
+
+    // The region of subscription i resampled from rgba, shared with the due subscriptions before it
+    private ByteBuffer crop(CaptureSubscription[] current, int i, ByteBuffer rgba, int width, int height,
+                            long frameNumber) {
+        CaptureSubscription subscription = current[i];
+        CaptureRegion region = subscription.getRegion();
+        for (int j = 0; j < i; j++) {
+            if (current[j].getRegionFrameNumber() == frameNumber && region.equals(current[j].getRegion())) {
+                ByteBuffer shared = current[j].getRegionFrame();
+                shared.rewind();
+                return shared;
+            }
+        }
+        ByteBuffer cropped = subscription.getRegionFrame();
+        if (cropped == null)
+            cropped = ByteBuffer.allocateDirect(region.getWidth() * region.getHeight() * 4);
+        PixelPacker.resample(rgba, width, height, firstRowIsTop, region, cropped);
+        subscription.setRegionFrame(cropped, frameNumber);
+        return cropped;
+    }
+
+    // Hands a region rendered on the GPU to the due subscriptions to it
+    public void dispatchRegion(CaptureRegion region, ByteBuffer rgba, long timestampNs, FrameChangeDetector detector) {
+        long changedTiles = detector != null ? detector.getChangedTiles() : 0;
+        for (CaptureSubscription subscription : subscriptions) {
+            if (!region.equals(subscription.getRegion())) continue;
+            if (!subscription.isDue(timestampNs)) {
+                subscription.onSkipped(changedTiles);
+                continue;
+            }
+            notifyTiles(subscription, detector, changedTiles);
+            rgba.rewind();
+            deliver(subscription, rgba, region.getWidth(), region.getHeight(), null, timestampNs);
+        }
+    }
+
+    // Delivers source, an RGBA frame at the subscription's tier, in the format it subscribed to
+    private void deliverConverted(CaptureSubscription subscription, ByteBuffer source, int width, int height,
+                                  long timestampNs, FrameChangeDetector detector, long changedTiles) {
+        int tierIndex = subscription.getTierIndex();
+        int format = subscription.getPixelFormat();
+        if (format == FrameFormat.RGBA) {
+            notifyTiles(subscription, detector, changedTiles);
+            source.rewind();
+            deliver(subscription, source, width, height, null, timestampNs);
+            return;
+        }
+
+        FrameFormat frameFormat = getFrameFormat(tierIndex, format, width, height);
+        if (frameFormat == null) {
+            subscription.onSkipped(changedTiles);
+            return;
+        }
+        ByteBuffer packed = buffer(tierIndex, format, frameFormat.getByteCount());
+        if ((converted[tierIndex] & (1 << format)) == 0) {
+            PixelPacker.pack(source, frameFormat, packed);
+            converted[tierIndex] |= 1 << format;
+        }
+        notifyTiles(subscription, detector, changedTiles);
+        packed.rewind();
+        deliver(subscription, packed, width, height, frameFormat, timestampNs);
+    }
+
+    // Hands a full-size frame packed on the GPU to the due subscriptions of its format
+    public void dispatchPacked(FrameFormat format, ByteBuffer byteBuffer, long timestampNs,
+                               FrameChangeDetector detector) {
+        long changedTiles = detector != null ? detector.getChangedTiles() : 0;
+        for (CaptureSubscription subscription : subscriptions) {
+            if (subscription.getRegion() != null || subscription.getTierIndex() != 0
+                    || subscription.getPixelFormat() != format.getPixelFormat())
+                continue;
+            if (!subscription.isDue(timestampNs)) {
+                subscription.onSkipped(changedTiles);
+                continue;
+            }
+            notifyTiles(subscription, detector, changedTiles);
+            byteBuffer.rewind();
+            deliver(subscription, byteBuffer, format.getWidth(), format.getHeight(), format, timestampNs);
+        }
+    }
+
+    private void deliver(CaptureSubscription subscription, ByteBuffer byteBuffer, int width, int height,
+                         FrameFormat format, long timestampNs) {
+        IDisplayCaptureReceiver receiver = subscription.getReceiver();
+        long start = System.nanoTime();
+        if (format == null)
+            receiver.onNewImage(byteBuffer, width, height, timestampNs);
+        else
+            receiver.onNewFrame(byteBuffer, format, timestampNs);
+        metrics.receiverHistogram(receiver).recordNanos(System.nanoTime() - start);
+        subscription.onDelivered(timestampNs);
+    }
+
+    private static void notifyTiles(CaptureSubscription subscription, FrameChangeDetector detector, long changedTiles) {
+        IDisplayCaptureReceiver receiver = subscription.getReceiver();
+        if (detector == null || !(receiver instanceof IDisplayCaptureTileReceiver)) return;
+        ((IDisplayCaptureTileReceiver) receiver).onChangedTiles(subscription.takeChangedTiles(changedTiles),
+            detector.getTilesX(), detector.getTilesY());
+    }
+
+    /**
+     * Layout of format at the given size for a tier, or null if that size cannot be packed that
+     * way. Only called on the dispatching thread.
+     */
+    FrameFormat getFrameFormat(int tierIndex, int format, int width, int height) {
+        FrameFormat frameFormat = formats[tierIndex][format];
+        if (frameFormat == null || frameFormat.getWidth() != width || frameFormat.getHeight() != height) {
+            if (!FrameFormat.isSupported(format, width, height)) return null;
+            frameFormat = new FrameFormat(format, width, height);
+            formats[tierIndex][format] = frameFormat;
+        }
+        return frameFormat;
+    }
+
+    private ByteBuffer buffer(int tierIndex, int format, int size) {
+        ByteBuffer buffer = buffers[tierIndex][format];
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            buffers[tierIndex][format] = buffer;
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+}
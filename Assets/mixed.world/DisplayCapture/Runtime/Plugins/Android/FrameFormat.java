@@ -0,0 +1,121 @@
+package com.trev3d.DisplayCapture;
+
+/**
+ * Pixel format and plane layout of a frame handed to receivers.
+ *
+ * All formats are tightly packed with rows bottom first, like the RGBA frame. YUV formats use
+ * BT.601 limited range with chroma at half resolution in both directions, so NV12 and I420 take
+ * 1.5 bytes per pixel and luma alone 1, against 4 for RGBA.
+ */
+public final class FrameFormat {
+
+    public static final int RGBA = 0;
+    // Y plane followed by one plane of interleaved U and V
+    public static final int NV12 = 1;
+    // Y plane followed by a U plane and a V plane
+    public static final int I420 = 2;
+    // Y plane only
+    public static final int LUMA = 3;
+    public static final int COUNT = 4;
+
+    private final int pixelFormat;
+    private final int width;
+    private final int height;
+    private final int[] offsets;
+    private final int[] rowStrides;
+    private final int[] pixelStrides;
+    private final int byteCount;
+
+    public FrameFormat(int pixelFormat, int width, int height) {
+        if (!isSupported(pixelFormat, width, height))
+            throw new IllegalArgumentException("Unsupported format " + pixelFormat + " at " + width + "x" + height);
+        this.pixelFormat = pixelFormat;
+        this.width = width;
+        this.height = height;
+
+        int lumaSize = width * height;
+        switch (pixelFormat) {
+            case NV12:
+                offsets = new int[] { 0, lumaSize };
+                rowStrides = new int[] { width, width };
+                pixelStrides = new int[] { 1, 2 };
+                byteCount = lumaSize + lumaSize / 2;
+                break;
+            case I420:
+                offsets = new int[] { 0, lumaSize, lumaSize + lumaSize / 4 };
+                rowStrides = new int[] { width, width / 2, width / 2 };
+                pixelStrides = new int[] { 1, 1, 1 };
+                byteCount = lumaSize + lumaSize / 2;
+                break;
+            case LUMA:
+                offsets = new int[] { 0 };
+                rowStrides = new int[] { width };
+                pixelStrides = new int[] { 1 };
+                byteCount = lumaSize;
+                break;
+            default:
+                offsets = new int[] { 0 };
+                rowStrides = new int[] { width * 4 };
+                pixelStrides = new int[] { 4 };
+                byteCount = lumaSize * 4;
+                break;
+        }
+    }
+
+    // Sizes the packing shader can handle: 4 luma samples per texel, and I420 chroma rows in halves
+    public static boolean isSupported(int pixelFormat, int width, int height) {
+        switch (pixelFormat) {
+            case RGBA:
+                return width > 0 && height > 0;
+            case LUMA:
+                return width > 0 && height > 0 && width % 4 == 0;
+            case NV12:
+                return width > 0 && height > 0 && width % 4 == 0 && height % 2 == 0;
+            case I420:
+                return width > 0 && height > 0 && width % 8 == 0 && height % 4 == 0;
+            default:
+                return false;
+        }
+    }
+
+    public int getPixelFormat() {
+        return pixelFormat;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPlaneCount() {
+        return offsets.length;
+    }
+
+    public int getPlaneOffset(int plane) {
+        return offsets[plane];
+    }
+
+    public int getPlaneRowStride(int plane) {
+        return rowStrides[plane];
+    }
+
+    public int getPlanePixelStride(int plane) {
+        return pixelStrides[plane];
+    }
+
+    public int getByteCount() {
+        return byteCount;
+    }
+
+    // Size of the RGBA8 target the GPU packs this format into, four bytes per texel
+    int getPackedWidth() {
+        return pixelFormat == RGBA ? width : width / 4;
+    }
+
+    int getPackedHeight() {
+        return byteCount / (getPackedWidth() * 4);
+    }
+}
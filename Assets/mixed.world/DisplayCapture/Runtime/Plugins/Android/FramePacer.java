@@ -0,0 +1,154 @@
+package com.trev3d.DisplayCapture;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides which captured frames get processed at all, before any copy, readback or fan-out.
+ *
+ * The virtual display produces frames at the display rate whether or not anybody needs them.
+ * In FIXED mode frames are taken at a target rate, in ON_DEMAND mode only after requestFrame,
+ * and in ADAPTIVE mode at the highest rate that keeps the measured processing time within a
+ * share of the frame interval. The rate and jitter of the frames actually taken are tracked with
+ * cheap moving averages. shouldProcess and onFrameProcessed run on the capture thread; the rest
+ * may be called from any thread.
+ */
+public class FramePacer {
+
+    public static final int MODE_EVERY_FRAME = 0;
+    public static final int MODE_FIXED = 1;
+    public static final int MODE_ON_DEMAND = 2;
+    public static final int MODE_ADAPTIVE = 3;
+
+    // Share of the frame interval processing may take in ADAPTIVE mode
+    private static final float ADAPTIVE_LOAD = 0.5f;
+    // Weight of the newest sample in the moving averages
+    private static final float SMOOTHING = 1f / 16f;
+
+    private volatile int mode = MODE_EVERY_FRAME;
+    // FIXED: the target interval, ADAPTIVE: the shortest allowed one
+    private volatile long minIntervalNs = 0;
+    private final AtomicBoolean frameRequested = new AtomicBoolean(false);
+    // Set by setMode so the next frame is taken and starts a new cadence
+    private volatile boolean restartCadence = false;
+
+    // Only touched on the capture thread
+    private long nextDueNs = Long.MIN_VALUE;
+    private long lastTakenNs = Long.MIN_VALUE;
+    private float averageProcessingNs = 0f;
+
+    private volatile float averageIntervalNs = 0f;
+    private volatile float jitterNs = 0f;
+    private volatile long takenFrames;
+    private volatile long droppedFrames;
+
+    /**
+     * maxRateHz is the target rate in FIXED mode and the upper bound in ADAPTIVE mode, where 0
+     * leaves it unbounded. It is ignored by the other modes.
+     */
+    public void setMode(int mode, float maxRateHz) {
+        minIntervalNs = maxRateHz > 0f ? (long) (1e9 / maxRateHz) : 0;
+        this.mode = mode;
+        restartCadence = true;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    // Takes the next frame in ON_DEMAND mode; requests made before it arrives collapse into one
+    public void requestFrame() {
+        frameRequested.set(true);
+    }
+
+    public boolean shouldProcess(long timestampNs) {
+        boolean take;
+        switch (mode) {
+            case MODE_ON_DEMAND:
+                take = frameRequested.compareAndSet(true, false);
+                break;
+            case MODE_FIXED:
+            case MODE_ADAPTIVE:
+                take = isDue(timestampNs);
+                break;
+            default:
+                take = true;
+                break;
+        }
+
+        if (!take) {
+            droppedFrames++;
+            return false;
+        }
+        onTaken(timestampNs);
+        return true;
+    }
+
+    // How long the capture thread spent on a taken frame, which drives ADAPTIVE mode
+    public void onFrameProcessed(long durationNs) {
+        averageProcessingNs += (durationNs - averageProcessingNs) * SMOOTHING;
+    }
+
+    private boolean isDue(long timestampNs) {
+        long interval = currentIntervalNs();
+        if (restartCadence) {
+            restartCadence = false;
+            nextDueNs = Long.MIN_VALUE;
+        }
+        if (interval == 0 || nextDueNs == Long.MIN_VALUE) {
+            nextDueNs = timestampNs + interval;
+            return true;
+        }
+        // An eighth of an interval early still counts, so display jitter does not push frames back a whole interval
+        if (timestampNs + interval / 8 < nextDueNs) return false;
+        nextDueNs = timestampNs - nextDueNs > interval ? timestampNs + interval : nextDueNs + interval;
+        return true;
+    }
+
+    private long currentIntervalNs() {
+        long interval = minIntervalNs;
+        if (mode == MODE_ADAPTIVE)
+            interval = Math.max(interval, (long) (averageProcessingNs / ADAPTIVE_LOAD));
+        return interval;
+    }
+
+    // Jitter is the smoothed deviation of each interval from the average, as in RTP
+    private void onTaken(long timestampNs) {
+        takenFrames++;
+        if (lastTakenNs != Long.MIN_VALUE) {
+            float interval = timestampNs - lastTakenNs;
+            float average = averageIntervalNs == 0f ? interval : averageIntervalNs;
+            jitterNs += (Math.abs(interval - average) - jitterNs) * SMOOTHING;
+            averageIntervalNs = average + (interval - average) * SMOOTHING;
+        }
+        lastTakenNs = timestampNs;
+    }
+
+    // Rate of the frames taken, from the moving average of their intervals
+    public float getEffectiveRate() {
+        float interval = averageIntervalNs;
+        return interval > 0f ? 1e9f / interval : 0f;
+    }
+
+    public float getJitterMs() {
+        return jitterNs / 1e6f;
+    }
+
+    public float getAverageProcessingMs() {
+        return averageProcessingNs / 1e6f;
+    }
+
+    public long getTakenFrames() {
+        return takenFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public void resetStatistics() {
+        averageIntervalNs = 0f;
+        jitterNs = 0f;
+        takenFrames = 0;
+        droppedFrames = 0;
+    }
+}
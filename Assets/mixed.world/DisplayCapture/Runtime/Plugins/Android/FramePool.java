@@ -0,0 +1,143 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of preallocated direct frame buffers shared between the capture thread and readers
+ * such as Unity's LoadRawTextureData.
+ *
+ * The single writer claims a slot with {@link #beginWrite}, fills it and {@link #publish}es it
+ * under the next sequence number. Readers {@link #acquireLatest} to pin the newest published slot
+ * and {@link #release} it when done; a pinned slot is never handed to the writer, so a reader
+ * cannot observe a frame while it is being written. Acquire results pack the sequence number and
+ * slot index into one long (see {@link #slotOf} and {@link #sequenceOf}) so callers over JNI need
+ * a single call per frame and no allocation.
+ */
+public class FramePool {
+
+    public static final long NONE = -1;
+
+    private static final int FREE = 0;
+    private static final int WRITING = -1;
+    private static final int SLOT_BITS = 8;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+
+    private final ByteBuffer[] buffers;
+    // WRITING, FREE, or the number of readers holding the slot
+    private final AtomicIntegerArray states;
+    // Only written by the writer while it owns the slot, published through states
+    private final long[] sequences;
+    private final AtomicLong latest = new AtomicLong(NONE);
+    private final int frameSize;
+
+    private long nextSequence = 1;
+    private volatile long droppedFrames;
+
+    public FramePool(int slotCount, int frameSize) {
+        if (slotCount < 2 || slotCount > SLOT_MASK)
+            throw new IllegalArgumentException("Frame pool needs 2 to " + SLOT_MASK + " slots, got " + slotCount);
+        this.frameSize = frameSize;
+        buffers = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++)
+            buffers[i] = ByteBuffer.allocateDirect(frameSize);
+        states = new AtomicIntegerArray(slotCount);
+        sequences = new long[slotCount];
+    }
+
+    public static int slotOf(long frame) {
+        return (int) (frame & SLOT_MASK);
+    }
+
+    public static long sequenceOf(long frame) {
+        return frame >>> SLOT_BITS;
+    }
+
+    /**
+     * Claims a slot for writing. Never returns the latest published slot, so readers always have
+     * a complete frame to acquire. Returns -1 if every other slot is pinned by readers.
+     */
+    public int beginWrite() {
+        int latestSlot = latest.get() == NONE ? -1 : slotOf(latest.get());
+        for (int i = 0; i < buffers.length; i++) {
+            if (i != latestSlot && states.compareAndSet(i, FREE, WRITING)) {
+                buffers[i].clear();
+                return i;
+            }
+        }
+        droppedFrames++;
+        return -1;
+    }
+
+    public ByteBuffer getBuffer(int slot) {
+        return buffers[slot];
+    }
+
+    // Makes the slot the latest frame and returns its sequence number
+    public long publish(int slot) {
+        long sequence = nextSequence++;
+        sequences[slot] = sequence;
+        buffers[slot].rewind();
+        states.set(slot, FREE);
+        latest.set((sequence << SLOT_BITS) | slot);
+        return sequence;
+    }
+
+    // Returns a slot claimed by beginWrite without publishing it
+    public void abortWrite(int slot) {
+        states.set(slot, FREE);
+    }
+
+    /**
+     * Pins the latest published slot. Returns {@link #NONE} if nothing has been published yet,
+     * otherwise the packed sequence and slot, which must be passed back to {@link #release}.
+     */
+    public long acquireLatest() {
+        while (true) {
+            long frame = latest.get();
+            if (frame == NONE)
+                return NONE;
+            int slot = slotOf(frame);
+            int state = states.get(slot);
+            if (state >= FREE && states.compareAndSet(slot, state, state + 1)) {
+                // The slot may have been rewritten between reading latest and pinning it,
+                // the sequence read after pinning is the one actually in the buffer
+                return (sequences[slot] << SLOT_BITS) | slot;
+            }
+        }
+    }
+
+    public void release(int slot) {
+        int state;
+        do {
+            state = states.get(slot);
+            if (state <= FREE)
+                throw new IllegalStateException("Releasing frame slot " + slot + " that is not acquired");
+        } while (!states.compareAndSet(slot, state, state - 1));
+    }
+
+    public long getLatestSequence() {
+        long frame = latest.get();
+        return frame == NONE ? 0 : sequenceOf(frame);
+    }
+
+    // Buffer of the latest published frame, or slot 0 before the first publish
+    public ByteBuffer getLatestBuffer() {
+        long frame = latest.get();
+        return buffers[frame == NONE ? 0 : slotOf(frame)];
+    }
+
+    public int getSlotCount() {
+        return buffers.length;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    // Frames the writer had to skip because every slot was pinned
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,91 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The steps every captured frame takes between its source and the receivers, shared by the live
+ * capture and {@link TraceReplay}: counted in the metrics, let through or skipped by the pacer,
+ * checked against the last delivered frame by the change detector and dispatched to the due
+ * subscriptions.
+ *
+ * A frame starts with {@link #arrive}. One that arrives is finished with {@link #finish} once the
+ * caller is done with it, unless {@link #check} drops it as a near duplicate; the pacer learns
+ * how long processing took from finish. Sources that already hold a tightly packed RGBA frame
+ * use {@link #process} for the whole sequence. Everything but setChangeDetector runs on the
+ * thread that captures. Nothing here depends on Android.
+ */
+public class FrameProcessor {
+
+    private final CaptureMetrics metrics;
+    private final FramePacer pacer;
+    private final FrameDispatcher dispatcher;
+    private volatile FrameChangeDetector changeDetector;
+
+    // The frame being processed, only touched on the capturing thread
+    private long processStart;
+    private FrameChangeDetector detector;
+
+    public FrameProcessor(CaptureMetrics metrics, FramePacer pacer, FrameDispatcher dispatcher) {
+        this.metrics = metrics;
+        this.pacer = pacer;
+        this.dispatcher = dispatcher;
+    }
+
+    // Takes effect from the next frame that arrives; null turns change detection off
+    public void setChangeDetector(FrameChangeDetector detector) {
+        changeDetector = detector;
+    }
+
+    public FrameChangeDetector getChangeDetector() {
+        return changeDetector;
+    }
+
+    // Counts a captured frame; false if the pacer skips it, which ends it
+    public boolean arrive(long timestampNs) {
+        long now = System.nanoTime();
+        metrics.onFrameArrived(timestampNs, now);
+        if (!pacer.shouldProcess(timestampNs)) return false;
+        processStart = now;
+        detector = changeDetector;
+        return true;
+    }
+
+    // False if the frame is a near duplicate of the last delivered one, which ends it
+    public boolean check(ByteBuffer plane, int width, int height, int rowStride, int pixelStride) {
+        return detector == null || detector.check(plane, width, height, rowStride, pixelStride);
+    }
+
+    // Whether any subscription wants the frame at all
+    public boolean isDue(long timestampNs) {
+        return dispatcher.dueFormats(timestampNs) != 0;
+    }
+
+    // Hands the tightly packed RGBA frame to the due subscriptions, see FrameDispatcher.dispatch
+    public void dispatch(ByteBuffer rgba, int width, int height, long timestampNs, boolean packOnCpu) {
+        dispatcher.dispatch(rgba, width, height, timestampNs, detector, packOnCpu);
+    }
+
+    // The change detector the current frame was checked with, or null
+    public FrameChangeDetector getDetector() {
+        return detector;
+    }
+
+    public void finish() {
+        pacer.onFrameProcessed(System.nanoTime() - processStart);
+    }
+
+    /**
+     * Runs a tightly packed RGBA frame through every step.
+     *
+     * @return true if it reached the dispatch
+     */
+    public boolean process(ByteBuffer rgba, int width, int height, long timestampNs) {
+        if (!arrive(timestampNs)) return false;
+        if (!check(rgba, width, height, width * 4, 4)) return false;
+        boolean due = isDue(timestampNs);
+        if (due)
+            dispatch(rgba, width, height, timestampNs, true);
+        finish();
+        return due;
+    }
+}
@@ -0,0 +1,324 @@
+package com.trev3d.DisplayCapture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams units of data (encoded access units, JPEG images or lines of text) to clients
+ * connected on a loopback port, so a session can be watched from a laptop through adb forward.
+ *
+ * Units are written back to back without framing, which makes an encoder stream a raw Annex B
+ * elementary stream and a JPEG stream plain MJPEG, both playable with
+ * ffplay -f h264 (or -f mjpeg) tcp://127.0.0.1:port.
+ *
+ * One selector thread accepts clients and writes to them without blocking. send never waits:
+ * a unit is copied once into a pooled buffer all clients share and appended to each client's
+ * bounded queue; the buffer goes back to the pool once every client has written it out. A client
+ * whose queue is full loses the unit. When units depend on earlier ones, as
+ * with an encoder stream, that client then skips everything up to the next key unit and gets
+ * the config unit again before it, so its decoder resumes cleanly; new clients start the same way.
+ */
+public class FrameStreamServer implements Closeable {
+
+    // A unit in a direct buffer; position and limit are only moved by the selector thread once queued
+    private final class Unit {
+        ByteBuffer buffer;
+        int length;
+        final boolean pooled;
+        // One per client queue holding the unit, plus one for send while it queues
+        final AtomicInteger references = new AtomicInteger();
+
+        Unit(int capacity, boolean pooled) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            this.pooled = pooled;
+        }
+
+        // Copies the remaining bytes of data, leaving data as it is
+        void fill(ByteBuffer data) {
+            length = data.remaining();
+            if (buffer.capacity() < length)
+                buffer = ByteBuffer.allocateDirect(length + length / 4);
+            buffer.clear();
+            int position = data.position();
+            buffer.put(data);
+            data.position(position);
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && pooled)
+                free.offer(this);
+        }
+    }
+
+    private static final class Client {
+        final SocketChannel channel;
+        // Guarded by the client, filled by send and drained by the selector thread
+        final ArrayDeque<Unit> queue = new ArrayDeque<Unit>();
+        boolean waitingForKeyUnit;
+        boolean closed;
+        // Only touched on the selector thread
+        Unit sending;
+        int sendingOffset;
+
+        Client(SocketChannel channel, boolean waitingForKeyUnit) {
+            this.channel = channel;
+            this.waitingForKeyUnit = waitingForKeyUnit;
+        }
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final int queueDepth;
+    private final boolean dependentUnits;
+    private final Runnable onKeyUnitNeeded;
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile Unit config;
+    // Units no client holds; more are made while slow clients hold every one, up to the pool's size kept
+    private final ArrayBlockingQueue<Unit> free;
+
+    private final ByteBuffer readScratch = ByteBuffer.allocate(1024);
+
+    private volatile long sentUnits;
+    private volatile long droppedUnits;
+    private volatile long sentBytes;
+
+    /**
+     * Listens on the loopback interface; a port of 0 picks a free one, see getPort. With
+     * dependentUnits, onKeyUnitNeeded (may be null) is called from any thread whenever a client
+     * waits for a key unit, so the producer can ask its encoder for one.
+     */
+    public FrameStreamServer(int port, int queueDepth, boolean dependentUnits, Runnable onKeyUnitNeeded) throws IOException {
+        if (queueDepth < 1)
+            throw new IllegalArgumentException("Queue depth must be at least 1, got " + queueDepth);
+        this.queueDepth = queueDepth;
+        this.dependentUnits = dependentUnits;
+        this.onKeyUnitNeeded = onKeyUnitNeeded;
+        // Enough for a client with a full queue and a unit on the wire, while send fills the next
+        free = new ArrayBlockingQueue<Unit>(queueDepth + 2);
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        thread = new Thread(this::run, "FrameStream-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Sent ahead of the first key unit each client gets, e.g. the encoder's codec config
+    public void setConfig(ByteBuffer data) {
+        Unit unit = new Unit(data.remaining(), false);
+        unit.fill(data);
+        config = unit;
+    }
+
+    /**
+     * Queues the remaining bytes of data for every client, dropping it for clients that are too
+     * far behind. Does not block and leaves data as it is.
+     */
+    public void send(ByteBuffer data, boolean keyUnit) {
+        if (clients.isEmpty() || !running) return;
+        Unit unit = free.poll();
+        if (unit == null)
+            unit = new Unit(data.remaining(), true);
+        unit.fill(data);
+        unit.references.set(1);
+        Unit configUnit = config;
+        boolean queued = false;
+        boolean keyUnitNeeded = false;
+
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            synchronized (client) {
+                if (client.closed || (client.waitingForKeyUnit && !keyUnit)) continue;
+                if (client.queue.size() >= queueDepth) {
+                    droppedUnits++;
+                    if (dependentUnits && !client.waitingForKeyUnit) {
+                        client.waitingForKeyUnit = true;
+                        keyUnitNeeded = true;
+                    }
+                    continue;
+                }
+                if (client.waitingForKeyUnit) {
+                    // The config unit does not count against the queue depth
+                    if (configUnit != null) {
+                        configUnit.references.incrementAndGet();
+                        client.queue.add(configUnit);
+                    }
+                    client.waitingForKeyUnit = false;
+                }
+                unit.references.incrementAndGet();
+                client.queue.add(unit);
+                queued = true;
+            }
+        }
+        unit.release();
+
+        if (keyUnitNeeded && onKeyUnitNeeded != null)
+            onKeyUnitNeeded.run();
+        if (queued)
+            selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read((Client) key.attachment());
+                }
+                // Writes are attempted on every wakeup, OP_WRITE only matters while a socket buffer is full
+                for (int i = 0; i < clients.size(); i++)
+                    flush(clients.get(i));
+            } catch (IOException e) {
+                // The selector itself failed, the server cannot go on
+                running = false;
+            }
+        }
+        for (Client client : clients)
+            closeClient(client);
+        clients.clear();
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel, dependentUnits);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+        if (dependentUnits && onKeyUnitNeeded != null)
+            onKeyUnitNeeded.run();
+    }
+
+    // Clients are not expected to send anything; reading only notices when they hang up
+    private void read(Client client) {
+        try {
+            readScratch.clear();
+            if (client.channel.read(readScratch) < 0)
+                closeClient(client);
+        } catch (IOException e) {
+            closeClient(client);
+        }
+    }
+
+    private void flush(Client client) {
+        SelectionKey key = client.channel.keyFor(selector);
+        if (key == null || !key.isValid()) return;
+        try {
+            while (true) {
+                if (client.sending == null) {
+                    synchronized (client) {
+                        client.sending = client.queue.poll();
+                    }
+                    if (client.sending == null) break;
+                    client.sendingOffset = 0;
+                }
+                Unit unit = client.sending;
+                ByteBuffer buffer = unit.buffer;
+                buffer.limit(unit.length);
+                buffer.position(client.sendingOffset);
+                int written = client.channel.write(buffer);
+                sentBytes += written;
+                client.sendingOffset = buffer.position();
+                if (client.sendingOffset < unit.length) break;
+                client.sending = null;
+                unit.release();
+                sentUnits++;
+            }
+            key.interestOps(client.sending != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeClient(client);
+        }
+    }
+
+    // Only called on the selector thread
+    private void closeClient(Client client) {
+        clients.remove(client);
+        synchronized (client) {
+            if (client.closed) return;
+            client.closed = true;
+            for (Unit unit : client.queue)
+                unit.release();
+            client.queue.clear();
+        }
+        if (client.sending != null) {
+            client.sending.release();
+            client.sending = null;
+        }
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    // Units written out in full, counted once per client
+    public long getSentUnits() {
+        return sentUnits;
+    }
+
+    // Units a client lost because its queue was full
+    public long getDroppedUnits() {
+        return droppedUnits;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
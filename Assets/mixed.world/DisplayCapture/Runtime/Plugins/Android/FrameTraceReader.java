@@ -0,0 +1,176 @@
+package com.trev3d.DisplayCapture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back a trace written by {@link FrameTraceWriter}, one frame at a time, through read-only
+ * memory-mapped windows. The current frame is decoded into a buffer that is reused for the next
+ * one. Not thread safe.
+ */
+public class FrameTraceReader implements Closeable {
+
+    private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final boolean firstRowIsTop;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position = FrameTraceWriter.HEADER_SIZE;
+
+    private final Inflater inflater = new Inflater();
+    private byte[] storedBytes = new byte[0];
+    private byte[] rawBytes = new byte[0];
+    private ByteBuffer frame = ByteBuffer.allocateDirect(0);
+
+    private long timestamp;
+    private int width;
+    private int height;
+    private int pixelFormat;
+    private final float[] pose = new float[6];
+    private long framesRead;
+
+    public FrameTraceReader(String path) throws IOException {
+        this(path, WINDOW_SIZE);
+    }
+
+    FrameTraceReader(String path, int windowSize) throws IOException {
+        this.windowSize = windowSize;
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        if (fileSize < FrameTraceWriter.HEADER_SIZE)
+            throw new IOException("Not a frame trace: " + path);
+
+        ByteBuffer header = map(0, FrameTraceWriter.HEADER_SIZE);
+        if (header.getInt() != FrameTraceWriter.MAGIC)
+            throw new IOException("Not a frame trace: " + path);
+        int version = header.getInt();
+        if (version != FrameTraceWriter.VERSION)
+            throw new IOException("Unsupported frame trace version " + version + ": " + path);
+        firstRowIsTop = (header.getInt() & FrameTraceWriter.FLAG_FIRST_ROW_IS_TOP) != 0;
+    }
+
+    /**
+     * Decodes the next frame.
+     *
+     * @return false at the end of the trace
+     */
+    public boolean next() throws IOException {
+        if (position + FrameTraceWriter.RECORD_HEADER_SIZE > fileSize) return false;
+        ByteBuffer record = map(position, FrameTraceWriter.RECORD_HEADER_SIZE);
+        int storedLength = record.getInt();
+        if (storedLength <= 0) return false;
+        int rawLength = record.getInt();
+        if (position + FrameTraceWriter.RECORD_HEADER_SIZE + storedLength > fileSize || storedLength > rawLength)
+            throw new IOException("Truncated frame trace at offset " + position);
+        timestamp = record.getLong();
+        width = record.getInt();
+        height = record.getInt();
+        pixelFormat = record.getInt();
+        for (int i = 0; i < pose.length; i++)
+            pose[i] = record.getFloat();
+
+        if (frame.capacity() < rawLength)
+            frame = ByteBuffer.allocateDirect(rawLength);
+        frame.clear();
+        ByteBuffer data = map(position + FrameTraceWriter.RECORD_HEADER_SIZE, storedLength);
+        if (storedLength == rawLength) {
+            data.limit(data.position() + rawLength);
+            frame.put(data);
+        }
+        else {
+            if (storedBytes.length < storedLength)
+                storedBytes = new byte[storedLength];
+            if (rawBytes.length < rawLength)
+                rawBytes = new byte[rawLength];
+            data.get(storedBytes, 0, storedLength);
+            inflater.reset();
+            inflater.setInput(storedBytes, 0, storedLength);
+            try {
+                if (inflater.inflate(rawBytes, 0, rawLength) != rawLength)
+                    throw new IOException("Corrupt frame at offset " + position);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt frame at offset " + position, e);
+            }
+            frame.put(rawBytes, 0, rawLength);
+        }
+        frame.flip();
+
+        position += FrameTraceWriter.RECORD_HEADER_SIZE + storedLength;
+        framesRead++;
+        return true;
+    }
+
+    // Starts over at the first frame
+    public void rewind() {
+        position = FrameTraceWriter.HEADER_SIZE;
+        framesRead = 0;
+    }
+
+    // Buffer positioned at offset with at least length bytes remaining, remapping the window if needed
+    private ByteBuffer map(long offset, int length) throws IOException {
+        if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+            windowStart = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                Math.min(fileSize - offset, Math.max(windowSize, length)));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        window.limit(window.capacity());
+        window.position((int) (offset - windowStart));
+        return window;
+    }
+
+    // The current frame, valid until the next call to next
+    public ByteBuffer getFrame() {
+        frame.rewind();
+        return frame;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPixelFormat() {
+        return pixelFormat;
+    }
+
+    // Camera pose at the time of the frame, as CameraPose.get reports it
+    public float[] getPose() {
+        return pose;
+    }
+
+    public boolean isFirstRowTop() {
+        return firstRowIsTop;
+    }
+
+    public long getFramesRead() {
+        return framesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        window = null;
+        file.close();
+    }
+}
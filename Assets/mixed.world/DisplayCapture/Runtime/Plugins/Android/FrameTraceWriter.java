@@ -0,0 +1,177 @@
+package com.trev3d.DisplayCapture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Records the frames it receives, with their timestamps and the camera pose, into a trace file
+ * that {@link FrameTraceReader} plays back off-device.
+ *
+ * The file is written through memory-mapped windows, so recording is a memcpy into the page cache
+ * instead of a write call per frame. Frames can be deflated at the fastest level, which mostly
+ * pays off for passthrough frames with large flat areas. Writing takes as long as the copy (and
+ * compression), so subscribe it through a queued receiver rather than on the capture thread.
+ *
+ * Layout, little endian: a header of MAGIC, VERSION, flags and a reserved int, then per frame
+ * storedLength, rawLength, timestamp, width, height, pixel format, the six CameraPose values and
+ * storedLength bytes of frame data, deflated if storedLength is less than rawLength. A
+ * storedLength of 0 ends the trace.
+ */
+public class FrameTraceWriter implements IDisplayCaptureReceiver, Closeable {
+
+    static final int MAGIC = 0x52544344; // "DCTR"
+    static final int VERSION = 1;
+    static final int FLAG_COMPRESSED = 1;
+    static final int FLAG_FIRST_ROW_IS_TOP = 2;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 28 + 6 * 4;
+    // File span mapped at once; a frame that does not fit starts a new window
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final CameraPose cameraPose;
+    private final boolean compress;
+    private final float[] pose = new float[6];
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private boolean closed = false;
+
+    private Deflater deflater;
+    private byte[] rawBytes = new byte[0];
+    private byte[] compressedBytes = new byte[0];
+
+    private volatile long framesWritten;
+    private volatile long rawBytesWritten;
+
+    // cameraPose may be null when the trace does not feed the lighting stages
+    public FrameTraceWriter(String path, boolean compress, boolean firstRowIsTop, CameraPose cameraPose) throws IOException {
+        this(path, compress, firstRowIsTop, cameraPose, WINDOW_SIZE);
+    }
+
+    // Smaller windows let tests cross window boundaries without writing 64 MB
+    FrameTraceWriter(String path, boolean compress, boolean firstRowIsTop, CameraPose cameraPose, int windowSize) throws IOException {
+        this.compress = compress;
+        this.windowSize = windowSize;
+        this.cameraPose = cameraPose;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        if (compress)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+
+        ensureMapped(HEADER_SIZE);
+        window.putInt(MAGIC);
+        window.putInt(VERSION);
+        window.putInt((compress ? FLAG_COMPRESSED : 0) | (firstRowIsTop ? FLAG_FIRST_ROW_IS_TOP : 0));
+        window.putInt(0);
+        position = HEADER_SIZE;
+    }
+
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        write(byteBuffer, width, height, FrameFormat.RGBA, timestamp);
+    }
+
+    @Override
+    public void onNewFrame(ByteBuffer byteBuffer, FrameFormat format, long timestamp) {
+        write(byteBuffer, format.getWidth(), format.getHeight(), format.getPixelFormat(), timestamp);
+    }
+
+    private synchronized void write(ByteBuffer byteBuffer, int width, int height, int pixelFormat, long timestamp) {
+        if (closed) return;
+        int rawLength = byteBuffer.remaining();
+        if (cameraPose != null)
+            cameraPose.get(pose);
+
+        int storedLength = rawLength;
+        if (compress) {
+            if (rawBytes.length < rawLength) {
+                rawBytes = new byte[rawLength];
+                compressedBytes = new byte[rawLength];
+            }
+            byteBuffer.get(rawBytes, 0, rawLength);
+            deflater.reset();
+            deflater.setInput(rawBytes, 0, rawLength);
+            deflater.finish();
+            int deflated = deflater.deflate(compressedBytes, 0, rawLength);
+            // Frames that do not shrink are stored as they are
+            if (deflater.finished() && deflated < rawLength)
+                storedLength = deflated;
+        }
+
+        try {
+            ensureMapped(RECORD_HEADER_SIZE + storedLength + 4);
+        } catch (IOException e) {
+            // Typically a full disk; keep what was written so far readable
+            closed = true;
+            return;
+        }
+        window.putInt(storedLength);
+        window.putInt(rawLength);
+        window.putLong(timestamp);
+        window.putInt(width);
+        window.putInt(height);
+        window.putInt(pixelFormat);
+        for (float value : pose)
+            window.putFloat(value);
+        if (storedLength < rawLength)
+            window.put(compressedBytes, 0, storedLength);
+        else if (compress)
+            window.put(rawBytes, 0, rawLength);
+        else
+            window.put(byteBuffer);
+        position += RECORD_HEADER_SIZE + storedLength;
+
+        framesWritten++;
+        rawBytesWritten += rawLength;
+    }
+
+    // Maps a new window at the write position unless length more bytes fit into the current one
+    private void ensureMapped(int length) throws IOException {
+        if (window != null && position + length <= windowStart + window.capacity()) return;
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(windowSize, length));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public long getRawBytesWritten() {
+        return rawBytesWritten;
+    }
+
+    public synchronized long getBytesWritten() {
+        return position;
+    }
+
+    // Writes the end marker and trims the unused end of the last window
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            if (!closed && window != null && position + 4 <= windowStart + window.capacity())
+                window.putInt(0);
+            closed = true;
+            if (window != null)
+                window.force();
+            window = null;
+            file.setLength(position + 4);
+            file.close();
+        }
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.trev3d.DisplayCapture;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * GPU time spent in one render stage, measured with GL_EXT_disjoint_timer_query.
+ *
+ * Queries cycle through a small ring and are read a few frames after they were issued, so timing
+ * never waits on the GPU. Intervals the driver reports as disjoint (e.g. after a frequency change)
+ * are discarded. Needs GLES3 for the query entry points.
+ */
+public class GpuTimer {
+
+    static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int RING_SIZE = 4;
+    // Weight of the newest sample in the running average
+    private static final float SMOOTHING = 0.1f;
+
+    private final int[] queries = new int[RING_SIZE];
+    private final boolean[] issued = new boolean[RING_SIZE];
+    private final int[] result = new int[1];
+    private int next = 0;
+
+    private volatile long lastNs;
+    private volatile float averageNs;
+    private long droppedQueries;
+
+    public static boolean isSupported(int glesVersion) {
+        if (glesVersion < 3) return false;
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+    }
+
+    GpuTimer() {
+        GLES30.glGenQueries(RING_SIZE, queries, 0);
+    }
+
+    void begin() {
+        collect();
+        if (issued[next]) {
+            // Still in flight after a full ring, reuse it and lose that sample
+            issued[next] = false;
+            droppedQueries++;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[next]);
+    }
+
+    void end() {
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        issued[next] = true;
+        next = (next + 1) % RING_SIZE;
+    }
+
+    // Reads finished queries, oldest first
+    private void collect() {
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+        boolean disjoint = result[0] != 0;
+        for (int i = 0; i < RING_SIZE; i++) {
+            int index = (next + i) % RING_SIZE;
+            if (!issued[index]) continue;
+            GLES30.glGetQueryObjectuiv(queries[index], GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if (result[0] == 0) break;
+            GLES30.glGetQueryObjectuiv(queries[index], GLES30.GL_QUERY_RESULT, result, 0);
+            issued[index] = false;
+            if (disjoint) continue;
+            long elapsed = result[0] & 0xFFFFFFFFL;
+            lastNs = elapsed;
+            averageNs = averageNs == 0f ? elapsed : averageNs + SMOOTHING * (elapsed - averageNs);
+        }
+    }
+
+    public float getLastMs() {
+        return lastNs / 1000000f;
+    }
+
+    public float getAverageMs() {
+        return averageNs / 1000000f;
+    }
+
+    public long getDroppedQueries() {
+        return droppedQueries;
+    }
+
+    // Must run on the GL thread while the context is still alive
+    void release() {
+        GLES30.glDeleteQueries(RING_SIZE, queries, 0);
+    }
+}
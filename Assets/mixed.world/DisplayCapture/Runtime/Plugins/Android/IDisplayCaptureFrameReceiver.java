@@ -0,0 +1,6 @@
+package com.trev3d.DisplayCapture;
+
+public interface IDisplayCaptureFrameReceiver {
+	// The frame is only valid during this call unless the receiver retains it
+	public void onNewFrame(CaptureFrame frame);
+}
@@ -1,8 +1,17 @@
 package com.trev3d.DisplayCapture;
 
-import android.media.Image;
 import java.nio.ByteBuffer;
 
 public interface IDisplayCaptureReceiver {
 	public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp);
-}
\ No newline at end of file
+
+	// One of the FrameFormat constants; receivers that need less than RGBA get smaller frames
+	default int getPixelFormat() {
+		return FrameFormat.RGBA;
+	}
+
+	// Called instead of onNewImage when getPixelFormat is not RGBA, see format for the plane layout
+	default void onNewFrame(ByteBuffer byteBuffer, FrameFormat format, long timestamp) {
+		onNewImage(byteBuffer, format.getWidth(), format.getHeight(), timestamp);
+	}
+}
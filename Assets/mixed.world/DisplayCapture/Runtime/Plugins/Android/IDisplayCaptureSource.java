@@ -0,0 +1,11 @@
+package com.trev3d.DisplayCapture;
+
+// Produces frames for a receiver: the live capture is DisplayCaptureManager, off-device replay is TraceReplaySource.
+// Both run their frames through a FrameProcessor on the way to the receivers.
+public interface IDisplayCaptureSource {
+	// Starts handing frames to receiver on the source's own thread
+	public void start(IDisplayCaptureReceiver receiver);
+
+	// Returns once no more frames will be handed out
+	public void stop();
+}
@@ -0,0 +1,6 @@
+package com.trev3d.DisplayCapture;
+
+public interface IDisplayCaptureTileReceiver {
+	// Called right before onNewImage when change detection is on, bit (ty * tilesX + tx) per changed tile
+	public void onChangedTiles(long changedTiles, int tilesX, int tilesY);
+}
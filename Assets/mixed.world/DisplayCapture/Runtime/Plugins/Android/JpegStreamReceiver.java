@@ -0,0 +1,72 @@
+package com.trev3d.DisplayCapture;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the frames it receives to JPEG and sends them to a {@link FrameStreamServer}, which
+ * makes an MJPEG preview of the capture. Compressing takes milliseconds even for small frames,
+ * so subscribe it through a queued receiver at a low rate and a reduced tier. Frames arriving
+ * while no client is connected are skipped before any work.
+ */
+public class JpegStreamReceiver implements IDisplayCaptureReceiver {
+
+    // Exposes the written bytes without the copy toByteArray makes
+    private static final class JpegOutputStream extends ByteArrayOutputStream {
+        JpegOutputStream() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final FrameStreamServer server;
+    private final int quality;
+    private volatile boolean firstRowIsTop;
+
+    private Bitmap bitmap;
+    private ByteBuffer rows;
+    private final JpegOutputStream jpeg = new JpegOutputStream();
+
+    private volatile long framesSent;
+
+    public JpegStreamReceiver(FrameStreamServer server, int quality, boolean firstRowIsTop) {
+        this.server = server;
+        this.quality = Math.max(1, Math.min(100, quality));
+        this.firstRowIsTop = firstRowIsTop;
+    }
+
+    // Frames come bottom row first unless the capture output is flipped, JPEG wants the top row first
+    public void setFirstRowIsTop(boolean firstRowIsTop) {
+        this.firstRowIsTop = firstRowIsTop;
+    }
+
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        if (server.getClientCount() == 0) return;
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null)
+                bitmap.recycle();
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            rows = ByteBuffer.allocateDirect(width * height * 4);
+        }
+
+        // ARGB_8888 bitmaps hold RGBA bytes, only the row order may need turning around
+        PixelPacker.compact(byteBuffer.duplicate(), width, height, width * 4, 4, !firstRowIsTop, rows);
+        bitmap.copyPixelsFromBuffer(rows);
+        jpeg.reset();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpeg)) return;
+
+        // Every JPEG stands on its own, so any of them can start a client's stream
+        server.send(jpeg.wrap(), true);
+        framesSent++;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+}
@@ -0,0 +1,114 @@
+package com.trev3d.DisplayCapture;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds with log-linear buckets, in the style of
+ * HdrHistogram: every power of two is split into 8 linear sub-buckets, so any recorded value is
+ * known to within 12.5% from 1 us up to hours. Recording is a couple of atomic increments and
+ * never allocates, so it can run on the capture thread for every frame; reads may come from any
+ * thread and see a consistent enough picture for monitoring.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int OCTAVES = 40;
+    private static final int BUCKETS = (OCTAVES + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(bucketOf(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros))
+            current = max.get();
+    }
+
+    // Values below SUB_BUCKETS get a bucket each, above that the top bits pick the sub-bucket
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int octave = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        if (octave > OCTAVES) return BUCKETS - 1;
+        int subBucket = (int) (micros >>> (octave - 1)) & (SUB_BUCKETS - 1);
+        return octave * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls into the bucket
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int octave = bucket / SUB_BUCKETS;
+        long subBucket = (bucket % SUB_BUCKETS) | SUB_BUCKETS;
+        return ((subBucket + 1) << (octave - 1)) - 1;
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    public double getMeanMicros() {
+        long count = total.get();
+        return count > 0 ? (double) sum.get() / count : 0;
+    }
+
+    // Upper bound of the bucket holding the given percentile, 0 if nothing was recorded
+    public long getPercentileMicros(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // name=count/p50/p99/max in milliseconds, e.g. copy=1800/0.41/1.20/3.05
+    public void appendTo(StringBuilder builder) {
+        builder.append(name).append('=').append(getCount()).append('/')
+            .append(formatMillis(getPercentileMicros(50))).append('/')
+            .append(formatMillis(getPercentileMicros(99))).append('/')
+            .append(formatMillis(getMaxMicros()));
+    }
+
+    static String formatMillis(long micros) {
+        return String.format(Locale.US, "%.2f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,339 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per-frame luminance statistics over the RGBA frames handed to receivers: a 256-bin histogram,
+ * mean and variance, the mean color of the brightest pixels and the brightest tile of a coarse
+ * grid, i.e. what LightCapture needs to place and color the directional light.
+ *
+ * Frames are split into row bands that are reduced in parallel on a private fork-join pool. All
+ * working memory is allocated up front; after the first frame of a given size no allocation
+ * happens per frame. Results are written to a small native-order direct buffer guarded by a
+ * sequence counter (odd while writing) so Unity can read them without JNI calls, see
+ * {@link #getResultBuffer}.
+ */
+public class LuminanceStatistics implements IDisplayCaptureReceiver {
+
+    public static final int BINS = 256;
+
+    // Result buffer layout, in 4-byte words
+    public static final int SEQUENCE = 0;
+    public static final int SAMPLE_COUNT = 1;
+    public static final int MEAN_LUMINANCE = 2;
+    public static final int LUMINANCE_VARIANCE = 3;
+    public static final int TOP_THRESHOLD = 4;
+    public static final int TOP_MEAN_RED = 5;
+    public static final int TOP_MEAN_GREEN = 6;
+    public static final int TOP_MEAN_BLUE = 7;
+    public static final int BRIGHTEST_TILE_X = 8;
+    public static final int BRIGHTEST_TILE_Y = 9;
+    public static final int BRIGHTEST_TILE_LUMINANCE = 10;
+    public static final int GRID_WIDTH = 11;
+    public static final int GRID_HEIGHT = 12;
+    public static final int HISTOGRAM = 13;
+    public static final int RESULT_WORDS = HISTOGRAM + BINS;
+
+    private final int gridWidth;
+    private final int gridHeight;
+    private final float topFraction;
+    private final int sampleStep;
+
+    private final ForkJoinPool pool;
+    private final Band[] bands;
+    private final RecursiveAction root;
+
+    // Merged over all bands
+    private final long[] histogram = new long[BINS];
+    private final long[] binRed = new long[BINS];
+    private final long[] binGreen = new long[BINS];
+    private final long[] binBlue = new long[BINS];
+    private final long[] tileSums;
+    private final long[] tileCounts;
+
+    // Shared with the bands for the frame being processed
+    private ByteBuffer frame;
+    private int frameWidth;
+    private int frameHeight;
+    private int redShift;
+    private int greenShift;
+    private int blueShift;
+    private int[] columnTiles = new int[0];
+
+    private final ByteBuffer results;
+    private int sequence = 0;
+    // Written around the sequence updates for the barriers a volatile store implies
+    private volatile int publishFence;
+
+    private float meanLuminance;
+    private float luminanceVariance;
+    private float topThreshold;
+    private final float[] topMeanColor = new float[3];
+    private int brightestTileX;
+    private int brightestTileY;
+    private float brightestTileLuminance;
+
+    public LuminanceStatistics(int gridWidth, int gridHeight, float topFraction) {
+        this(gridWidth, gridHeight, topFraction, 1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param topFraction share of the brightest samples averaged into the top mean color, e.g. 0.2
+     * @param sampleStep  only every sampleStep-th pixel of every sampleStep-th row is looked at
+     * @param parallelism number of bands processed at once
+     */
+    public LuminanceStatistics(int gridWidth, int gridHeight, float topFraction, int sampleStep, int parallelism) {
+        if (gridWidth <= 0 || gridHeight <= 0)
+            throw new IllegalArgumentException("Invalid grid " + gridWidth + "x" + gridHeight);
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.topFraction = Math.max(0f, Math.min(1f, topFraction));
+        this.sampleStep = Math.max(1, sampleStep);
+
+        tileSums = new long[gridWidth * gridHeight];
+        tileCounts = new long[gridWidth * gridHeight];
+
+        parallelism = Math.max(1, parallelism);
+        pool = new ForkJoinPool(parallelism);
+        // A few bands per worker so uneven scheduling still balances out
+        bands = new Band[parallelism * 2];
+        for (int i = 0; i < bands.length; i++)
+            bands[i] = new Band();
+        root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(bands);
+            }
+        };
+
+        results = ByteBuffer.allocateDirect(RESULT_WORDS * 4).order(ByteOrder.nativeOrder());
+        results.putInt(GRID_WIDTH * 4, gridWidth);
+        results.putInt(GRID_HEIGHT * 4, gridHeight);
+    }
+
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        frame = byteBuffer;
+        frameWidth = width;
+        frameHeight = height;
+        boolean bigEndian = byteBuffer.order() == ByteOrder.BIG_ENDIAN;
+        redShift = bigEndian ? 24 : 0;
+        greenShift = bigEndian ? 16 : 8;
+        blueShift = bigEndian ? 8 : 16;
+
+        if (columnTiles.length != width) {
+            columnTiles = new int[width];
+            for (int x = 0; x < width; x++)
+                columnTiles[x] = x * gridWidth / width;
+        }
+
+        int rows = (height + sampleStep - 1) / sampleStep;
+        for (int i = 0; i < bands.length; i++) {
+            bands[i].reinitialize();
+            bands[i].rowStart = (int) ((long) rows * i / bands.length) * sampleStep;
+            bands[i].rowEnd = Math.min(height, (int) ((long) rows * (i + 1) / bands.length) * sampleStep);
+        }
+        root.reinitialize();
+        pool.invoke(root);
+
+        merge();
+        publish();
+        frame = null;
+    }
+
+    private void merge() {
+        Arrays.fill(histogram, 0);
+        Arrays.fill(binRed, 0);
+        Arrays.fill(binGreen, 0);
+        Arrays.fill(binBlue, 0);
+        Arrays.fill(tileSums, 0);
+        Arrays.fill(tileCounts, 0);
+        long sum = 0;
+        long sumSquares = 0;
+        for (Band band : bands) {
+            for (int b = 0; b < BINS; b++) {
+                histogram[b] += band.histogram[b];
+                binRed[b] += band.binRed[b];
+                binGreen[b] += band.binGreen[b];
+                binBlue[b] += band.binBlue[b];
+            }
+            for (int t = 0; t < tileSums.length; t++) {
+                tileSums[t] += band.tileSums[t];
+                tileCounts[t] += band.tileCounts[t];
+            }
+            sum += band.sum;
+            sumSquares += band.sumSquares;
+        }
+
+        long count = 0;
+        for (int b = 0; b < BINS; b++)
+            count += histogram[b];
+        if (count == 0) return;
+
+        double mean = (double) sum / count;
+        meanLuminance = (float) (mean / 255.0);
+        luminanceVariance = (float) Math.max(0.0, ((double) sumSquares / count - mean * mean) / (255.0 * 255.0));
+
+        // Walk down from the brightest bin until topFraction of the samples are covered,
+        // taking only the needed share of the bin that crosses the threshold
+        double wanted = Math.max(1.0, count * topFraction);
+        double taken = 0, red = 0, green = 0, blue = 0;
+        int bin = BINS - 1;
+        for (; bin >= 0 && taken < wanted; bin--) {
+            if (histogram[bin] == 0) continue;
+            double share = Math.min(1.0, (wanted - taken) / histogram[bin]);
+            taken += histogram[bin] * share;
+            red += binRed[bin] * share;
+            green += binGreen[bin] * share;
+            blue += binBlue[bin] * share;
+        }
+        topThreshold = (bin + 1) / 255f;
+        topMeanColor[0] = (float) (red / taken / 255.0);
+        topMeanColor[1] = (float) (green / taken / 255.0);
+        topMeanColor[2] = (float) (blue / taken / 255.0);
+
+        double brightest = -1;
+        for (int t = 0; t < tileSums.length; t++) {
+            if (tileCounts[t] == 0) continue;
+            double tileMean = (double) tileSums[t] / tileCounts[t];
+            if (tileMean > brightest) {
+                brightest = tileMean;
+                brightestTileX = t % gridWidth;
+                brightestTileY = t / gridWidth;
+            }
+        }
+        brightestTileLuminance = (float) (brightest / 255.0);
+    }
+
+    private void publish() {
+        long count = 0;
+        for (int b = 0; b < BINS; b++)
+            count += histogram[b];
+
+        results.putInt(SEQUENCE * 4, ++sequence);
+        publishFence = sequence;
+        results.putInt(SAMPLE_COUNT * 4, (int) count);
+        results.putFloat(MEAN_LUMINANCE * 4, meanLuminance);
+        results.putFloat(LUMINANCE_VARIANCE * 4, luminanceVariance);
+        results.putFloat(TOP_THRESHOLD * 4, topThreshold);
+        results.putFloat(TOP_MEAN_RED * 4, topMeanColor[0]);
+        results.putFloat(TOP_MEAN_GREEN * 4, topMeanColor[1]);
+        results.putFloat(TOP_MEAN_BLUE * 4, topMeanColor[2]);
+        results.putInt(BRIGHTEST_TILE_X * 4, brightestTileX);
+        results.putInt(BRIGHTEST_TILE_Y * 4, brightestTileY);
+        results.putFloat(BRIGHTEST_TILE_LUMINANCE * 4, brightestTileLuminance);
+        float scale = count > 0 ? 1f / count : 0f;
+        for (int b = 0; b < BINS; b++)
+            results.putFloat((HISTOGRAM + b) * 4, histogram[b] * scale);
+        publishFence = sequence;
+        results.putInt(SEQUENCE * 4, ++sequence);
+    }
+
+    /**
+     * Native-order buffer of {@link #RESULT_WORDS} words laid out as the constants above. The
+     * sequence word is odd while an update is in progress; readers should retry until they see
+     * the same even value before and after copying.
+     */
+    public ByteBuffer getResultBuffer() {
+        return results;
+    }
+
+    public float getMeanLuminance() {
+        return meanLuminance;
+    }
+
+    public float getLuminanceVariance() {
+        return luminanceVariance;
+    }
+
+    // Luminance at which the brightest topFraction of samples starts
+    public float getTopThreshold() {
+        return topThreshold;
+    }
+
+    public float[] getTopMeanColor() {
+        return topMeanColor;
+    }
+
+    // Tile coordinates follow buffer row order, so y = 0 is the first row in the buffer
+    public int getBrightestTileX() {
+        return brightestTileX;
+    }
+
+    public int getBrightestTileY() {
+        return brightestTileY;
+    }
+
+    public float getBrightestTileLuminance() {
+        return brightestTileLuminance;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    // Reused every frame on the pool, never serialized
+    @SuppressWarnings("serial")
+    private final class Band extends RecursiveAction {
+        int rowStart;
+        int rowEnd;
+
+        final long[] histogram = new long[BINS];
+        final long[] binRed = new long[BINS];
+        final long[] binGreen = new long[BINS];
+        final long[] binBlue = new long[BINS];
+        final long[] tileSums = new long[gridWidth * gridHeight];
+        final long[] tileCounts = new long[gridWidth * gridHeight];
+        long sum;
+        long sumSquares;
+
+        @Override
+        protected void compute() {
+            Arrays.fill(histogram, 0);
+            Arrays.fill(binRed, 0);
+            Arrays.fill(binGreen, 0);
+            Arrays.fill(binBlue, 0);
+            Arrays.fill(tileSums, 0);
+            Arrays.fill(tileCounts, 0);
+            long bandSum = 0;
+            long bandSumSquares = 0;
+
+            ByteBuffer pixels = frame;
+            int width = frameWidth;
+            int step = sampleStep;
+            int rowBytes = width * 4;
+            int[] tiles = columnTiles;
+            int rShift = redShift, gShift = greenShift, bShift = blueShift;
+
+            for (int y = rowStart; y < rowEnd; y += step) {
+                int tileRow = (y * gridHeight / frameHeight) * gridWidth;
+                int offset = y * rowBytes;
+                for (int x = 0; x < width; x += step) {
+                    int pixel = pixels.getInt(offset + x * 4);
+                    int r = (pixel >>> rShift) & 0xFF;
+                    int g = (pixel >>> gShift) & 0xFF;
+                    int b = (pixel >>> bShift) & 0xFF;
+                    // Rec. 709 weights in 8.8 fixed point
+                    int luminance = (54 * r + 183 * g + 19 * b) >>> 8;
+
+                    histogram[luminance]++;
+                    binRed[luminance] += r;
+                    binGreen[luminance] += g;
+                    binBlue[luminance] += b;
+                    int tile = tileRow + tiles[x];
+                    tileSums[tile] += luminance;
+                    tileCounts[tile]++;
+                    bandSum += luminance;
+                    bandSumSquares += luminance * luminance;
+                }
+            }
+            sum = bandSum;
+            sumSquares = bandSumSquares;
+        }
+    }
+}
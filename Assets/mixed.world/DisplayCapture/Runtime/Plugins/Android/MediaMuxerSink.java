@@ -0,0 +1,60 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Regular MP4 output through the platform MediaMuxer. The file is only playable once
+ * {@link #stop} has written the index.
+ */
+public class MediaMuxerSink implements SampleSink {
+
+    private final String path;
+    private MediaMuxer muxer;
+    private int track = -1;
+
+    public MediaMuxerSink(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public void start(MediaFormat format) throws IOException {
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        track = muxer.addTrack(format);
+        muxer.start();
+        Log.i(TAG, "MediaMuxer started: " + path);
+    }
+
+    @Override
+    public void write(ByteBuffer data, MediaCodec.BufferInfo info) {
+        muxer.writeSampleData(track, data, info);
+    }
+
+    @Override
+    public void stop() {
+        if (muxer == null) return;
+        try {
+            muxer.stop();
+        } catch (Exception e) {
+            Log.e(TAG, "Error stopping mediaMuxer: " + e.getMessage(), e);
+        }
+        try {
+            muxer.release();
+        } catch (Exception e) {
+            Log.e(TAG, "Error releasing mediaMuxer: " + e.getMessage(), e);
+        }
+        muxer = null;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+}
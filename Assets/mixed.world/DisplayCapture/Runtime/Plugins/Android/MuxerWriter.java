@@ -0,0 +1,278 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Writes encoded samples to a {@link SampleSink} on its own thread, so a slow write never holds
+ * up the encoder output callback.
+ *
+ * Samples are copied into a fixed pool of direct buffers and queued; the writer thread drains
+ * whatever is queued in one batch. When the queue fills past its high watermark, frames no
+ * other frame references are dropped first. If a reference frame finds no free buffer it is
+ * dropped together with everything up to the next keyframe, and {@link #submit} tells the caller
+ * to request one. Either way the encoder is never blocked.
+ */
+public class MuxerWriter {
+
+    private static final class Sample {
+        ByteBuffer data;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    }
+
+    private static final int LATENCY_BUCKETS = 32;
+
+    private final SampleSink sink;
+    private final boolean hevc;
+    private final int queueDepth;
+    private final int highWatermark;
+    private final ArrayBlockingQueue<Sample> free;
+    private final ArrayBlockingQueue<Sample> pending;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean started = false;
+    private boolean dropUntilKeyFrame = false;
+    private boolean waitingForKeyFrame = false;
+
+    // Write latency histogram, bucket i counts writes that took under 2^i microseconds
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS);
+    private volatile int maxQueueDepth;
+    private volatile long writtenSamples;
+    private volatile long batches;
+    private volatile long backPressureEvents;
+    private volatile long droppedNonReference;
+    private volatile long droppedReference;
+
+    public MuxerWriter(SampleSink sink, boolean hevc, int queueDepth, int initialBufferSize) {
+        this.sink = sink;
+        this.hevc = hevc;
+        this.queueDepth = queueDepth;
+        highWatermark = Math.max(1, queueDepth * 3 / 4);
+        free = new ArrayBlockingQueue<Sample>(queueDepth);
+        pending = new ArrayBlockingQueue<Sample>(queueDepth);
+        for (int i = 0; i < queueDepth; i++) {
+            Sample sample = new Sample();
+            sample.data = ByteBuffer.allocateDirect(initialBufferSize);
+            free.add(sample);
+        }
+        thread = new Thread(this::writeLoop, "MuxerWriter");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    // Starts the sink with the codec config and starts writing; call once before submitting samples
+    public void start(MediaFormat format) throws IOException {
+        if (started) return;
+        sink.start(format);
+        started = true;
+        thread.start();
+    }
+
+    // Like start, for an encoder that is already running: samples before its next keyframe are skipped
+    public void startMidStream(MediaFormat format) throws IOException {
+        waitingForKeyFrame = true;
+        start(format);
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Queues a copy of an encoded sample. Never blocks.
+     *
+     * @return false if a reference frame had to be dropped and the stream needs a keyframe to recover
+     */
+    public boolean submit(ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (!started) return true;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (waitingForKeyFrame) {
+            if (!keyFrame) return true;
+            waitingForKeyFrame = false;
+        }
+        if (dropUntilKeyFrame && !keyFrame) {
+            droppedReference++;
+            return true;
+        }
+        dropUntilKeyFrame = false;
+
+        int depth = pending.size();
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+        if (depth >= highWatermark && !keyFrame && isNonReference(data, info.offset, info.size, hevc)) {
+            backPressureEvents++;
+            droppedNonReference++;
+            return true;
+        }
+
+        Sample sample = free.poll();
+        if (sample == null) {
+            backPressureEvents++;
+            if (!keyFrame && isNonReference(data, info.offset, info.size, hevc)) {
+                droppedNonReference++;
+                return true;
+            }
+            droppedReference++;
+            dropUntilKeyFrame = true;
+            return false;
+        }
+
+        if (sample.data.capacity() < info.size)
+            sample.data = ByteBuffer.allocateDirect(info.size + info.size / 4);
+        sample.data.clear();
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        sample.data.put(data);
+        sample.data.flip();
+        sample.info.set(0, info.size, info.presentationTimeUs, info.flags);
+        pending.add(sample);
+        return true;
+    }
+
+    private void writeLoop() {
+        ArrayList<Sample> batch = new ArrayList<Sample>(queueDepth);
+        while (running || !pending.isEmpty()) {
+            try {
+                Sample first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                pending.drainTo(batch);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                Sample sample = batch.get(i);
+                long start = System.nanoTime();
+                try {
+                    sink.write(sample.data, sample.info);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error writing sample: " + e.getMessage());
+                }
+                recordLatency((System.nanoTime() - start) / 1000);
+                writtenSamples++;
+                free.add(sample);
+            }
+            batches++;
+            batch.clear();
+        }
+    }
+
+    private void recordLatency(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, micros));
+        latencyBuckets.incrementAndGet(Math.min(LATENCY_BUCKETS - 1, bucket));
+    }
+
+    // Drains the queue and finishes the output
+    public void stop() {
+        running = false;
+        if (started) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sink.stop();
+        Log.i(TAG, "Muxer writer stopped: " + getStats());
+    }
+
+    public String getPath() {
+        return sink.getPath();
+    }
+
+    /**
+     * Whether no other frame references this one, from the NAL headers of an Annex-B access unit:
+     * nal_ref_idc of 0 on an H.264 slice, or a sub-layer non-reference type for HEVC.
+     */
+    static boolean isNonReference(ByteBuffer data, int offset, int size, boolean hevc) {
+        int end = offset + size;
+        int zeros = 0;
+        for (int i = offset; i < end - 1; i++) {
+            byte b = data.get(i);
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                int header = data.get(i + 1) & 0xFF;
+                if (hevc) {
+                    int type = (header >> 1) & 0x3F;
+                    // VCL types below 16; even ones are not used for reference
+                    if (type < 16)
+                        return (type & 1) == 0;
+                }
+                else {
+                    int type = header & 0x1F;
+                    if (type == 1 || type == 5)
+                        return (header >> 5) == 0;
+                }
+            }
+            zeros = 0;
+        }
+        return false;
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    // Approximate write latency percentile in microseconds, the upper bound of its bucket
+    public long getLatencyPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++)
+            total += latencyBuckets.get(i);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (LATENCY_BUCKETS - 1);
+    }
+
+    public long getWrittenSamples() {
+        return writtenSamples;
+    }
+
+    public long getBackPressureEvents() {
+        return backPressureEvents;
+    }
+
+    public long getDroppedNonReference() {
+        return droppedNonReference;
+    }
+
+    // Reference frames dropped, plus the frames after them up to the next keyframe
+    public long getDroppedReference() {
+        return droppedReference;
+    }
+
+    public String getStats() {
+        long batchCount = batches;
+        return "queue=" + getQueueDepth() + " maxQueue=" + maxQueueDepth
+            + " written=" + writtenSamples
+            + " avgBatch=" + (batchCount > 0 ? writtenSamples / batchCount : 0)
+            + " p50=" + getLatencyPercentile(50) + "us"
+            + " p95=" + getLatencyPercentile(95) + "us"
+            + " p99=" + getLatencyPercentile(99) + "us"
+            + " backPressure=" + backPressureEvents
+            + " droppedNonRef=" + droppedNonReference
+            + " droppedRef=" + droppedReference;
+    }
+}
@@ -0,0 +1,126 @@
+package com.trev3d.DisplayCapture;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GPU conversion of the capture texture into one of the smaller {@link FrameFormat}s.
+ *
+ * The packing shader writes the planes as RGBA8 texels into a target of
+ * FrameFormat.getPackedWidth() x getPackedHeight(), so reading the target back yields the planes
+ * exactly as the format lays them out, at 1 or 1.5 bytes per pixel instead of 4. GL state is
+ * created lazily on the capture thread.
+ */
+public class PackedFrameTarget {
+
+    private final FrameFormat format;
+    private final RenderStage stage;
+    private final ByteBuffer byteBuffer;
+    private PixelBufferReadback pixelBufferReadback;
+    private int framebuffer;
+    private int texture;
+    private boolean initialized = false;
+    private long deliveredTimestamp;
+
+    public PackedFrameTarget(FrameFormat format) {
+        this.format = format;
+        stage = new RenderStage(formatName(format.getPixelFormat()), format);
+        byteBuffer = ByteBuffer.allocateDirect(format.getByteCount());
+    }
+
+    boolean isInitialized() {
+        return initialized;
+    }
+
+    // readbackRingDepth of 0 reads back synchronously
+    void initialize(int readbackRingDepth) {
+        int packedWidth = format.getPackedWidth();
+        int packedHeight = format.getPackedHeight();
+
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        texture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, packedWidth, packedHeight, 0,
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, ids, 0);
+        framebuffer = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+            GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE)
+            throw new RuntimeException("Incomplete framebuffer for " + stage.getName() + " target: " + status);
+
+        if (readbackRingDepth >= 2) {
+            pixelBufferReadback = new PixelBufferReadback(packedWidth, packedHeight, readbackRingDepth);
+            pixelBufferReadback.initialize();
+        }
+        initialized = true;
+    }
+
+    /**
+     * Packs the current frame and reads it back.
+     *
+     * @return true if a packed frame is ready in getByteBuffer, stamped with getDeliveredTimestamp
+     */
+    boolean render(RenderPipeline pipeline, long timestamp, long frameNumber) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glViewport(0, 0, format.getPackedWidth(), format.getPackedHeight());
+        pipeline.draw(stage);
+
+        if (pixelBufferReadback != null) {
+            boolean frameReady = pixelBufferReadback.readback(byteBuffer, timestamp, frameNumber);
+            deliveredTimestamp = pixelBufferReadback.getDeliveredTimestamp();
+            return frameReady;
+        }
+        byteBuffer.clear();
+        GLES20.glReadPixels(0, 0, format.getPackedWidth(), format.getPackedHeight(),
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, byteBuffer);
+        deliveredTimestamp = timestamp;
+        return true;
+    }
+
+    // Must run on the GL thread while the context is still alive
+    void release() {
+        if (!initialized) return;
+        if (pixelBufferReadback != null) {
+            pixelBufferReadback.release();
+            pixelBufferReadback = null;
+        }
+        GLES20.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+        GLES20.glDeleteTextures(1, new int[] { texture }, 0);
+        initialized = false;
+    }
+
+    public FrameFormat getFormat() {
+        return format;
+    }
+
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    public long getDeliveredTimestamp() {
+        return deliveredTimestamp;
+    }
+
+    RenderStage getStage() {
+        return stage;
+    }
+
+    static String formatName(int pixelFormat) {
+        switch (pixelFormat) {
+            case FrameFormat.NV12: return "nv12";
+            case FrameFormat.I420: return "i420";
+            case FrameFormat.LUMA: return "luma";
+            default: return "rgba";
+        }
+    }
+}
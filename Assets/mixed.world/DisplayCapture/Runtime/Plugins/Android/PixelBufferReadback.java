@@ -0,0 +1,184 @@
+package com.trev3d.DisplayCapture;
+
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous glReadPixels through a ring of pixel buffer objects.
+ *
+ * While every frame is read back, each call to {@link #readback} queues a read of the current
+ * framebuffer into the next PBO and copies out the oldest queued frame, so the CPU sees frames
+ * (depth - 1) frames late but the draw never waits on the transfer. If the oldest frame is still
+ * in flight it is dropped instead of stalling. A frame that does not directly follow the last
+ * one read back, as when frames are paced or requested, is waited for on its fence instead:
+ * the ring would otherwise hand out a frame from before the gap and the one asked for only
+ * with the next call. Every read is flushed as it is issued, so its fence signals whether or not
+ * anything swaps buffers. Must be used on the thread that owns the GLES3 context.
+ */
+public class PixelBufferReadback {
+
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final int depth;
+
+    // Longest a fence-waited read may block before its frame is dropped
+    private static final long FENCE_TIMEOUT_NS = 50000000L;
+
+    private final int[] pixelBuffers;
+    private final long[] fences;
+    private final long[] timestamps;
+    private final boolean[] pending;
+    private int writeIndex = 0;
+    private long lastFrameNumber = Long.MIN_VALUE;
+
+    private long deliveredTimestamp;
+
+    private volatile long lastIssueTimeNs;
+    private volatile long lastMapTimeNs;
+    private volatile long averageIssueTimeNs;
+    private volatile long averageMapTimeNs;
+    private volatile long deliveredFrames;
+    private volatile long droppedFrames;
+
+    public PixelBufferReadback(int width, int height, int depth) {
+        if (depth < 2)
+            throw new IllegalArgumentException("PBO ring needs at least 2 buffers, got " + depth);
+        this.width = width;
+        this.height = height;
+        this.frameSize = width * height * 4;
+        this.depth = depth;
+        pixelBuffers = new int[depth];
+        fences = new long[depth];
+        timestamps = new long[depth];
+        pending = new boolean[depth];
+    }
+
+    public void initialize() {
+        GLES30.glGenBuffers(depth, pixelBuffers, 0);
+        for (int i = 0; i < depth; i++) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[i]);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, frameSize, null, GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Queues a read of the bound framebuffer and copies the oldest completed frame into target.
+     * frameNumber counts the frames drawn, whether read back or not, so gaps can be told apart.
+     *
+     * @return true if target now holds a frame, whose capture time is {@link #getDeliveredTimestamp}
+     */
+    public boolean readback(ByteBuffer target, long timestamp, long frameNumber) {
+        boolean pipelined = frameNumber == lastFrameNumber + 1;
+        lastFrameNumber = frameNumber;
+        long start = System.nanoTime();
+
+        // The slot we are about to overwrite can no longer be delivered, and after a gap
+        // nothing still queued is worth delivering
+        for (int i = 0; i < depth; i++) {
+            if (pending[i] && (i == writeIndex || !pipelined)) {
+                GLES30.glDeleteSync(fences[i]);
+                pending[i] = false;
+                droppedFrames++;
+            }
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[writeIndex]);
+        GLES30.glReadPixels(0, 0, width, height, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+        fences[writeIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        // Sessions that do not record never swap buffers, and an unflushed fence may never signal
+        GLES30.glFlush();
+        timestamps[writeIndex] = timestamp;
+        pending[writeIndex] = true;
+        writeIndex = (writeIndex + 1) % depth;
+
+        long issued = System.nanoTime();
+        lastIssueTimeNs = issued - start;
+        averageIssueTimeNs += (lastIssueTimeNs - averageIssueTimeNs) >> 4;
+
+        // After advancing, writeIndex points at the oldest queued read; after a gap only the
+        // read just issued is queued, and it is waited for
+        int readIndex = pipelined ? writeIndex : (writeIndex + depth - 1) % depth;
+        boolean delivered = false;
+        if (pending[readIndex]) {
+            int status = pipelined
+                ? GLES30.glClientWaitSync(fences[readIndex], 0, 0)
+                : GLES30.glClientWaitSync(fences[readIndex], GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NS);
+            if (status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED) {
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[readIndex]);
+                ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+                    GLES30.GL_PIXEL_PACK_BUFFER, 0, frameSize, GLES30.GL_MAP_READ_BIT);
+                if (mapped != null) {
+                    target.clear();
+                    target.put(mapped);
+                    target.rewind();
+                    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                    deliveredTimestamp = timestamps[readIndex];
+                    delivered = true;
+                    deliveredFrames++;
+                }
+                GLES30.glDeleteSync(fences[readIndex]);
+                pending[readIndex] = false;
+
+                lastMapTimeNs = System.nanoTime() - issued;
+                averageMapTimeNs += (lastMapTimeNs - averageMapTimeNs) >> 4;
+            }
+            else if (!pipelined) {
+                GLES30.glDeleteSync(fences[readIndex]);
+                pending[readIndex] = false;
+                droppedFrames++;
+            }
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        return delivered;
+    }
+
+    public void release() {
+        for (int i = 0; i < depth; i++) {
+            if (pending[i]) {
+                GLES30.glDeleteSync(fences[i]);
+                pending[i] = false;
+            }
+        }
+        GLES30.glDeleteBuffers(depth, pixelBuffers, 0);
+    }
+
+    public long getDeliveredTimestamp() {
+        return deliveredTimestamp;
+    }
+
+    // Number of frames the CPU copy trails the GPU draw by while every frame is read back
+    public int getLatencyFrames() {
+        return depth - 1;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getLastIssueTimeNs() {
+        return lastIssueTimeNs;
+    }
+
+    public long getLastMapTimeNs() {
+        return lastMapTimeNs;
+    }
+
+    public long getAverageIssueTimeNs() {
+        return averageIssueTimeNs;
+    }
+
+    public long getAverageMapTimeNs() {
+        return averageMapTimeNs;
+    }
+
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
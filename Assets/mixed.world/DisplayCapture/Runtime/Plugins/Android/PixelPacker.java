@@ -0,0 +1,156 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CPU pixel copies: compacting strided image planes, and converting a packed RGBA frame into
+ * another {@link FrameFormat}, a smaller size or a {@link CaptureRegion} for frames that do not go
+ * through the GL pipeline and for reduced resolution subscriptions. Conversions use the same BT.601 limited range
+ * coefficients as the GPU packing shader, with each chroma sample averaged over its 2x2 block.
+ */
+final class PixelPacker {
+
+    private PixelPacker() {
+    }
+
+    static void pack(ByteBuffer rgba, FrameFormat format, ByteBuffer out) {
+        int width = format.getWidth();
+        int height = format.getHeight();
+        int rowBytes = width * 4;
+
+        for (int y = 0; y < height; y++) {
+            int source = y * rowBytes;
+            int target = y * width;
+            for (int x = 0; x < width; x++, source += 4) {
+                int r = rgba.get(source) & 0xFF;
+                int g = rgba.get(source + 1) & 0xFF;
+                int b = rgba.get(source + 2) & 0xFF;
+                out.put(target + x, (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16));
+            }
+        }
+
+        if (format.getPixelFormat() == FrameFormat.NV12 || format.getPixelFormat() == FrameFormat.I420) {
+            boolean interleaved = format.getPixelFormat() == FrameFormat.NV12;
+            int uOffset = format.getPlaneOffset(1);
+            int vOffset = interleaved ? uOffset + 1 : format.getPlaneOffset(2);
+            int chromaStride = format.getPlaneRowStride(1);
+            int chromaStep = format.getPlanePixelStride(1);
+            for (int cy = 0; cy < height / 2; cy++) {
+                int top = cy * 2 * rowBytes;
+                for (int cx = 0; cx < width / 2; cx++) {
+                    int p = top + cx * 8;
+                    int r = (rgba.get(p) & 0xFF) + (rgba.get(p + 4) & 0xFF)
+                        + (rgba.get(p + rowBytes) & 0xFF) + (rgba.get(p + rowBytes + 4) & 0xFF);
+                    int g = (rgba.get(p + 1) & 0xFF) + (rgba.get(p + 5) & 0xFF)
+                        + (rgba.get(p + rowBytes + 1) & 0xFF) + (rgba.get(p + rowBytes + 5) & 0xFF);
+                    int b = (rgba.get(p + 2) & 0xFF) + (rgba.get(p + 6) & 0xFF)
+                        + (rgba.get(p + rowBytes + 2) & 0xFF) + (rgba.get(p + rowBytes + 6) & 0xFF);
+                    r = (r + 2) >> 2;
+                    g = (g + 2) >> 2;
+                    b = (b + 2) >> 2;
+                    int index = cy * chromaStride + cx * chromaStep;
+                    out.put(uOffset + index, (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128));
+                    out.put(vOffset + index, (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128));
+                }
+            }
+        }
+
+        out.limit(format.getByteCount());
+        out.position(0);
+    }
+
+    /**
+     * Copies a plane with rowStride bytes per row into target without the row padding, bottom row
+     * first if flipRows. Moves source's position and limit, so pass a scratch view of the plane.
+     */
+    static void compact(ByteBuffer source, int width, int height, int rowStride, int pixelStride,
+                        boolean flipRows, ByteBuffer target) {
+        int rowBytes = width * pixelStride;
+        target.clear();
+        if (rowStride == rowBytes && !flipRows) {
+            source.limit(rowBytes * height).position(0);
+            target.put(source);
+        }
+        else {
+            for (int y = 0; y < height; y++) {
+                int start = (flipRows ? height - 1 - y : y) * rowStride;
+                source.limit(start + rowBytes).position(start);
+                target.put(source);
+            }
+        }
+        target.flip();
+    }
+
+    /**
+     * Shrinks a tightly packed RGBA frame by factor in both directions. Each output pixel averages
+     * four taps spread over its factor x factor block, an exact box filter at factor 2.
+     */
+    static void downscale(ByteBuffer rgba, int width, int height, int factor, ByteBuffer out) {
+        int outWidth = width / factor;
+        int outHeight = height / factor;
+        int rowBytes = width * 4;
+        int near = factor / 4;
+        int far = factor - 1 - near;
+
+        for (int y = 0; y < outHeight; y++) {
+            int top = (y * factor + near) * rowBytes;
+            int bottom = (y * factor + far) * rowBytes;
+            int target = y * outWidth * 4;
+            for (int x = 0; x < outWidth; x++, target += 4) {
+                int left = (x * factor + near) * 4;
+                int right = (x * factor + far) * 4;
+                for (int c = 0; c < 4; c++) {
+                    int sum = (rgba.get(top + left + c) & 0xFF) + (rgba.get(top + right + c) & 0xFF)
+                        + (rgba.get(bottom + left + c) & 0xFF) + (rgba.get(bottom + right + c) & 0xFF);
+                    out.put(target + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+
+        out.limit(outWidth * outHeight * 4);
+        out.position(0);
+    }
+
+    /**
+     * Resamples a region of a packed RGBA frame to the region's size with four taps per output
+     * pixel, spread over the area it covers like the GL target's. Rows come out bottom first.
+     */
+    static void resample(ByteBuffer rgba, int width, int height, boolean firstRowIsTop,
+                         CaptureRegion region, ByteBuffer out) {
+        int outWidth = region.getWidth();
+        int outHeight = region.getHeight();
+        float stepX = region.getCropWidth() / outWidth;
+        float stepY = region.getCropHeight() / outHeight;
+
+        for (int y = 0; y < outHeight; y++) {
+            // Output row 0 is the bottom of the crop, the crop is measured from the top
+            float top = region.getCropY() + (outHeight - 1 - y + 0.5f) * stepY;
+            int upper = row(top - 0.25f * stepY, height, firstRowIsTop) * width * 4;
+            int lower = row(top + 0.25f * stepY, height, firstRowIsTop) * width * 4;
+            int target = y * outWidth * 4;
+            for (int x = 0; x < outWidth; x++, target += 4) {
+                float center = region.getCropX() + (x + 0.5f) * stepX;
+                int left = clamp((int) ((center - 0.25f * stepX) * width), width) * 4;
+                int right = clamp((int) ((center + 0.25f * stepX) * width), width) * 4;
+                for (int c = 0; c < 4; c++) {
+                    int sum = (rgba.get(upper + left + c) & 0xFF) + (rgba.get(upper + right + c) & 0xFF)
+                        + (rgba.get(lower + left + c) & 0xFF) + (rgba.get(lower + right + c) & 0xFF);
+                    out.put(target + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+
+        out.limit(outWidth * outHeight * 4);
+        out.position(0);
+    }
+
+    // Buffer row of a normalized height measured from the top
+    private static int row(float fromTop, int height, boolean firstRowIsTop) {
+        int row = clamp((int) (fromTop * height), height);
+        return firstRowIsTop ? row : height - 1 - row;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : Math.min(value, size - 1);
+    }
+}
@@ -0,0 +1,157 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a slow receiver on its own thread behind a bounded frame queue.
+ *
+ * Frames are copied into preallocated buffers on the capture thread and handed to the wrapped
+ * receiver in order. When the queue is full the oldest queued frame is dropped, so a receiver
+ * that falls behind sees fresh frames instead of adding latency for everybody else.
+ */
+public class QueuedDisplayCaptureReceiver implements IDisplayCaptureReceiver {
+
+    private final IDisplayCaptureReceiver receiver;
+    private final int depth;
+    private final Thread worker;
+    private final Object lock = new Object();
+
+    // depth queued frames plus the one the worker is busy with
+    private final ByteBuffer[] buffers;
+    private final boolean[] busy;
+    private final int[] widths;
+    private final int[] heights;
+    // Null for RGBA frames delivered through onNewImage
+    private final FrameFormat[] formats;
+    private final long[] timestamps;
+
+    private final int[] queue;
+    private int head = 0;
+    private int count = 0;
+    private boolean running = true;
+
+    private volatile long deliveredFrames;
+    private volatile long droppedFrames;
+
+    public QueuedDisplayCaptureReceiver(IDisplayCaptureReceiver receiver, int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("Queue depth must be at least 1, got " + depth);
+        this.receiver = receiver;
+        this.depth = depth;
+        buffers = new ByteBuffer[depth + 1];
+        busy = new boolean[depth + 1];
+        widths = new int[depth + 1];
+        heights = new int[depth + 1];
+        formats = new FrameFormat[depth + 1];
+        timestamps = new long[depth + 1];
+        queue = new int[depth];
+
+        worker = new Thread(this::run, "DisplayCaptureReceiver-" + receiver.getClass().getSimpleName());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public IDisplayCaptureReceiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public int getPixelFormat() {
+        return receiver.getPixelFormat();
+    }
+
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        enqueue(byteBuffer, width, height, null, timestamp);
+    }
+
+    @Override
+    public void onNewFrame(ByteBuffer byteBuffer, FrameFormat format, long timestamp) {
+        enqueue(byteBuffer, format.getWidth(), format.getHeight(), format, timestamp);
+    }
+
+    private void enqueue(ByteBuffer byteBuffer, int width, int height, FrameFormat format, long timestamp) {
+        int slot;
+        synchronized (lock) {
+            if (!running) return;
+            if (count == depth) {
+                slot = queue[head];
+                head = (head + 1) % depth;
+                count--;
+                droppedFrames++;
+            }
+            else {
+                slot = 0;
+                while (busy[slot]) slot++;
+                busy[slot] = true;
+            }
+        }
+
+        // The slot is reserved, so the copy can run without holding the lock
+        int size = byteBuffer.remaining();
+        ByteBuffer buffer = buffers[slot];
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            buffers[slot] = buffer;
+        }
+        buffer.clear();
+        buffer.put(byteBuffer);
+        buffer.flip();
+        widths[slot] = width;
+        heights[slot] = height;
+        formats[slot] = format;
+        timestamps[slot] = timestamp;
+
+        synchronized (lock) {
+            queue[(head + count) % depth] = slot;
+            count++;
+            lock.notify();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            int slot;
+            synchronized (lock) {
+                while (count == 0 && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (!running) return;
+                slot = queue[head];
+                head = (head + 1) % depth;
+                count--;
+            }
+
+            ByteBuffer buffer = buffers[slot];
+            buffer.rewind();
+            if (formats[slot] != null)
+                receiver.onNewFrame(buffer, formats[slot], timestamps[slot]);
+            else
+                receiver.onNewImage(buffer, widths[slot], heights[slot], timestamps[slot]);
+            deliveredFrames++;
+
+            synchronized (lock) {
+                busy[slot] = false;
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notify();
+        }
+    }
+
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
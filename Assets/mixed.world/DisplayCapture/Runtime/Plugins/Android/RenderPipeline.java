@@ -0,0 +1,513 @@
+package com.trev3d.DisplayCapture;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * GL state of the capture render pass, kept for the lifetime of the manager so starting a
+ * recording does not pay for EGL setup, shader compilation or texture creation again.
+ *
+ * The context is created once with a config that can render into MediaCodec input surfaces.
+ * Between recordings it stays current on a 1x1 pbuffer; a recording attaches the encoder input
+ * surface as output and detaches it when done. The capture texture and its SurfaceTexture, the
+ * programs with their attribute and uniform locations, and the quad vertex buffer all survive
+ * across sessions. Draws go through {@link RenderStage}s, which are timed on the GPU when the
+ * driver supports timer queries. Only used from the capture thread.
+ */
+public class RenderPipeline {
+
+    static final class Program {
+        final int id;
+        final int position;
+        final int texcoord;
+        final int texMatrix;
+        final int texelStep;
+        final int imageSize;
+        final int chromaLayout;
+        final int colorGain;
+        final int colorMode;
+
+        Program(int id) {
+            this.id = id;
+            position = GLES20.glGetAttribLocation(id, "position");
+            texcoord = GLES20.glGetAttribLocation(id, "texcoord");
+            texMatrix = GLES20.glGetUniformLocation(id, "texMatrix");
+            texelStep = GLES20.glGetUniformLocation(id, "texelStep");
+            imageSize = GLES20.glGetUniformLocation(id, "imageSize");
+            chromaLayout = GLES20.glGetUniformLocation(id, "chromaLayout");
+            colorGain = GLES20.glGetUniformLocation(id, "colorGain");
+            colorMode = GLES20.glGetUniformLocation(id, "colorMode");
+        }
+    }
+
+    private static final String VERTEX_SHADER =
+        "attribute vec4 position;\n" +
+        "attribute vec2 texcoord;\n" +
+        "uniform mat4 texMatrix;\n" +
+        "varying vec2 v_texcoord;\n" +
+        "void main() {\n" +
+        "    gl_Position = position;\n" +
+        "    // SurfaceTexture transform combined with the stage orientation\n" +
+        "    v_texcoord = (texMatrix * vec4(texcoord, 0.0, 1.0)).xy;\n" +
+        "}\n";
+
+    // ColorTransform in GLSL: mode 0 passes colors through, 1 to 3 decode sRGB, apply the gain
+    // and encode as sRGB, linear or log. The mode is uniform, so the branches cost nothing per pixel.
+    private static final String COLOR_FUNCTIONS =
+        "uniform vec3 colorGain;\n" +
+        "uniform float colorMode;\n" +
+        "vec3 toLinear(vec3 c) {\n" +
+        "    return mix(c / 12.92, pow((c + 0.055) / 1.055, vec3(2.4)), step(0.04045, c));\n" +
+        "}\n" +
+        "vec3 toSrgb(vec3 c) {\n" +
+        "    return mix(c * 12.92, 1.055 * pow(c, vec3(1.0 / 2.4)) - 0.055, step(0.0031308, c));\n" +
+        "}\n" +
+        "vec3 grade(vec3 c) {\n" +
+        "    if (colorMode < 0.5) return c;\n" +
+        "    c = toLinear(c) * colorGain;\n" +
+        "    if (colorMode < 1.5) return toSrgb(clamp(c, 0.0, 1.0));\n" +
+        "    if (colorMode < 2.5) return c;\n" +
+        "    return clamp((log2(max(c, vec3(0.00390625))) - (" + ColorTransform.LOG_MIN_EV + "))\n" +
+        "        / (" + (ColorTransform.LOG_MAX_EV - ColorTransform.LOG_MIN_EV) + "), 0.0, 1.0);\n" +
+        "}\n";
+
+    private static final String COPY_FRAGMENT_SHADER =
+        "#extension GL_OES_EGL_image_external : require\n" +
+        "precision mediump float;\n" +
+        "uniform samplerExternalOES texture;\n" +
+        "varying vec2 v_texcoord;\n" +
+        COLOR_FUNCTIONS +
+        "void main() {\n" +
+        "    vec4 color = texture2D(texture, v_texcoord);\n" +
+        "    gl_FragColor = vec4(grade(color.rgb), color.a);\n" +
+        "}\n";
+
+    // Four bilinear taps, so downscaled targets average a 4x4 footprint instead of aliasing.
+    // Colors are adjusted once after averaging rather than per tap.
+    private static final String DOWNSCALE_FRAGMENT_SHADER =
+        "#extension GL_OES_EGL_image_external : require\n" +
+        "precision mediump float;\n" +
+        "uniform samplerExternalOES texture;\n" +
+        "uniform vec2 texelStep;\n" +
+        "varying vec2 v_texcoord;\n" +
+        COLOR_FUNCTIONS +
+        "void main() {\n" +
+        "    vec4 color = 0.25 * (\n" +
+        "        texture2D(texture, v_texcoord + vec2(-texelStep.x, -texelStep.y)) +\n" +
+        "        texture2D(texture, v_texcoord + vec2( texelStep.x, -texelStep.y)) +\n" +
+        "        texture2D(texture, v_texcoord + vec2(-texelStep.x,  texelStep.y)) +\n" +
+        "        texture2D(texture, v_texcoord + vec2( texelStep.x,  texelStep.y)));\n" +
+        "    gl_FragColor = vec4(grade(color.rgb), color.a);\n" +
+        "}\n";
+
+    // Writes YUV planes as RGBA8 texels, see FrameFormat. Sampling at the corner between four
+    // pixels averages them, which gives the half resolution chroma in one tap. BT.601 limited range.
+    private static final String PACK_FRAGMENT_SHADER =
+        "#extension GL_OES_EGL_image_external : require\n" +
+        "precision highp float;\n" +
+        "uniform samplerExternalOES texture;\n" +
+        "uniform mat4 texMatrix;\n" +
+        "uniform vec2 imageSize;\n" +
+        "uniform float chromaLayout;\n" +
+        COLOR_FUNCTIONS +
+        "vec3 rgbAt(vec2 pixel) {\n" +
+        "    return grade(texture2D(texture, (texMatrix * vec4(pixel / imageSize, 0.0, 1.0)).xy).rgb);\n" +
+        "}\n" +
+        "float lumaOf(vec3 c) {\n" +
+        "    return dot(c, vec3(0.2568, 0.5041, 0.0979)) + 0.0627;\n" +
+        "}\n" +
+        "vec2 chromaOf(vec3 c) {\n" +
+        "    return vec2(dot(c, vec3(-0.1482, -0.2910, 0.4392)), dot(c, vec3(0.4392, -0.3678, -0.0714))) + 0.5020;\n" +
+        "}\n" +
+        "void main() {\n" +
+        "    vec2 texel = floor(gl_FragCoord.xy);\n" +
+        "    if (texel.y < imageSize.y) {\n" +
+        "        float x = texel.x * 4.0;\n" +
+        "        float y = texel.y + 0.5;\n" +
+        "        gl_FragColor = vec4(lumaOf(rgbAt(vec2(x + 0.5, y))), lumaOf(rgbAt(vec2(x + 1.5, y))),\n" +
+        "                            lumaOf(rgbAt(vec2(x + 2.5, y))), lumaOf(rgbAt(vec2(x + 3.5, y))));\n" +
+        "    } else if (chromaLayout < 1.5) {\n" +
+        "        // NV12, two U V pairs per texel\n" +
+        "        float x = texel.x * 4.0;\n" +
+        "        float y = (texel.y - imageSize.y) * 2.0 + 1.0;\n" +
+        "        gl_FragColor = vec4(chromaOf(rgbAt(vec2(x + 1.0, y))), chromaOf(rgbAt(vec2(x + 3.0, y))));\n" +
+        "    } else {\n" +
+        "        // I420, every texel row holds two chroma rows of the U plane, then of the V plane\n" +
+        "        float row = texel.y - imageSize.y;\n" +
+        "        float planeRows = imageSize.y * 0.25;\n" +
+        "        bool vPlane = row >= planeRows;\n" +
+        "        if (vPlane) row -= planeRows;\n" +
+        "        float halfRow = imageSize.x * 0.125;\n" +
+        "        bool secondRow = texel.x >= halfRow;\n" +
+        "        float x = (secondRow ? texel.x - halfRow : texel.x) * 8.0;\n" +
+        "        float y = (row * 2.0 + (secondRow ? 1.0 : 0.0)) * 2.0 + 1.0;\n" +
+        "        vec2 c0 = chromaOf(rgbAt(vec2(x + 1.0, y)));\n" +
+        "        vec2 c1 = chromaOf(rgbAt(vec2(x + 3.0, y)));\n" +
+        "        vec2 c2 = chromaOf(rgbAt(vec2(x + 5.0, y)));\n" +
+        "        vec2 c3 = chromaOf(rgbAt(vec2(x + 7.0, y)));\n" +
+        "        gl_FragColor = vPlane ? vec4(c0.y, c1.y, c2.y, c3.y) : vec4(c0.x, c1.x, c2.x, c3.x);\n" +
+        "    }\n" +
+        "}\n";
+
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig eglConfig;
+    private EGLSurface idleSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface outputSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface mirrorSurface = EGL14.EGL_NO_SURFACE;
+    private int glesVersion;
+
+    private int textureId;
+    private SurfaceTexture surfaceTexture;
+    private Surface inputSurface;
+
+    private Program copyProgram;
+    private Program downscaleProgram;
+    private Program packProgram;
+    // Full screen quad as a triangle strip, interleaved x, y, u, v
+    private int quadBuffer;
+    private static final int QUAD_STRIDE = 4 * 4;
+    private final float[] surfaceTransform = new float[16];
+    private long frameTimestampNs;
+
+    private volatile boolean timersSupported;
+    // Read from other threads for stats
+    private final CopyOnWriteArrayList<RenderStage> timedStages = new CopyOnWriteArrayList<RenderStage>();
+    private long initializeTimeNs;
+
+    public boolean isInitialized() {
+        return eglDisplay != EGL14.EGL_NO_DISPLAY;
+    }
+
+    public void initialize() {
+        if (isInitialized()) return;
+        long start = System.nanoTime();
+
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        EGL14.eglInitialize(eglDisplay, version, 0, version, 1);
+
+        // Prefer GLES3 so readback can go through pixel buffer objects
+        glesVersion = 3;
+        if (!chooseConfig(EGLExt.EGL_OPENGL_ES3_BIT_KHR)) {
+            glesVersion = 2;
+            chooseConfig(EGL14.EGL_OPENGL_ES2_BIT);
+        }
+
+        int[] contextAttribs = {
+            EGL14.EGL_CONTEXT_CLIENT_VERSION, glesVersion,
+            EGL14.EGL_NONE
+        };
+        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        if (eglContext == EGL14.EGL_NO_CONTEXT && glesVersion == 3) {
+            glesVersion = 2;
+            chooseConfig(EGL14.EGL_OPENGL_ES2_BIT);
+            contextAttribs[1] = glesVersion;
+            eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        }
+        if (eglContext == EGL14.EGL_NO_CONTEXT)
+            throw new RuntimeException("eglCreateContext failed: " + EGL14.eglGetError());
+
+        // Keeps the context current while no encoder surface is attached
+        int[] pbufferAttribs = { EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE };
+        idleSurface = EGL14.eglCreatePbufferSurface(eglDisplay, eglConfig, pbufferAttribs, 0);
+        makeCurrent();
+
+        // Create and setup texture for external OES
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        copyProgram = new Program(createProgram(VERTEX_SHADER, COPY_FRAGMENT_SHADER));
+        downscaleProgram = new Program(createProgram(VERTEX_SHADER, DOWNSCALE_FRAGMENT_SHADER));
+        packProgram = new Program(createProgram(VERTEX_SHADER, PACK_FRAGMENT_SHADER));
+
+        FloatBuffer quad = createFloatBuffer(new float[] {
+            -1.0f, -1.0f, 0.0f, 0.0f,
+             1.0f, -1.0f, 1.0f, 0.0f,
+            -1.0f,  1.0f, 0.0f, 1.0f,
+             1.0f,  1.0f, 1.0f, 1.0f,
+        });
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        quadBuffer = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, quad.capacity() * 4, quad, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        Matrix.setIdentityM(surfaceTransform, 0);
+        timersSupported = GpuTimer.isSupported(glesVersion);
+
+        initializeTimeNs = System.nanoTime() - start;
+        Log.i(TAG, "Created GLES" + glesVersion + " render pipeline in " + initializeTimeNs / 1000000 + " ms"
+            + (timersSupported ? ", with GPU timers" : ""));
+    }
+
+    private boolean chooseConfig(int renderableType) {
+        int[] attribList = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, renderableType,
+            EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+            EGLExt.EGL_RECORDABLE_ANDROID, 1,
+            EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        boolean found = EGL14.eglChooseConfig(eglDisplay, attribList, 0, configs, 0, 1, numConfigs, 0)
+            && numConfigs[0] > 0;
+        if (found)
+            eglConfig = configs[0];
+        return found;
+    }
+
+    // Renders into the encoder input surface until detachOutput
+    public void attachOutput(Surface surface) {
+        detachOutput();
+        outputSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, new int[] { EGL14.EGL_NONE }, 0);
+        if (outputSurface == EGL14.EGL_NO_SURFACE)
+            throw new RuntimeException("eglCreateWindowSurface failed: " + EGL14.eglGetError());
+        makeCurrent();
+    }
+
+    public void detachOutput() {
+        if (outputSurface == EGL14.EGL_NO_SURFACE) return;
+        EGL14.eglMakeCurrent(eglDisplay, idleSurface, idleSurface, eglContext);
+        EGL14.eglDestroySurface(eglDisplay, outputSurface);
+        outputSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    public boolean hasOutput() {
+        return outputSurface != EGL14.EGL_NO_SURFACE;
+    }
+
+    // Renders a copy of the frame into surface, e.g. an ImageReader for zero-copy receivers, until detachMirror
+    public void attachMirror(Surface surface) {
+        detachMirror();
+        mirrorSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, new int[] { EGL14.EGL_NONE }, 0);
+        if (mirrorSurface == EGL14.EGL_NO_SURFACE)
+            throw new RuntimeException("eglCreateWindowSurface failed: " + EGL14.eglGetError());
+    }
+
+    public void detachMirror() {
+        if (mirrorSurface == EGL14.EGL_NO_SURFACE) return;
+        makeCurrent();
+        EGL14.eglDestroySurface(eglDisplay, mirrorSurface);
+        mirrorSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    public boolean hasMirror() {
+        return mirrorSurface != EGL14.EGL_NO_SURFACE;
+    }
+
+    // Draws into the mirror's default framebuffer until endMirror
+    public void beginMirror() {
+        if (!EGL14.eglMakeCurrent(eglDisplay, mirrorSurface, mirrorSurface, eglContext))
+            throw new RuntimeException("eglMakeCurrent failed: " + EGL14.eglGetError());
+    }
+
+    // Hands the mirrored frame on stamped with timestampNs and goes back to the usual surface
+    public void endMirror(long timestampNs) {
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, mirrorSurface, timestampNs);
+        EGL14.eglSwapBuffers(eglDisplay, mirrorSurface);
+        makeCurrent();
+    }
+
+    public void makeCurrent() {
+        EGLSurface surface = outputSurface != EGL14.EGL_NO_SURFACE ? outputSurface : idleSurface;
+        if (!EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext))
+            throw new RuntimeException("eglMakeCurrent failed: " + EGL14.eglGetError());
+    }
+
+    public void swapBuffers() {
+        if (outputSurface != EGL14.EGL_NO_SURFACE)
+            EGL14.eglSwapBuffers(eglDisplay, outputSurface);
+    }
+
+    // Surface the virtual display renders into, backed by the capture texture
+    public Surface getInputSurface(int width, int height) {
+        if (surfaceTexture == null) {
+            surfaceTexture = new SurfaceTexture(textureId);
+            inputSurface = new Surface(surfaceTexture);
+        }
+        surfaceTexture.setDefaultBufferSize(width, height);
+        return inputSurface;
+    }
+
+    public SurfaceTexture getSurfaceTexture() {
+        return surfaceTexture;
+    }
+
+    // Latches the newest frame into the capture texture
+    public void updateFrame() {
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(surfaceTransform);
+        frameTimestampNs = surfaceTexture.getTimestamp();
+    }
+
+    // Buffer timestamp of the latched frame, in the System.nanoTime time base
+    public long getFrameTimestamp() {
+        return frameTimestampNs;
+    }
+
+    // Draws the current frame into the bound framebuffer over the whole viewport
+    public void draw(RenderStage stage) {
+        FrameFormat packFormat = stage.getPackFormat();
+        Program program = packFormat != null ? packProgram : stage.isDownscale() ? downscaleProgram : copyProgram;
+        GpuTimer timer = stage.timer;
+        if (timer == null && timersSupported) {
+            timer = new GpuTimer();
+            stage.timer = timer;
+            timedStages.add(stage);
+        }
+        if (timer != null)
+            timer.begin();
+
+        Matrix.multiplyMM(stage.textureMatrix, 0, surfaceTransform, 0, stage.getOrientation(), 0);
+        GLES20.glUseProgram(program.id);
+        GLES20.glUniformMatrix4fv(program.texMatrix, 1, false, stage.textureMatrix, 0);
+        if (program.texelStep >= 0) {
+            GLES20.glUniform2f(program.texelStep, stage.getTexelStepX(), stage.getTexelStepY());
+        }
+        ColorTransform color = stage.getColorTransform();
+        if (color != null) {
+            float[] gain = color.getGain();
+            GLES20.glUniform3f(program.colorGain, gain[0], gain[1], gain[2]);
+            GLES20.glUniform1f(program.colorMode, color.getShaderMode());
+        }
+        else {
+            GLES20.glUniform1f(program.colorMode, 0f);
+        }
+        if (packFormat != null) {
+            GLES20.glUniform2f(program.imageSize, packFormat.getWidth(), packFormat.getHeight());
+            GLES20.glUniform1f(program.chromaLayout, packFormat.getPixelFormat() == FrameFormat.I420 ? 2f
+                : packFormat.getPixelFormat() == FrameFormat.NV12 ? 1f : 0f);
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffer);
+        GLES20.glVertexAttribPointer(program.position, 2, GLES20.GL_FLOAT, false, QUAD_STRIDE, 0);
+        GLES20.glVertexAttribPointer(program.texcoord, 2, GLES20.GL_FLOAT, false, QUAD_STRIDE, 2 * 4);
+        GLES20.glEnableVertexAttribArray(program.position);
+        GLES20.glEnableVertexAttribArray(program.texcoord);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        if (timer != null)
+            timer.end();
+    }
+
+    // Frees the GPU timer of a stage that will not be drawn again
+    public void releaseStage(RenderStage stage) {
+        if (stage.timer == null) return;
+        stage.timer.release();
+        stage.timer = null;
+        timedStages.remove(stage);
+    }
+
+    // Average GPU time per timed stage, e.g. "frame=0.41ms encoder=0.22ms"
+    public String getStageTimes() {
+        if (!timersSupported) return "unavailable";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < timedStages.size(); i++) {
+            RenderStage stage = timedStages.get(i);
+            if (i > 0) builder.append(' ');
+            builder.append(stage.getName()).append('=')
+                .append(String.format(Locale.US, "%.2f", stage.getGpuTimeMs())).append("ms");
+        }
+        return builder.toString();
+    }
+
+    public int getGlesVersion() {
+        return glesVersion;
+    }
+
+    public long getInitializeTimeNs() {
+        return initializeTimeNs;
+    }
+
+    public void release() {
+        if (!isInitialized()) return;
+        detachOutput();
+        detachMirror();
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            inputSurface.release();
+            surfaceTexture = null;
+            inputSurface = null;
+        }
+        for (int i = 0; i < timedStages.size(); i++) {
+            RenderStage stage = timedStages.get(i);
+            stage.timer.release();
+            stage.timer = null;
+        }
+        timedStages.clear();
+        GLES20.glDeleteBuffers(1, new int[] { quadBuffer }, 0);
+        GLES20.glDeleteProgram(copyProgram.id);
+        GLES20.glDeleteProgram(downscaleProgram.id);
+        GLES20.glDeleteProgram(packProgram.id);
+        GLES20.glDeleteTextures(1, new int[] { textureId }, 0);
+
+        EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(eglDisplay, idleSurface);
+        EGL14.eglDestroyContext(eglDisplay, eglContext);
+        EGL14.eglTerminate(eglDisplay);
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+        idleSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private static FloatBuffer createFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer()
+            .put(values);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        // The linked program keeps what it needs
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        return program;
+    }
+
+    private static int loadShader(int type, String shaderCode) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, shaderCode);
+        GLES20.glCompileShader(shader);
+        return shader;
+    }
+}
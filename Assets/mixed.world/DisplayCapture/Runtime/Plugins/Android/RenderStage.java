@@ -0,0 +1,118 @@
+package com.trev3d.DisplayCapture;
+
+import android.opengl.Matrix;
+
+/**
+ * One draw of the capture texture into the bound framebuffer, with the orientation it applies.
+ *
+ * The orientation (mirroring, rotation in 90 degree steps and crop) is folded into a texture
+ * matrix that {@link RenderPipeline#draw} combines with the SurfaceTexture transform of the
+ * current frame, so orienting the image costs nothing beyond the draw itself. By default the
+ * output is upright with its first row at the bottom, the order glReadPixels and Unity textures
+ * use. Orientation may be changed from any thread; drawing happens on the capture thread.
+ */
+public class RenderStage {
+
+    private final String name;
+    private final boolean downscale;
+    private final FrameFormat packFormat;
+    private volatile float[] orientation;
+    private volatile float texelStepX;
+    private volatile float texelStepY;
+    // Null draws the colors as captured
+    private volatile ColorTransform colorTransform;
+
+    // Owned by the pipeline
+    final float[] textureMatrix = new float[16];
+    volatile GpuTimer timer;
+
+    /**
+     * @param downscale averages four taps per pixel, for targets much smaller than the capture;
+     *                  see {@link #setTexelStep}
+     */
+    public RenderStage(String name, boolean downscale) {
+        this.name = name;
+        this.downscale = downscale;
+        packFormat = null;
+        setOrientation(false, false, 0, 0f, 0f, 1f, 1f);
+    }
+
+    // Writes the frame as the planes of packFormat, four bytes per output texel
+    public RenderStage(String name, FrameFormat packFormat) {
+        this.name = name;
+        downscale = false;
+        this.packFormat = packFormat;
+        setOrientation(false, false, 0, 0f, 0f, 1f, 1f);
+    }
+
+    /**
+     * @param rotationDegrees clockwise rotation of the image, a multiple of 90; the output size
+     *                        does not change, so 90 and 270 stretch non-square frames
+     * @param cropX           crop region in normalized coordinates from the top left of the screen
+     */
+    public void setOrientation(boolean flipX, boolean flipY, int rotationDegrees,
+                               float cropX, float cropY, float cropWidth, float cropHeight) {
+        if (rotationDegrees % 90 != 0)
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + rotationDegrees);
+
+        // Output texcoord -> crop region -> mirrored and rotated about the center. Texture space
+        // has its origin at the bottom, so the crop is flipped to keep it measured from the top.
+        float[] matrix = new float[16];
+        Matrix.setIdentityM(matrix, 0);
+        Matrix.translateM(matrix, 0, cropX, 1f - cropY - cropHeight, 0f);
+        Matrix.scaleM(matrix, 0, cropWidth, cropHeight, 1f);
+        Matrix.translateM(matrix, 0, 0.5f, 0.5f, 0f);
+        Matrix.rotateM(matrix, 0, rotationDegrees, 0f, 0f, 1f);
+        Matrix.scaleM(matrix, 0, flipX ? -1f : 1f, flipY ? -1f : 1f, 1f);
+        Matrix.translateM(matrix, 0, -0.5f, -0.5f, 0f);
+        orientation = matrix;
+    }
+
+    public void copyOrientation(RenderStage other) {
+        orientation = other.orientation;
+    }
+
+    // Offset of the four downscale taps, in texture coordinates
+    public void setTexelStep(float x, float y) {
+        texelStepX = x;
+        texelStepY = y;
+    }
+
+    public void setColorTransform(ColorTransform transform) {
+        colorTransform = transform;
+    }
+
+    public ColorTransform getColorTransform() {
+        return colorTransform;
+    }
+
+    float[] getOrientation() {
+        return orientation;
+    }
+
+    float getTexelStepX() {
+        return texelStepX;
+    }
+
+    float getTexelStepY() {
+        return texelStepY;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDownscale() {
+        return downscale;
+    }
+
+    public FrameFormat getPackFormat() {
+        return packFormat;
+    }
+
+    // Running average of the GPU time of this stage, 0 if timer queries are unavailable
+    public float getGpuTimeMs() {
+        GpuTimer stageTimer = timer;
+        return stageTimer != null ? stageTimer.getAverageMs() : 0f;
+    }
+}
@@ -0,0 +1,246 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Keeps the most recent encoded video in memory so the last N seconds can be saved on demand.
+ *
+ * Access units are copied into one preallocated direct buffer used as a ring, with their
+ * timestamps, flags and positions in preallocated arrays, so appending never allocates. When
+ * space or sample slots run out the oldest samples are evicted a whole GOP at a time, so the
+ * buffered stream always starts at a keyframe. Memory use is fixed by the capacity.
+ *
+ * Saving copies the requested range out under the lock and muxes the copy to MP4 on a
+ * background thread, so the encoder callback is only held up for the copy.
+ */
+public class ReplayBuffer {
+
+    public interface SaveCallback {
+        void onSaved(String path);
+
+        void onFailed(String path, Exception e);
+    }
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int maxSamples;
+
+    // Sample metadata, indexed circularly from oldest
+    private final long[] presentationTimesUs;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+    private int oldest = 0;
+    private int count = 0;
+    private int writeOffset = 0;
+    private boolean waitingForKeyFrame = true;
+    private MediaFormat format;
+
+    private long droppedSamples = 0;
+    private ExecutorService saver;
+
+    public ReplayBuffer(int capacityBytes, int maxSamples) {
+        if (capacityBytes <= 0 || maxSamples <= 0)
+            throw new IllegalArgumentException("Replay buffer needs room for data and samples");
+        capacity = capacityBytes;
+        this.maxSamples = maxSamples;
+        ring = ByteBuffer.allocateDirect(capacityBytes);
+        presentationTimesUs = new long[maxSamples];
+        offsets = new int[maxSamples];
+        sizes = new int[maxSamples];
+        flags = new int[maxSamples];
+    }
+
+    // The encoder output format carrying the codec config, needed before anything can be saved
+    public synchronized void setFormat(MediaFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Copies one encoded sample in, evicting old ones as needed.
+     *
+     * @return false if the sample was dropped because the buffer is waiting for a keyframe to
+     * start from; the caller may want to request one from the encoder
+     */
+    public synchronized boolean append(ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        int size = info.size;
+        if (size > capacity) {
+            clear();
+            droppedSamples++;
+            return false;
+        }
+
+        if (count == maxSamples)
+            evictOldest();
+
+        int offset = writeOffset;
+        if (offset + size > capacity) {
+            // Samples are stored contiguously, so wrap to the start once everything still
+            // stored after the write position has been evicted
+            while (count > 0 && offsets[oldest] >= writeOffset)
+                evictOldest();
+            offset = 0;
+        }
+        while (count > 0 && offsets[oldest] < offset + size && offsets[oldest] + sizes[oldest] > offset)
+            evictOldest();
+
+        if (count == 0)
+            waitingForKeyFrame = true;
+        if (waitingForKeyFrame && !keyFrame) {
+            droppedSamples++;
+            return false;
+        }
+        waitingForKeyFrame = false;
+
+        data.position(info.offset);
+        data.limit(info.offset + size);
+        ring.limit(offset + size);
+        ring.position(offset);
+        ring.put(data);
+
+        int index = (oldest + count) % maxSamples;
+        presentationTimesUs[index] = info.presentationTimeUs;
+        offsets[index] = offset;
+        sizes[index] = size;
+        flags[index] = info.flags;
+        count++;
+        writeOffset = offset + size;
+        return true;
+    }
+
+    // Drops the oldest sample and then everything up to the next keyframe
+    private void evictOldest() {
+        do {
+            oldest = (oldest + 1) % maxSamples;
+            count--;
+        } while (count > 0 && (flags[oldest] & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0);
+        if (count == 0)
+            writeOffset = 0;
+    }
+
+    public synchronized void clear() {
+        oldest = 0;
+        count = 0;
+        writeOffset = 0;
+        waitingForKeyFrame = true;
+    }
+
+    public synchronized long getBufferedDurationUs() {
+        if (count == 0) return 0;
+        return presentationTimesUs[(oldest + count - 1) % maxSamples] - presentationTimesUs[oldest];
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    public synchronized long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the last seconds of buffered video (starting at the keyframe at or before that point)
+     * to an MP4 file on a background thread.
+     *
+     * @return false if there is nothing to save yet
+     */
+    public boolean save(float seconds, String path, SaveCallback callback) {
+        final ByteBuffer data;
+        final long[] times;
+        final int[] sampleOffsets;
+        final int[] sampleSizes;
+        final int[] sampleFlags;
+        final MediaFormat trackFormat;
+
+        synchronized (this) {
+            if (count == 0 || format == null) return false;
+
+            long newest = presentationTimesUs[(oldest + count - 1) % maxSamples];
+            long cutoff = newest - (long) (seconds * 1000000L);
+            int first = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (oldest + i) % maxSamples;
+                if (presentationTimesUs[index] > cutoff) break;
+                if ((flags[index] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+                    first = i;
+            }
+
+            int samples = count - first;
+            int total = 0;
+            for (int i = first; i < count; i++)
+                total += sizes[(oldest + i) % maxSamples];
+
+            data = ByteBuffer.allocateDirect(total);
+            times = new long[samples];
+            sampleOffsets = new int[samples];
+            sampleSizes = new int[samples];
+            sampleFlags = new int[samples];
+            ByteBuffer source = ring.duplicate();
+            for (int i = 0; i < samples; i++) {
+                int index = (oldest + first + i) % maxSamples;
+                source.limit(offsets[index] + sizes[index]);
+                source.position(offsets[index]);
+                sampleOffsets[i] = data.position();
+                data.put(source);
+                times[i] = presentationTimesUs[index];
+                sampleSizes[i] = sizes[index];
+                sampleFlags[i] = flags[index];
+            }
+            trackFormat = format;
+
+            if (saver == null)
+                saver = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ReplaySaver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+
+        saver.execute(() -> {
+            MediaMuxer muxer = null;
+            try {
+                muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                int track = muxer.addTrack(trackFormat);
+                muxer.start();
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                long start = times[0];
+                for (int i = 0; i < times.length; i++) {
+                    info.set(sampleOffsets[i], sampleSizes[i], times[i] - start, sampleFlags[i]);
+                    data.limit(sampleOffsets[i] + sampleSizes[i]);
+                    data.position(sampleOffsets[i]);
+                    muxer.writeSampleData(track, data, info);
+                }
+                muxer.stop();
+                Log.i(TAG, "Saved " + times.length + " replay samples to " + path);
+                callback.onSaved(path);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save replay to " + path, e);
+                callback.onFailed(path, e);
+            } finally {
+                if (muxer != null)
+                    muxer.release();
+            }
+        });
+        return true;
+    }
+
+    public synchronized void close() {
+        if (saver != null)
+            saver.shutdown();
+        saver = null;
+    }
+}
@@ -0,0 +1,21 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface SampleSink {
+	// Called once with the encoder output format, before the first sample
+	public void start(MediaFormat format) throws IOException;
+
+	// The sample is only valid during this call; the sink may move the buffer's position and limit
+	public void write(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException;
+
+	// Finishes the output; the sink is not used afterwards
+	public void stop();
+
+	// File currently written to
+	public String getPath();
+}
@@ -0,0 +1,140 @@
+package com.trev3d.DisplayCapture;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extra low-resolution render target drawn from the capture texture in the same GL pass as the
+ * full-resolution frame, for a scaled tier or a {@link CaptureRegion}.
+ *
+ * Each target renders a (possibly cropped) region of the frame into its own framebuffer and
+ * reads it back into its own buffer, which the FrameDispatcher hands to the subscriptions that
+ * asked for it, so consumers that only need a small image never touch the full frame. GL state
+ * is created lazily on the capture thread.
+ */
+public class ScaledCaptureTarget {
+
+    private final int width;
+    private final int height;
+    // Normalized region of the source texture: x, y, width, height
+    private final float[] crop;
+    private final RenderStage stage;
+
+    private final ByteBuffer byteBuffer;
+    private PixelBufferReadback pixelBufferReadback;
+    private int framebuffer;
+    private int texture;
+    private boolean initialized = false;
+    private long deliveredTimestamp;
+
+    public ScaledCaptureTarget(int width, int height) {
+        this(width, height, 0f, 0f, 1f, 1f);
+    }
+
+    public ScaledCaptureTarget(CaptureRegion region) {
+        this(region.getWidth(), region.getHeight(), region.getCropX(), region.getCropY(),
+            region.getCropWidth(), region.getCropHeight());
+    }
+
+    public ScaledCaptureTarget(int width, int height, float cropX, float cropY, float cropWidth, float cropHeight) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid target size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        crop = new float[] { cropX, cropY, cropWidth, cropHeight };
+        stage = new RenderStage("scaled" + width + "x" + height, true);
+        stage.setOrientation(false, false, 0, cropX, cropY, cropWidth, cropHeight);
+        // Spread the taps over the source area each target pixel covers
+        stage.setTexelStep(0.25f * cropWidth / width, 0.25f * cropHeight / height);
+        byteBuffer = ByteBuffer.allocateDirect(width * height * 4);
+    }
+
+    boolean isInitialized() {
+        return initialized;
+    }
+
+    // readbackRingDepth of 0 reads back synchronously
+    void initialize(int readbackRingDepth) {
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        texture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, ids, 0);
+        framebuffer = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+            GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE)
+            throw new RuntimeException("Incomplete framebuffer for " + width + "x" + height + " target: " + status);
+
+        if (readbackRingDepth >= 2) {
+            pixelBufferReadback = new PixelBufferReadback(width, height, readbackRingDepth);
+            pixelBufferReadback.initialize();
+        }
+        initialized = true;
+    }
+
+    // Binds the target framebuffer and viewport; the caller draws and then calls readback
+    void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    // Reads the bound framebuffer; true if a frame is ready in getByteBuffer, stamped with getDeliveredTimestamp
+    boolean read(long timestamp, long frameNumber) {
+        if (pixelBufferReadback != null) {
+            boolean frameReady = pixelBufferReadback.readback(byteBuffer, timestamp, frameNumber);
+            deliveredTimestamp = pixelBufferReadback.getDeliveredTimestamp();
+            return frameReady;
+        }
+        byteBuffer.clear();
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, byteBuffer);
+        deliveredTimestamp = timestamp;
+        return true;
+    }
+
+    // Must run on the GL thread while the context is still alive
+    void release() {
+        if (!initialized) return;
+        if (pixelBufferReadback != null) {
+            pixelBufferReadback.release();
+            pixelBufferReadback = null;
+        }
+        GLES20.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+        GLES20.glDeleteTextures(1, new int[] { texture }, 0);
+        initialized = false;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float[] getCrop() {
+        return crop;
+    }
+
+    RenderStage getStage() {
+        return stage;
+    }
+
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    public long getDeliveredTimestamp() {
+        return deliveredTimestamp;
+    }
+}
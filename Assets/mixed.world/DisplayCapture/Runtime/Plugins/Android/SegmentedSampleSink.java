@@ -0,0 +1,102 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+import static android.content.ContentValues.TAG;
+
+/**
+ * Splits a recording into files of roughly fixed duration, so a crash or an unfinished stop only
+ * loses the segment being written.
+ *
+ * A new segment is started at the first keyframe after the segment duration has passed, with a
+ * fresh sink from the factory, so the encoder keeps running across segments. Finished segments
+ * are deleted oldest first once together they exceed the retention limit.
+ */
+public class SegmentedSampleSink implements SampleSink {
+
+    public interface Factory {
+        SampleSink create(String path);
+    }
+
+    private final String basePath;
+    private final long segmentDurationUs;
+    private final long retentionBytes;
+    private final Factory factory;
+
+    private SampleSink current;
+    private MediaFormat format;
+    private long segmentStartUs = -1;
+    private int segmentIndex = 0;
+    private final ArrayDeque<File> finishedSegments = new ArrayDeque<File>();
+    private long finishedBytes = 0;
+
+    /**
+     * @param path           recording path; segments are written next to it as name_000.mp4, name_001.mp4...
+     * @param retentionBytes limit on the size of finished segments kept on disk, 0 keeps everything
+     */
+    public SegmentedSampleSink(String path, long segmentDurationUs, long retentionBytes, Factory factory) {
+        basePath = path.endsWith(".mp4") ? path.substring(0, path.length() - 4) : path;
+        this.segmentDurationUs = segmentDurationUs;
+        this.retentionBytes = retentionBytes;
+        this.factory = factory;
+    }
+
+    @Override
+    public void start(MediaFormat format) throws IOException {
+        this.format = format;
+        openNextSegment();
+    }
+
+    @Override
+    public void write(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (keyFrame && segmentStartUs >= 0 && info.presentationTimeUs - segmentStartUs >= segmentDurationUs) {
+            finishSegment();
+            openNextSegment();
+        }
+        if (segmentStartUs < 0)
+            segmentStartUs = info.presentationTimeUs;
+        current.write(data, info);
+    }
+
+    @Override
+    public void stop() {
+        if (current != null)
+            finishSegment();
+    }
+
+    @Override
+    public String getPath() {
+        return current != null ? current.getPath() : basePath + ".mp4";
+    }
+
+    private void openNextSegment() throws IOException {
+        String path = String.format(Locale.US, "%s_%03d.mp4", basePath, segmentIndex++);
+        current = factory.create(path);
+        current.start(format);
+        segmentStartUs = -1;
+    }
+
+    private void finishSegment() {
+        current.stop();
+        File file = new File(current.getPath());
+        finishedSegments.add(file);
+        finishedBytes += file.length();
+        Log.i(TAG, "Finished segment " + file.getName() + ", " + file.length() + " bytes");
+
+        while (retentionBytes > 0 && finishedBytes > retentionBytes && finishedSegments.size() > 1) {
+            File oldest = finishedSegments.poll();
+            finishedBytes -= oldest.length();
+            if (!oldest.delete())
+                Log.w(TAG, "Could not delete old segment " + oldest);
+        }
+    }
+}
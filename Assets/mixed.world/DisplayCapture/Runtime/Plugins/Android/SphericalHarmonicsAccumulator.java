@@ -0,0 +1,260 @@
+package com.trev3d.DisplayCapture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Builds L2 spherical harmonics ambient lighting from captured frames, so Unity gets 27 floats
+ * per update instead of re-reading whole cubemaps.
+ *
+ * The sphere is split into a fixed set of cube-face bins holding a running radiance estimate.
+ * Each frame only a sparse grid of pixels is looked at: every sample is turned into a world
+ * direction with the latest {@link CameraPose}, the samples landing in a bin are averaged and
+ * blended into that bin with an exponential decay. The nine RGB coefficients are then
+ * re-integrated from the bins, whose basis values and solid angles are precomputed, so the cost
+ * per frame is fixed by the sample and bin counts regardless of frame size. Bins that have not
+ * been seen yet take the average of the seen ones rather than reading as black.
+ *
+ * Coefficients are in linear color, ordered like Unity's SphericalHarmonicsL2: red 0..8, green
+ * 0..8, blue 0..8, with coefficient index (l, m) = (0,0), (1,-1), (1,0), (1,1), (2,-2), (2,-1),
+ * (2,0), (2,1), (2,2).
+ */
+public class SphericalHarmonicsAccumulator implements IDisplayCaptureReceiver {
+
+    public static final int COEFFICIENTS = 9;
+
+    // Result buffer layout, in 4-byte words
+    public static final int SEQUENCE = 0;
+    public static final int COVERAGE = 1;
+    public static final int SH = 2;
+    public static final int RESULT_WORDS = SH + 3 * COEFFICIENTS;
+
+    private final CameraPose cameraPose;
+    private final int binsPerEdge;
+    private final int binCount;
+    private final int samplesPerAxis;
+    private final float decaySeconds;
+    private volatile boolean firstRowIsTop = true;
+
+    // Per bin: basis values at the bin center times its solid angle
+    private final float[] weightedBasis;
+    private final float[] binRadiance;
+    private final boolean[] binSeen;
+    private int seenBins = 0;
+
+    // Per frame scratch, cleared for the bins touched
+    private final float[] frameSums;
+    private final int[] frameCounts;
+    private final int[] touchedBins;
+
+    private final float[] pose = new float[6];
+    private final float[] direction = new float[3];
+    private final float[] faceUv = new float[2];
+    private final float[] coefficients = new float[3 * COEFFICIENTS];
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    private final ByteBuffer results;
+    private int sequence = 0;
+    // Written around the sequence updates for the barriers a volatile store implies
+    private volatile int publishFence;
+    private long lastTimestamp = 0;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    /**
+     * @param binsPerEdge    bins along each cube face edge, 6 * binsPerEdge^2 bins in total
+     * @param samplesPerAxis pixels sampled along each axis of a frame
+     * @param decaySeconds   time constant of the exponential blend of new samples into a bin
+     */
+    public SphericalHarmonicsAccumulator(CameraPose cameraPose, int binsPerEdge, int samplesPerAxis, float decaySeconds) {
+        if (binsPerEdge < 1 || samplesPerAxis < 1)
+            throw new IllegalArgumentException("Need at least one bin and one sample per axis");
+        this.cameraPose = cameraPose;
+        this.binsPerEdge = binsPerEdge;
+        this.samplesPerAxis = samplesPerAxis;
+        this.decaySeconds = Math.max(0.001f, decaySeconds);
+        binCount = CubeFaces.COUNT * binsPerEdge * binsPerEdge;
+
+        weightedBasis = new float[binCount * COEFFICIENTS];
+        binRadiance = new float[binCount * 3];
+        binSeen = new boolean[binCount];
+        frameSums = new float[binCount * 3];
+        frameCounts = new int[binCount];
+        touchedBins = new int[Math.min(binCount, samplesPerAxis * samplesPerAxis)];
+
+        float cell = 2f / binsPerEdge;
+        float[] basis = new float[COEFFICIENTS];
+        for (int face = 0; face < CubeFaces.COUNT; face++) {
+            for (int j = 0; j < binsPerEdge; j++) {
+                for (int i = 0; i < binsPerEdge; i++) {
+                    float s0 = -1f + i * cell, t0 = -1f + j * cell;
+                    CubeFaces.direction(face, s0 + cell * 0.5f, t0 + cell * 0.5f, direction);
+                    normalize(direction);
+                    evaluateBasis(direction[0], direction[1], direction[2], basis);
+                    float solidAngle = CubeFaces.solidAngle(s0, t0, s0 + cell, t0 + cell);
+                    int bin = (face * binsPerEdge + j) * binsPerEdge + i;
+                    for (int k = 0; k < COEFFICIENTS; k++)
+                        weightedBasis[bin * COEFFICIENTS + k] = basis[k] * solidAngle;
+                }
+            }
+        }
+
+        results = ByteBuffer.allocateDirect(RESULT_WORDS * 4).order(ByteOrder.nativeOrder());
+    }
+
+    // Whether the first row of delivered buffers is the top of the image, as with ImageReader frames
+    public void setFirstRowIsTop(boolean firstRowIsTop) {
+        this.firstRowIsTop = firstRowIsTop;
+    }
+
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        if (cameraPose.get(pose) == 0) return;
+
+        boolean bigEndian = byteBuffer.order() == ByteOrder.BIG_ENDIAN;
+        int rShift = bigEndian ? 24 : 0;
+        int gShift = bigEndian ? 16 : 8;
+        int bShift = bigEndian ? 8 : 16;
+        float tanX = pose[4], tanY = pose[5];
+
+        int touched = 0;
+        for (int sy = 0; sy < samplesPerAxis; sy++) {
+            float v = (sy + 0.5f) / samplesPerAxis;
+            int row = Math.min(height - 1, (int) (v * height));
+            // Camera space y points up
+            float ny = firstRowIsTop ? 1f - 2f * v : 2f * v - 1f;
+            for (int sx = 0; sx < samplesPerAxis; sx++) {
+                float u = (sx + 0.5f) / samplesPerAxis;
+                int column = Math.min(width - 1, (int) (u * width));
+
+                direction[0] = (2f * u - 1f) * tanX;
+                direction[1] = ny * tanY;
+                direction[2] = 1f;
+                CameraPose.rotate(pose, direction);
+                int face = CubeFaces.faceOf(direction[0], direction[1], direction[2], faceUv);
+                int bi = Math.min(binsPerEdge - 1, (int) (faceUv[0] * binsPerEdge));
+                int bj = Math.min(binsPerEdge - 1, (int) (faceUv[1] * binsPerEdge));
+                int bin = (face * binsPerEdge + bj) * binsPerEdge + bi;
+
+                int pixel = byteBuffer.getInt((row * width + column) * 4);
+                if (frameCounts[bin] == 0 && touched < touchedBins.length)
+                    touchedBins[touched++] = bin;
+                frameCounts[bin]++;
+                frameSums[bin * 3] += SRGB_TO_LINEAR[(pixel >>> rShift) & 0xFF];
+                frameSums[bin * 3 + 1] += SRGB_TO_LINEAR[(pixel >>> gShift) & 0xFF];
+                frameSums[bin * 3 + 2] += SRGB_TO_LINEAR[(pixel >>> bShift) & 0xFF];
+            }
+        }
+
+        float seconds = lastTimestamp == 0 ? 0f : Math.max(0f, (timestamp - lastTimestamp) * 1e-9f);
+        lastTimestamp = timestamp;
+        float blend = 1f - (float) Math.exp(-seconds / decaySeconds);
+
+        for (int n = 0; n < touched; n++) {
+            int bin = touchedBins[n];
+            float inverseCount = 1f / frameCounts[bin];
+            for (int c = 0; c < 3; c++) {
+                float sample = frameSums[bin * 3 + c] * inverseCount;
+                int index = bin * 3 + c;
+                binRadiance[index] = binSeen[bin] ? binRadiance[index] + (sample - binRadiance[index]) * blend : sample;
+                frameSums[bin * 3 + c] = 0f;
+            }
+            frameCounts[bin] = 0;
+            if (!binSeen[bin]) {
+                binSeen[bin] = true;
+                seenBins++;
+            }
+        }
+
+        integrate();
+        publish();
+    }
+
+    private void integrate() {
+        float fillRed = 0f, fillGreen = 0f, fillBlue = 0f;
+        for (int bin = 0; bin < binCount; bin++) {
+            if (!binSeen[bin]) continue;
+            fillRed += binRadiance[bin * 3];
+            fillGreen += binRadiance[bin * 3 + 1];
+            fillBlue += binRadiance[bin * 3 + 2];
+        }
+        if (seenBins > 0) {
+            fillRed /= seenBins;
+            fillGreen /= seenBins;
+            fillBlue /= seenBins;
+        }
+
+        for (int i = 0; i < coefficients.length; i++)
+            coefficients[i] = 0f;
+        for (int bin = 0; bin < binCount; bin++) {
+            float red = binSeen[bin] ? binRadiance[bin * 3] : fillRed;
+            float green = binSeen[bin] ? binRadiance[bin * 3 + 1] : fillGreen;
+            float blue = binSeen[bin] ? binRadiance[bin * 3 + 2] : fillBlue;
+            int basis = bin * COEFFICIENTS;
+            for (int k = 0; k < COEFFICIENTS; k++) {
+                float weight = weightedBasis[basis + k];
+                coefficients[k] += red * weight;
+                coefficients[COEFFICIENTS + k] += green * weight;
+                coefficients[2 * COEFFICIENTS + k] += blue * weight;
+            }
+        }
+    }
+
+    private void publish() {
+        results.putInt(SEQUENCE * 4, ++sequence);
+        publishFence = sequence;
+        results.putFloat(COVERAGE * 4, (float) seenBins / binCount);
+        for (int i = 0; i < coefficients.length; i++)
+            results.putFloat((SH + i) * 4, coefficients[i]);
+        publishFence = sequence;
+        results.putInt(SEQUENCE * 4, ++sequence);
+    }
+
+    private static void evaluateBasis(float x, float y, float z, float[] basis) {
+        basis[0] = 0.282095f;
+        basis[1] = 0.488603f * y;
+        basis[2] = 0.488603f * z;
+        basis[3] = 0.488603f * x;
+        basis[4] = 1.092548f * x * y;
+        basis[5] = 1.092548f * y * z;
+        basis[6] = 0.315392f * (3f * z * z - 1f);
+        basis[7] = 1.092548f * x * z;
+        basis[8] = 0.546274f * (x * x - y * y);
+    }
+
+    private static void normalize(float[] v) {
+        float length = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        v[0] /= length;
+        v[1] /= length;
+        v[2] /= length;
+    }
+
+    /**
+     * Native-order buffer of {@link #RESULT_WORDS} words: sequence (odd while writing), the share
+     * of bins seen so far, then the 27 coefficients.
+     */
+    public ByteBuffer getResultBuffer() {
+        return results;
+    }
+
+    // Copies the latest coefficients, red 0..8, green 0..8, blue 0..8
+    public void getCoefficients(float[] out) {
+        System.arraycopy(coefficients, 0, out, 0, coefficients.length);
+    }
+
+    public float getCoverage() {
+        return (float) seenBins / binCount;
+    }
+
+    public void reset() {
+        for (int bin = 0; bin < binCount; bin++)
+            binSeen[bin] = false;
+        seenBins = 0;
+        lastTimestamp = 0;
+    }
+}
@@ -0,0 +1,116 @@
+package com.trev3d.DisplayCapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Runs a recorded frame trace through the capture-side stages on a desktop JVM, so sessions can
+ * be reproduced and profiled without a headset:
+ *
+ *   java -cp classes com.trev3d.DisplayCapture.TraceReplay trace.dct [--realtime] [--loops N]
+ *       [--pace HZ] [--lighting-rate HZ] [--change-detection]
+ *
+ * Frames take the same path as on the capture thread, through the same FrameProcessor: pacing,
+ * change detection and dispatch to luminance statistics, spherical harmonics and the cubemap
+ * accumulator. At the end
+ * the metrics snapshot and the lighting results are printed. Only these Android-free classes are
+ * needed on the class path.
+ */
+public final class TraceReplay implements IDisplayCaptureReceiver {
+
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    private final FramePacer pacer = new FramePacer();
+    private final FrameDispatcher dispatcher = new FrameDispatcher(metrics);
+    private final FrameProcessor processor = new FrameProcessor(metrics, pacer, dispatcher);
+    private long skippedFrames;
+
+    private TraceReplay() {
+    }
+
+    // Called on the replay thread, which stands in for the capture thread
+    @Override
+    public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+        processor.process(byteBuffer, width, height, timestamp);
+    }
+
+    // Packed traces cannot be turned back into RGBA for the lighting stages
+    @Override
+    public void onNewFrame(ByteBuffer byteBuffer, FrameFormat format, long timestamp) {
+        skippedFrames++;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceReplay <trace> [--realtime] [--loops N] [--pace HZ]"
+                + " [--lighting-rate HZ] [--change-detection]");
+            System.exit(2);
+        }
+
+        String path = args[0];
+        boolean realtime = false;
+        int loops = 1;
+        float paceHz = 0f;
+        float lightingHz = 0f;
+        boolean changeDetection = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--realtime": realtime = true; break;
+                case "--loops": loops = Integer.parseInt(args[++i]); break;
+                case "--pace": paceHz = Float.parseFloat(args[++i]); break;
+                case "--lighting-rate": lightingHz = Float.parseFloat(args[++i]); break;
+                case "--change-detection": changeDetection = true; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        TraceReplay replay = new TraceReplay();
+        CameraPose cameraPose = new CameraPose();
+        int parallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+        LuminanceStatistics statistics = new LuminanceStatistics(8, 8, 0.2f, 2, parallelism);
+        SphericalHarmonicsAccumulator harmonics = new SphericalHarmonicsAccumulator(cameraPose, 4, 32, 2f);
+        CubemapAccumulator cubemap = new CubemapAccumulator(cameraPose, 64, 0.98f, 8f,
+            Math.min(CubeFaces.COUNT, Runtime.getRuntime().availableProcessors()));
+        IDisplayCaptureReceiver[] lighting = { statistics, harmonics, cubemap };
+        for (IDisplayCaptureReceiver receiver : lighting)
+            replay.dispatcher.add(new CaptureSubscription(receiver, lightingHz, CaptureSubscription.TIER_FULL, FrameFormat.RGBA));
+        if (paceHz > 0f)
+            replay.pacer.setMode(FramePacer.MODE_FIXED, paceHz);
+        if (changeDetection)
+            replay.processor.setChangeDetector(new FrameChangeDetector(8, 8, 4, 3f, 30));
+
+        long frames;
+        long start = System.nanoTime();
+        TraceReplaySource source = new TraceReplaySource(path, realtime, Math.max(1, loops), cameraPose);
+        harmonics.setFirstRowIsTop(source.isFirstRowTop());
+        cubemap.setFirstRowIsTop(source.isFirstRowTop());
+        replay.dispatcher.setFirstRowIsTop(source.isFirstRowTop());
+        try {
+            source.start(replay);
+            source.awaitEnd();
+            frames = source.getDeliveredFrames();
+        } finally {
+            source.close();
+        }
+        if (source.getError() != null)
+            throw source.getError();
+        float seconds = (System.nanoTime() - start) / 1e9f;
+
+        System.out.println(String.format(Locale.US, "%d frames in %.2f s (%.1f fps)%s", frames, seconds,
+            seconds > 0 ? frames / seconds : 0f,
+            replay.skippedFrames > 0 ? ", " + replay.skippedFrames + " packed frames skipped" : ""));
+        System.out.println(replay.metrics.snapshot(String.format(Locale.US, "pacedDrops=%d processMs=%.2f",
+            replay.pacer.getDroppedFrames(), replay.pacer.getAverageProcessingMs())));
+        float[] color = statistics.getTopMeanColor();
+        System.out.println(String.format(Locale.US, "luminance mean=%.4f variance=%.4f top=%.3f/%.3f/%.3f",
+            statistics.getMeanLuminance(), statistics.getLuminanceVariance(), color[0], color[1], color[2]));
+        float[] coefficients = new float[27];
+        harmonics.getCoefficients(coefficients);
+        System.out.println(String.format(Locale.US, "harmonics coverage=%.2f dc=%.4f/%.4f/%.4f",
+            harmonics.getCoverage(), coefficients[0], coefficients[9], coefficients[18]));
+        System.out.println("cubemap frames=" + cubemap.getFramesAccumulated());
+
+        statistics.close();
+        cubemap.close();
+    }
+}
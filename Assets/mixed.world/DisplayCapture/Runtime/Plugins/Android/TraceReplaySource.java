@@ -0,0 +1,159 @@
+package com.trev3d.DisplayCapture;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a frame trace back into a receiver, either at the pace it was recorded or as fast as the
+ * receiver takes frames.
+ *
+ * Timestamps keep their recorded spacing but are moved to start at the time of the first frame
+ * delivered, and keep increasing across loops, so rate decimation and pacing behave as they did
+ * live. The recorded camera pose is written into cameraPose before each frame, which makes the
+ * lighting stages produce the same results on every replay.
+ */
+public class TraceReplaySource implements IDisplayCaptureSource {
+
+    // Gap between the last frame of a loop and the first of the next when there is nothing to go by
+    private static final long DEFAULT_INTERVAL_NS = 1000000000L / 30;
+
+    private final FrameTraceReader reader;
+    private final boolean realtime;
+    // Times the trace is played, 0 until stop
+    private final int loops;
+    private int completedLoops;
+    private final CameraPose cameraPose;
+
+    private FrameFormat format;
+    private long recordedStart = Long.MIN_VALUE;
+    private long replayStart;
+    private long lastTimestamp;
+    private long lastInterval = DEFAULT_INTERVAL_NS;
+    private long deliveredFrames;
+
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile IOException error;
+
+    // cameraPose may be null when no lighting stage reads it
+    public TraceReplaySource(String path, boolean realtime, int loops, CameraPose cameraPose) throws IOException {
+        reader = new FrameTraceReader(path);
+        this.realtime = realtime;
+        this.loops = loops;
+        this.cameraPose = cameraPose;
+    }
+
+    public boolean isFirstRowTop() {
+        return reader.isFirstRowTop();
+    }
+
+    @Override
+    public synchronized void start(IDisplayCaptureReceiver receiver) {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(() -> {
+            try {
+                replay(receiver);
+            } catch (IOException e) {
+                error = e;
+            }
+        }, "TraceReplay");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread replay;
+        synchronized (this) {
+            replay = thread;
+            thread = null;
+            running = false;
+        }
+        if (replay == null) return;
+        replay.interrupt();
+        try {
+            replay.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits until a replay started with start has played all its loops or was stopped
+    public void awaitEnd() throws InterruptedException {
+        Thread replay;
+        synchronized (this) {
+            replay = thread;
+        }
+        if (replay != null)
+            replay.join();
+    }
+
+    private void replay(IDisplayCaptureReceiver receiver) throws IOException {
+        while (running && next()) {
+            if (realtime) {
+                long wait;
+                while (running && (wait = lastTimestamp - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            deliver(receiver);
+        }
+    }
+
+    // Reads the next frame and works out its replay timestamp; false at the end of the trace
+    private boolean next() throws IOException {
+        long previous = lastTimestamp;
+        if (!reader.next()) {
+            completedLoops++;
+            if ((loops > 0 && completedLoops >= loops) || reader.getFramesRead() == 0) return false;
+            reader.rewind();
+            if (!reader.next()) return false;
+            // The next loop starts one frame interval after the last frame of this one
+            recordedStart = reader.getTimestamp();
+            replayStart = previous + lastInterval;
+        }
+        else if (recordedStart == Long.MIN_VALUE) {
+            recordedStart = reader.getTimestamp();
+            replayStart = System.nanoTime();
+        }
+        lastTimestamp = replayStart + (reader.getTimestamp() - recordedStart);
+        if (deliveredFrames > 0 && lastTimestamp > previous)
+            lastInterval = lastTimestamp - previous;
+        return true;
+    }
+
+    private void deliver(IDisplayCaptureReceiver receiver) {
+        float[] pose = reader.getPose();
+        // Traces recorded without a pose have zero fields of view
+        if (cameraPose != null && pose[4] > 0f) {
+            cameraPose.setOrientation(pose[0], pose[1], pose[2], pose[3]);
+            cameraPose.setFieldOfView((float) Math.toDegrees(2 * Math.atan(pose[4])),
+                (float) Math.toDegrees(2 * Math.atan(pose[5])));
+        }
+
+        int pixelFormat = reader.getPixelFormat();
+        if (pixelFormat == FrameFormat.RGBA) {
+            receiver.onNewImage(reader.getFrame(), reader.getWidth(), reader.getHeight(), lastTimestamp);
+        }
+        else {
+            if (format == null || format.getPixelFormat() != pixelFormat
+                    || format.getWidth() != reader.getWidth() || format.getHeight() != reader.getHeight())
+                format = new FrameFormat(pixelFormat, reader.getWidth(), reader.getHeight());
+            receiver.onNewFrame(reader.getFrame(), format, lastTimestamp);
+        }
+        deliveredFrames++;
+    }
+
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    // Read error that ended a replay started with start, or null
+    public IOException getError() {
+        return error;
+    }
+
+    public void close() throws IOException {
+        stop();
+        reader.close();
+    }
+}
@@ -1,9 +1,51 @@
 using System;
+using System.Runtime.InteropServices;
+using System.Threading;
 using UnityEngine;
 using UnityEngine.Events;
+using UnityEngine.Experimental.Rendering;
+using UnityEngine.Rendering;
 
 namespace Anaglyph.DisplayCapture
 {
+	/// <summary>Header of the Java LuminanceStatistics result buffer, followed by a 256 float histogram.</summary>
+	[StructLayout(LayoutKind.Sequential)]
+	public struct LuminanceStatistics
+	{
+		public int sequence;
+		public int sampleCount;
+		public float meanLuminance;
+		public float luminanceVariance;
+		public float topThreshold;
+		public float topMeanRed;
+		public float topMeanGreen;
+		public float topMeanBlue;
+		public int brightestTileX;
+		public int brightestTileY;
+		public float brightestTileLuminance;
+		public int gridWidth;
+		public int gridHeight;
+
+		public Color TopMeanColor => new(topMeanRed, topMeanGreen, topMeanBlue);
+	}
+
+	public enum EncoderCodec { AVC = 0, HEVC = 1 }
+
+	// Values match the Java NOTIFY_ constants
+	public enum FrameNotificationMode { EveryFrame = 0, Coalesced = 1, Poll = 2 }
+
+	// Values match the Java FramePacer.MODE_ constants
+	public enum FramePacingMode { EveryFrame = 0, Fixed = 1, OnDemand = 2, Adaptive = 3 }
+
+	// Values match the Java STREAM_ constants
+	public enum StreamFormat { Encoded = 0, Mjpeg = 1 }
+
+	// Values match the Java ColorTransform.ENCODING_ constants
+	public enum ColorEncoding { Srgb = 0, Linear = 1, Log = 2 }
+
+	// Values match MediaCodecInfo.EncoderCapabilities
+	public enum EncoderBitrateMode { CQ = 0, VBR = 1, CBR = 2 }
+
 	[DefaultExecutionOrder(-1000)]
 	public class DisplayCaptureManager : MonoBehaviour
 	{
@@ -11,15 +53,18 @@ namespace Anaglyph.DisplayCapture
 
 		public bool startScreenCaptureOnStart = true;
 		public bool RecordToFile {get; set;} = false;
-		public bool flipTextureOnGPU = false;
 
 		[SerializeField] private Vector2Int textureSize = new(1024, 1024);
 		public Vector2Int Size => textureSize;
 
+		[Tooltip("Frames are read back from the GPU through a ring of this many pixel buffers, whether or not a recording is attached. Deeper rings drop fewer frames but deliver them later. 0 reads back synchronously.")]
+		[SerializeField, Range(0, 4)] private int readbackRingDepth = 2;
+
+		[Tooltip("Coalesced sends at most one frame message at a time, Poll checks the latest frame sequence every Update instead of receiving messages.")]
+		[SerializeField] private FrameNotificationMode notificationMode = FrameNotificationMode.Coalesced;
+
 		private Texture2D screenTexture;
 		public Texture2D ScreenCaptureTexture => screenTexture;
-		
-		private RenderTexture flipTexture;
 
 		public Matrix4x4 ProjectionMatrix { get; private set; }
 
@@ -30,10 +75,24 @@ namespace Anaglyph.DisplayCapture
 		public UnityEvent onNewFrame = new();
 		public UnityEvent onEncodingError = new();
 		public UnityEvent<string> onEncodingComplete = new();
+		public UnityEvent<string> onReplaySaved = new();
+		public UnityEvent<string> onReplayFailed = new();
 
 		public UnityEvent<string> onLogText = new();
 
-		private unsafe sbyte* imageData;
+		private IntPtr[] frameBuffers;
+		private IntPtr luminanceStatistics;
+		private IntPtr sphericalHarmonics;
+		private IntPtr[] cubemapFaces;
+		private IntPtr cubemapSequence;
+		private int cubemapFaceSize;
+		// Dirty tiles taken from the Java side but not uploaded yet, per face
+		private readonly long[] cubemapPendingTiles = new long[6];
+		// One row of tiles, staged for Graphics.CopyTexture into the dirty runs of a face
+		private byte[] cubemapStripData;
+		private Texture2D cubemapStrip;
+		private byte[] cubemapFaceData;
+		private long lastFrameSequence;
 		private int bufferSize;
 
 		private class AndroidInterface
@@ -41,11 +100,28 @@ namespace Anaglyph.DisplayCapture
 			private AndroidJavaClass androidClass;
 			private AndroidJavaObject androidInstance;
 
+			// Called every frame, so resolved once and invoked without marshalling allocations
+			private IntPtr acquireLatestFrameMethod;
+			private IntPtr getLatestFrameSequenceMethod;
+			private IntPtr releaseFrameMethod;
+			private IntPtr setCameraOrientationMethod;
+			private IntPtr takeCubemapDirtyTilesMethod;
+			private readonly jvalue[] noArgs = new jvalue[0];
+			private readonly jvalue[] faceArgs = new jvalue[1];
+			private readonly jvalue[] releaseArgs = new jvalue[1];
+			private readonly jvalue[] orientationArgs = new jvalue[4];
+
 			public AndroidInterface(GameObject messageReceiver, int textureWidth, int textureHeight)
 			{
 				androidClass = new AndroidJavaClass("com.trev3d.DisplayCapture.DisplayCaptureManager");
 				androidInstance = androidClass.CallStatic<AndroidJavaObject>("getInstance");
 				androidInstance.Call("setup", messageReceiver.name, textureWidth, textureHeight);
+
+				acquireLatestFrameMethod = AndroidJNIHelper.GetMethodID(androidInstance.GetRawClass(), "acquireLatestFrame", "()J");
+				getLatestFrameSequenceMethod = AndroidJNIHelper.GetMethodID(androidInstance.GetRawClass(), "getLatestFrameSequence", "()J");
+				releaseFrameMethod = AndroidJNIHelper.GetMethodID(androidInstance.GetRawClass(), "releaseFrame", "(I)V");
+				setCameraOrientationMethod = AndroidJNIHelper.GetMethodID(androidInstance.GetRawClass(), "setCameraOrientation", "(FFFF)V");
+				takeCubemapDirtyTilesMethod = AndroidJNIHelper.GetMethodID(androidInstance.GetRawClass(), "takeCubemapDirtyTiles", "(I)J");
 			}
 
 			public void RequestCapture() => androidInstance.Call("requestCapture");
@@ -57,12 +133,142 @@ namespace Anaglyph.DisplayCapture
 			}
 			public void StopEncoding() => androidInstance.Call("stopEncoding");
 
+			public void StartReplayBuffer(int maxSeconds, int capacityBytes) => androidInstance.Call("startReplayBuffer", maxSeconds, capacityBytes);
+			public void StopReplayBuffer() => androidInstance.Call("stopReplayBuffer");
+			public bool SaveReplay(float seconds) => androidInstance.Call<bool>("saveReplay", seconds);
+
+			public void SetEncoderProfile(EncoderCodec codec, Vector2Int size, int bitrate, EncoderBitrateMode bitrateMode, int frameRate, float keyFrameIntervalSeconds) =>
+				androidInstance.Call("setEncoderProfile", (int)codec, size.x, size.y, bitrate, (int)bitrateMode, frameRate, keyFrameIntervalSeconds);
+			public void SetAdaptiveBitrate(int minBitrate, int maxBacklog) => androidInstance.Call("setAdaptiveBitrate", minBitrate, maxBacklog);
+			public int GetEncoderBitrate() => androidInstance.Call<int>("getEncoderBitrate");
+			public long GetEncoderSkippedFrames() => androidInstance.Call<long>("getEncoderSkippedFrames");
+			public string GetMuxerStats() => androidInstance.Call<string>("getMuxerStats");
+			public float GetTimeToFirstEncodedFrameMs() => androidInstance.Call<float>("getTimeToFirstEncodedFrameMs");
+			public bool WasWarmStart() => androidInstance.Call<bool>("wasWarmStart");
+			public void SetSegmentedRecording(float segmentSeconds, long retentionBytes, bool fragmented) =>
+				androidInstance.Call("setSegmentedRecording", segmentSeconds, retentionBytes, fragmented);
+
+			public void SetOutputOrientation(bool flipX, bool flipY, int rotationDegrees, Rect crop) =>
+				androidInstance.Call("setOutputOrientation", flipX, flipY, rotationDegrees, crop.x, crop.y, crop.width, crop.height);
+			public string GetRenderStageTimes() => androidInstance.Call<string>("getRenderStageTimes");
+			public void SetColorPipeline(float exposureEv, Color gain, ColorEncoding encoding) =>
+				androidInstance.Call("setColorPipeline", exposureEv, gain.r, gain.g, gain.b, (int)encoding);
+			public void ResetColorPipeline() => androidInstance.Call("resetColorPipeline");
+
+			public string GetMetricsSnapshot() => androidInstance.Call<string>("getMetricsSnapshot");
+			public void ResetMetrics() => androidInstance.Call("resetMetrics");
+			public void StartMetricsDump(string fileName, float intervalSeconds) => androidInstance.Call("startMetricsDump", fileName, intervalSeconds);
+			public void StopMetricsDump() => androidInstance.Call("stopMetricsDump");
+			public bool StartTraceRecording(string fileName, float maxRateHz, int tier, bool compress) =>
+				androidInstance.Call<bool>("startTraceRecording", fileName, maxRateHz, tier, compress);
+			public void StopTraceRecording() => androidInstance.Call("stopTraceRecording");
+			public long GetTraceFramesWritten() => androidInstance.Call<long>("getTraceFramesWritten");
+			public bool StartStreamServer(int port, StreamFormat format, float maxRateHz, int tier, int jpegQuality, int queueDepth) =>
+				androidInstance.Call<bool>("startStreamServer", port, (int)format, maxRateHz, tier, jpegQuality, queueDepth);
+			public void StopStreamServer() => androidInstance.Call("stopStreamServer");
+			public int GetStreamClientCount() => androidInstance.Call<int>("getStreamClientCount");
+			public long GetStreamDroppedUnits() => androidInstance.Call<long>("getStreamDroppedUnits");
+			public bool StartStatsStream(int port, float intervalSeconds) => androidInstance.Call<bool>("startStatsStream", port, intervalSeconds);
+			public void StopStatsStream() => androidInstance.Call("stopStatsStream");
+
+			public void SetReadbackRingDepth(int depth) => androidInstance.Call("setReadbackRingDepth", depth);
+			public int GetReadbackLatencyFrames() => androidInstance.Call<int>("getReadbackLatencyFrames");
+			public long GetReadbackIssueTimeNs() => androidInstance.Call<long>("getReadbackIssueTimeNs");
+			public long GetReadbackMapTimeNs() => androidInstance.Call<long>("getReadbackMapTimeNs");
+
 			public unsafe sbyte* GetByteBuffer()
 			{
 				AndroidJavaObject byteBuffer = androidInstance.Call<AndroidJavaObject>("getByteBuffer");
 				return AndroidJNI.GetDirectBufferAddress(byteBuffer.GetRawObject());
 			}
 
+			public unsafe IntPtr[] GetFrameBuffers()
+			{
+				int count = androidInstance.Call<int>("getFrameBufferCount");
+				IntPtr[] addresses = new IntPtr[count];
+				for (int i = 0; i < count; i++)
+				{
+					using AndroidJavaObject frameBuffer = androidInstance.Call<AndroidJavaObject>("getFrameBuffer", i);
+					addresses[i] = (IntPtr)AndroidJNI.GetDirectBufferAddress(frameBuffer.GetRawObject());
+				}
+				return addresses;
+			}
+
+			// Returns -1 if no frame has been published, otherwise (sequence << 8 | slot)
+			public long AcquireLatestFrame() => AndroidJNI.CallLongMethod(androidInstance.GetRawObject(), acquireLatestFrameMethod, noArgs);
+			public long GetLatestFrameSequence() => AndroidJNI.CallLongMethod(androidInstance.GetRawObject(), getLatestFrameSequenceMethod, noArgs);
+
+			public void SetNotificationMode(FrameNotificationMode mode) => androidInstance.Call("setNotificationMode", (int)mode);
+			public long GetCoalescedNotifications() => androidInstance.Call<long>("getCoalescedNotifications");
+
+			public void ReleaseFrame(int slot)
+			{
+				releaseArgs[0].i = slot;
+				AndroidJNI.CallVoidMethod(androidInstance.GetRawObject(), releaseFrameMethod, releaseArgs);
+			}
+
+			public unsafe IntPtr EnableLuminanceStatistics(int gridWidth, int gridHeight, float topFraction, int sampleStep)
+			{
+				using AndroidJavaObject results = androidInstance.Call<AndroidJavaObject>("enableLuminanceStatistics", gridWidth, gridHeight, topFraction, sampleStep);
+				return (IntPtr)AndroidJNI.GetDirectBufferAddress(results.GetRawObject());
+			}
+
+			public void DisableLuminanceStatistics() => androidInstance.Call("disableLuminanceStatistics");
+			public void SetLightingRate(float maxRateHz) => androidInstance.Call("setLightingRate", maxRateHz);
+
+			public void SetFramePacing(FramePacingMode mode, float maxRateHz) => androidInstance.Call("setFramePacing", (int)mode, maxRateHz);
+			public void RequestFrame() => androidInstance.Call("requestFrame");
+			public float GetEffectiveFrameRate() => androidInstance.Call<float>("getEffectiveFrameRate");
+			public float GetFrameJitterMs() => androidInstance.Call<float>("getFrameJitterMs");
+			public long GetPacerDroppedFrames() => androidInstance.Call<long>("getPacerDroppedFrames");
+
+			public unsafe IntPtr EnableSphericalHarmonics(int binsPerEdge, int samplesPerAxis, float decaySeconds)
+			{
+				using AndroidJavaObject results = androidInstance.Call<AndroidJavaObject>("enableSphericalHarmonics", binsPerEdge, samplesPerAxis, decaySeconds);
+				return (IntPtr)AndroidJNI.GetDirectBufferAddress(results.GetRawObject());
+			}
+
+			public void DisableSphericalHarmonics() => androidInstance.Call("disableSphericalHarmonics");
+			public void ResetSphericalHarmonics() => androidInstance.Call("resetSphericalHarmonics");
+			public void SetCameraFieldOfView(float horizontal, float vertical) => androidInstance.Call("setCameraFieldOfView", horizontal, vertical);
+
+			public void SetCameraOrientation(Quaternion rotation)
+			{
+				orientationArgs[0].f = rotation.x;
+				orientationArgs[1].f = rotation.y;
+				orientationArgs[2].f = rotation.z;
+				orientationArgs[3].f = rotation.w;
+				AndroidJNI.CallVoidMethod(androidInstance.GetRawObject(), setCameraOrientationMethod, orientationArgs);
+			}
+
+			public void EnableChangeDetection(int tilesX, int tilesY, int samplesPerTileAxis, float threshold, int maxSkippedFrames) =>
+				androidInstance.Call("enableChangeDetection", tilesX, tilesY, samplesPerTileAxis, threshold, maxSkippedFrames);
+			public void DisableChangeDetection() => androidInstance.Call("disableChangeDetection");
+			public long GetSkippedFrames() => androidInstance.Call<long>("getSkippedFrames");
+			public long GetSkippedBytes() => androidInstance.Call<long>("getSkippedBytes");
+
+			public unsafe IntPtr[] EnableCubemapAccumulator(int faceSize, float decayPerFrame, float maxWeight, out IntPtr sequence)
+			{
+				androidInstance.Call("enableCubemapAccumulator", faceSize, decayPerFrame, maxWeight);
+				IntPtr[] addresses = new IntPtr[6];
+				for (int face = 0; face < 6; face++)
+				{
+					using AndroidJavaObject faceBuffer = androidInstance.Call<AndroidJavaObject>("getCubemapFace", face);
+					addresses[face] = (IntPtr)AndroidJNI.GetDirectBufferAddress(faceBuffer.GetRawObject());
+				}
+				using AndroidJavaObject sequenceBuffer = androidInstance.Call<AndroidJavaObject>("getCubemapSequence");
+				sequence = (IntPtr)AndroidJNI.GetDirectBufferAddress(sequenceBuffer.GetRawObject());
+				return addresses;
+			}
+
+			public void DisableCubemapAccumulator() => androidInstance.Call("disableCubemapAccumulator");
+
+			public long TakeCubemapDirtyTiles(int face)
+			{
+				faceArgs[0].i = face;
+				return AndroidJNI.CallLongMethod(androidInstance.GetRawObject(), takeCubemapDirtyTilesMethod, faceArgs);
+			}
+
 			public string getOutputPath()
 			{
 				return androidInstance.Call<String>("getOutputPath");
@@ -76,15 +282,14 @@ namespace Anaglyph.DisplayCapture
 			Instance = this;
 
 			androidInterface = new AndroidInterface(gameObject, Size.x, Size.y);
+			androidInterface.SetReadbackRingDepth(readbackRingDepth);
+			androidInterface.SetNotificationMode(notificationMode);
 
 			screenTexture = new Texture2D(Size.x, Size.y, TextureFormat.RGBA32, 1, false);
 		}
 
 		private void Start()
 		{
-			flipTexture = new RenderTexture(Size.x, Size.y, 1, RenderTextureFormat.ARGB32, 1);
-			flipTexture.Create();
-
 			onTextureInitialized.Invoke(screenTexture);
 
 			if (startScreenCaptureOnStart)
@@ -94,6 +299,44 @@ namespace Anaglyph.DisplayCapture
 			bufferSize = Size.x * Size.y * 4; // RGBA_8888 format: 4 bytes per pixel
 		}
 
+		private void Update()
+		{
+			// One cheap call per Update; the frame is only acquired once a newer one was published
+			if (notificationMode == FrameNotificationMode.Poll && frameBuffers != null
+				&& androidInterface.GetLatestFrameSequence() > lastFrameSequence)
+			{
+				UploadLatestFrame();
+			}
+		}
+
+		public FrameNotificationMode NotificationMode
+		{
+			get => notificationMode;
+			set
+			{
+				notificationMode = value;
+				androidInterface.SetNotificationMode(value);
+			}
+		}
+
+		/// <summary>Frame messages that were not sent because Unity had not handled the previous one yet.</summary>
+		public long CoalescedNotifications => androidInterface.GetCoalescedNotifications();
+
+		/// <summary>
+		/// Limits which captured frames are processed at all. Fixed takes maxRateHz frames a second,
+		/// OnDemand only the frame after each RequestFrame, Adaptive as many as the capture thread
+		/// keeps up with (at most maxRateHz if above 0). Skipped frames are dropped before any copy,
+		/// but are still recorded.
+		/// </summary>
+		public void SetFramePacing(FramePacingMode mode, float maxRateHz = 0f) => androidInterface.SetFramePacing(mode, maxRateHz);
+
+		/// <summary>Processes the next captured frame in OnDemand pacing mode.</summary>
+		public void RequestFrame() => androidInterface.RequestFrame();
+
+		public float EffectiveFrameRate => androidInterface.GetEffectiveFrameRate();
+		public float FrameJitterMs => androidInterface.GetFrameJitterMs();
+		public long PacerDroppedFrames => androidInterface.GetPacerDroppedFrames();
+
 		public void StartScreenCapture()
 		{
 			if (RecordToFile)
@@ -102,7 +345,6 @@ namespace Anaglyph.DisplayCapture
 			}
 			else
 			{
-				flipTextureOnGPU = true;
 				androidInterface.RequestCapture();
 			}
 		}
@@ -113,46 +355,435 @@ namespace Anaglyph.DisplayCapture
 		}
 
 		// Screen Encoding
+
+		/// <summary>
+		/// Starts recording, and the capture if it is not running yet. During a capture the recording
+		/// attaches to the running session, so the screen texture and lighting receivers keep
+		/// their frames and permission is not asked again. When the encoder already runs for the
+		/// replay buffer or the encoded stream, the recording shares it from its next keyframe.
+		/// </summary>
 		public void StartEncoding()
 		{
-			flipTextureOnGPU = false;
 			androidInterface.StartEncoding();
 		}
 
+		/// <summary>
+		/// Stops recording; the capture keeps running until StopScreenCapture, and the encoder while
+		/// the replay buffer or the encoded stream uses it.
+		/// </summary>
 		public void StopEncoding()
 		{
 			androidInterface.StopEncoding();
 		}
 
-		// Messages sent from Android
+		/// <summary>
+		/// Keeps the last maxSeconds of encoded video in a fixed amount of memory without writing a
+		/// file. SaveReplay writes them out on demand.
+		/// </summary>
+		public void StartReplayBuffer(int maxSeconds = 30, int capacityMegabytes = 32)
+		{
+			androidInterface.StartReplayBuffer(maxSeconds, capacityMegabytes * 1024 * 1024);
+		}
 
-#pragma warning disable IDE0051 // Remove unused private members
-		private unsafe void OnCaptureStarted()
+		public void StopReplayBuffer() => androidInterface.StopReplayBuffer();
+
+		/// <summary>
+		/// Saves the last seconds of the replay buffer to an MP4 in the background. Raises
+		/// onReplaySaved or onReplayFailed when done; returns false if nothing is buffered yet.
+		/// </summary>
+		public bool SaveReplay(float seconds) => androidInterface.SaveReplay(seconds);
+
+		/// <summary>
+		/// Configures the next recording. A size of zero encodes at the capture size; HEVC falls back
+		/// to AVC on devices without an HEVC encoder.
+		/// </summary>
+		public void SetEncoderProfile(EncoderCodec codec, Vector2Int size, int bitrate = 6000000,
+			EncoderBitrateMode bitrateMode = EncoderBitrateMode.VBR, int frameRate = 30, float keyFrameIntervalSeconds = 1f)
 		{
-			onStarted.Invoke();
-			imageData = androidInterface.GetByteBuffer();
+			androidInterface.SetEncoderProfile(codec, size, bitrate, bitrateMode, frameRate, keyFrameIntervalSeconds);
 		}
 
-		private void OnPermissionDenied()
+		/// <summary>
+		/// Lets the encoder drop down to minBitrate while it falls behind, and skip frames once
+		/// maxBacklog frames are in flight. A minBitrate of 0 keeps the bitrate fixed.
+		/// </summary>
+		public void SetAdaptiveBitrate(int minBitrate, int maxBacklog = 4) => androidInterface.SetAdaptiveBitrate(minBitrate, maxBacklog);
+
+		public int EncoderBitrate => androidInterface.GetEncoderBitrate();
+		public long EncoderSkippedFrames => androidInterface.GetEncoderSkippedFrames();
+
+		// Startup latency of the last recording, and whether it reused the pipeline and encoder
+		public float TimeToFirstEncodedFrameMs => androidInterface.GetTimeToFirstEncodedFrameMs();
+		public bool WasWarmStart => androidInterface.WasWarmStart();
+
+		/// <summary>
+		/// Splits the next recording into files of about segmentSeconds, deleting the oldest once
+		/// finished ones exceed retentionMegabytes (0 keeps all). Fragmented files can be played
+		/// while still being written; they are only produced for AVC.
+		/// </summary>
+		public void SetSegmentedRecording(float segmentSeconds, long retentionMegabytes = 0, bool fragmented = true)
 		{
-			onPermissionDenied.Invoke();
+			androidInterface.SetSegmentedRecording(segmentSeconds, retentionMegabytes * 1024 * 1024, fragmented);
 		}
 
-		private unsafe void OnNewFrameAvailable()
+		/// <summary>Queue depth, write latency percentiles and drop counts of the file writer while recording.</summary>
+		public string MuxerStats => androidInterface.GetMuxerStats();
+
+		/// <summary>
+		/// Mirrors, rotates (clockwise, in steps of 90) and crops the captured frame and the recording
+		/// in the draw that copies it. The crop is normalized from the top left of the screen. Frames
+		/// arrive in Unity's row order by default, so no extra flip is needed on the GPU.
+		/// </summary>
+		public void SetOutputOrientation(bool flipX, bool flipY, int rotationDegrees = 0) =>
+			SetOutputOrientation(flipX, flipY, rotationDegrees, new Rect(0f, 0f, 1f, 1f));
+
+		public void SetOutputOrientation(bool flipX, bool flipY, int rotationDegrees, Rect crop) =>
+			androidInterface.SetOutputOrientation(flipX, flipY, rotationDegrees, crop);
+
+		/// <summary>Average GPU time of each render stage, where timer queries are supported.</summary>
+		public string RenderStageTimes => androidInterface.GetRenderStageTimes();
+
+		// Range of ColorEncoding.Log, in stops around white
+		public const float LogMinEv = -8f;
+		public const float LogMaxEv = 4f;
+
+		/// <summary>
+		/// Applies exposure (in stops) and white balance (the color temperature of the light to
+		/// neutralize, in Kelvin) on the GPU before frames are read back, and encodes the result
+		/// as sRGB, linear or log. Affects the screen texture and the lighting data, not the
+		/// recording. Log keeps highlights up to LogMaxEv stops above white; see DecodeLog.
+		/// </summary>
+		public void SetColorPipeline(float exposureEv, float whiteBalanceKelvin = 6500f, ColorEncoding encoding = ColorEncoding.Srgb)
 		{
-			if (imageData == default) return;
-			screenTexture.LoadRawTextureData((IntPtr)imageData, bufferSize);
-			screenTexture.Apply();
+			// Gains that turn the light's color into the D65 white the capture assumes, in linear light
+			Color light = Mathf.CorrelatedColorTemperatureToRGB(whiteBalanceKelvin).linear;
+			Color white = Mathf.CorrelatedColorTemperatureToRGB(6500f).linear;
+			Color gain = new(white.r / light.r, white.g / light.g, white.b / light.b);
+			gain /= gain.g;
+			androidInterface.SetColorPipeline(exposureEv, gain, encoding);
+		}
 
-			if (flipTextureOnGPU)
+		public void ResetColorPipeline() => androidInterface.ResetColorPipeline();
+
+		/// <summary>Linear color of a pixel captured with ColorEncoding.Log.</summary>
+		public static Color DecodeLog(Color encoded)
+		{
+			float range = LogMaxEv - LogMinEv;
+			return new Color(Mathf.Pow(2f, LogMinEv + encoded.r * range), Mathf.Pow(2f, LogMinEv + encoded.g * range),
+				Mathf.Pow(2f, LogMinEv + encoded.b * range), encoded.a);
+		}
+
+		/// <summary>
+		/// One line of capture metrics: frame rate, drops, then count/p50/p99/max in milliseconds for
+		/// frame arrival, copy, notification, encoding and each receiver, then queue and drop gauges.
+		/// Each read restarts the frame rate measurement.
+		/// </summary>
+		public string MetricsSnapshot => androidInterface.GetMetricsSnapshot();
+
+		public void ResetMetrics() => androidInterface.ResetMetrics();
+
+		/// <summary>Appends a metrics snapshot to fileName in the app's external files directory every intervalSeconds.</summary>
+		public void StartMetricsDump(string fileName = "capture_metrics.log", float intervalSeconds = 5f) =>
+			androidInterface.StartMetricsDump(fileName, intervalSeconds);
+
+		public void StopMetricsDump() => androidInterface.StopMetricsDump();
+
+		/// <summary>
+		/// Records captured frames, timestamps and camera pose into fileName in the app's external
+		/// files directory, at most maxRateHz a second and at the capture size divided by tier (1, 2,
+		/// 4 or 8). Pull the file off the headset and replay it with the TraceReplay class on a
+		/// desktop JVM to reproduce a session.
+		/// </summary>
+		public bool StartTraceRecording(string fileName = "capture.dct", float maxRateHz = 0f, int tier = 1, bool compress = true) =>
+			androidInterface.StartTraceRecording(fileName, maxRateHz, tier, compress);
+
+		public void StopTraceRecording() => androidInterface.StopTraceRecording();
+
+		public long TraceFramesWritten => androidInterface.GetTraceFramesWritten();
+
+		/// <summary>
+		/// Serves the capture on 127.0.0.1:port for watching it on a laptop: run
+		/// adb forward tcp:port tcp:port, then ffplay -f h264 (or -f mjpeg) tcp://127.0.0.1:port.
+		/// Encoded streams the encoder output and starts the encoder without a file if needed;
+		/// Mjpeg sends JPEG frames at the capture size divided by tier. Slow clients lose frames,
+		/// capture never waits for them.
+		/// </summary>
+		public bool StartStreamServer(int port = 5000, StreamFormat format = StreamFormat.Mjpeg, float maxRateHz = 10f,
+			int tier = 4, int jpegQuality = 70, int queueDepth = 8) =>
+			androidInterface.StartStreamServer(port, format, maxRateHz, tier, jpegQuality, queueDepth);
+
+		public void StopStreamServer() => androidInterface.StopStreamServer();
+
+		public int StreamClientCount => androidInterface.GetStreamClientCount();
+		public long StreamDroppedFrames => androidInterface.GetStreamDroppedUnits();
+
+		/// <summary>
+		/// Sends the metrics snapshot and the lighting results as a line of text every
+		/// intervalSeconds to clients on 127.0.0.1:port, e.g. nc after adb forward.
+		/// </summary>
+		public bool StartStatsStream(int port = 5001, float intervalSeconds = 1f) => androidInterface.StartStatsStream(port, intervalSeconds);
+
+		public void StopStatsStream() => androidInterface.StopStatsStream();
+
+		/// <summary>
+		/// Computes luminance statistics for every captured frame on the Java side, so light
+		/// estimation does not have to scan pixels on the main thread.
+		/// </summary>
+		public void EnableLuminanceStatistics(int gridWidth = 8, int gridHeight = 8, float topFraction = 0.2f, int sampleStep = 2)
+		{
+			luminanceStatistics = androidInterface.EnableLuminanceStatistics(gridWidth, gridHeight, topFraction, sampleStep);
+		}
+
+		public void DisableLuminanceStatistics()
+		{
+			androidInterface.DisableLuminanceStatistics();
+			luminanceStatistics = IntPtr.Zero;
+		}
+
+		/// <summary>
+		/// Caps how many frames a second the luminance statistics, spherical harmonics and cubemap
+		/// accumulator process, so lighting can run at a few Hz while frames still arrive here at
+		/// the full rate. 0 processes every frame.
+		/// </summary>
+		public void SetLightingRate(float maxRateHz) => androidInterface.SetLightingRate(maxRateHz);
+
+		/// <summary>Copies the latest complete statistics, returns false if none are available yet.</summary>
+		public unsafe bool TryGetLuminanceStatistics(out LuminanceStatistics statistics, float[] histogram = null)
+		{
+			statistics = default;
+			if (luminanceStatistics == IntPtr.Zero) return false;
+
+			int* words = (int*)luminanceStatistics;
+			// The Java side bumps the sequence to odd before writing and back to even after
+			for (int attempt = 0; attempt < 4; attempt++)
+			{
+				int before = Volatile.Read(ref words[0]);
+				if (before == 0 || (before & 1) != 0) continue;
+				Thread.MemoryBarrier();
+				statistics = *(LuminanceStatistics*)words;
+				if (histogram != null)
+					Marshal.Copy(luminanceStatistics + sizeof(LuminanceStatistics), histogram, 0, Math.Min(histogram.Length, 256));
+				Thread.MemoryBarrier();
+				if (Volatile.Read(ref words[0]) == before) return true;
+			}
+			return false;
+		}
+
+		/// <summary>
+		/// Accumulates L2 ambient lighting from captured frames on the Java side. Feed it the head
+		/// orientation every frame through SetCameraOrientation.
+		/// </summary>
+		public void EnableSphericalHarmonics(int binsPerEdge = 4, int samplesPerAxis = 32, float decaySeconds = 2f)
+		{
+			sphericalHarmonics = androidInterface.EnableSphericalHarmonics(binsPerEdge, samplesPerAxis, decaySeconds);
+		}
+
+		public void DisableSphericalHarmonics()
+		{
+			androidInterface.DisableSphericalHarmonics();
+			sphericalHarmonics = IntPtr.Zero;
+		}
+
+		public void ResetSphericalHarmonics() => androidInterface.ResetSphericalHarmonics();
+
+		public void SetCameraOrientation(Quaternion rotation) => androidInterface.SetCameraOrientation(rotation);
+
+		public void SetCameraFieldOfView(float horizontalDegrees, float verticalDegrees) => androidInterface.SetCameraFieldOfView(horizontalDegrees, verticalDegrees);
+
+		/// <summary>Copies the latest ambient lighting into probe, returns false if none is available yet.</summary>
+		public unsafe bool TryGetSphericalHarmonics(ref SphericalHarmonicsL2 probe, out float coverage)
+		{
+			coverage = 0;
+			if (sphericalHarmonics == IntPtr.Zero) return false;
+
+			int* words = (int*)sphericalHarmonics;
+			float* values = (float*)sphericalHarmonics;
+			for (int attempt = 0; attempt < 4; attempt++)
+			{
+				int before = Volatile.Read(ref words[0]);
+				if (before == 0 || (before & 1) != 0) continue;
+				Thread.MemoryBarrier();
+				coverage = values[1];
+				for (int channel = 0; channel < 3; channel++)
+					for (int coefficient = 0; coefficient < 9; coefficient++)
+						probe[channel, coefficient] = values[2 + channel * 9 + coefficient];
+				Thread.MemoryBarrier();
+				if (Volatile.Read(ref words[0]) == before) return true;
+			}
+			return false;
+		}
+
+		/// <summary>
+		/// Skips captured frames that barely differ from the last delivered one before they are
+		/// copied, handed to receivers or uploaded here. After maxSkippedFrames skips in a row a
+		/// frame is delivered anyway; 0 disables that refresh.
+		/// </summary>
+		public void EnableChangeDetection(int tilesX = 8, int tilesY = 8, int samplesPerTileAxis = 4, float threshold = 3f, int maxSkippedFrames = 30)
+		{
+			androidInterface.EnableChangeDetection(tilesX, tilesY, samplesPerTileAxis, threshold, maxSkippedFrames);
+		}
+
+		public void DisableChangeDetection() => androidInterface.DisableChangeDetection();
+
+		public long SkippedFrames => androidInterface.GetSkippedFrames();
+		public long SkippedBytes => androidInterface.GetSkippedBytes();
+
+		/// <summary>
+		/// Stitches captured frames into an environment cubemap on the Java side. Feed it the head
+		/// orientation every frame through SetCameraOrientation and call UpdateCubemap to upload.
+		/// </summary>
+		public void EnableCubemapAccumulator(int faceSize = 64, float decayPerFrame = 0.98f, float maxWeight = 8f)
+		{
+			cubemapFaces = androidInterface.EnableCubemapAccumulator(faceSize, decayPerFrame, maxWeight, out cubemapSequence);
+			cubemapFaceSize = faceSize;
+			Array.Clear(cubemapPendingTiles, 0, cubemapPendingTiles.Length);
+			cubemapFaceData = new byte[faceSize * faceSize * 4];
+			cubemapStripData = new byte[faceSize * (faceSize / 8) * 4];
+			if (cubemapStrip != null)
+				Destroy(cubemapStrip);
+			cubemapStrip = null;
+		}
+
+		public void DisableCubemapAccumulator()
+		{
+			androidInterface.DisableCubemapAccumulator();
+			cubemapFaces = null;
+			cubemapSequence = IntPtr.Zero;
+			if (cubemapStrip != null)
+				Destroy(cubemapStrip);
+			cubemapStrip = null;
+		}
+
+		/// <summary>
+		/// Uploads the tiles that changed since the last call into target, a cubemap of the
+		/// accumulator's face size with an RGBA32 layout. Only the rows of tiles holding a change
+		/// are staged, and only the changed runs of tiles are copied into target on the GPU, so
+		/// target's CPU-side pixels are not kept up to date. Without copyTextureSupport whole faces
+		/// are uploaded instead. Tiles that were being written while they were read stay pending
+		/// for the next call. Returns the number of faces uploaded to.
+		/// </summary>
+		public int UpdateCubemap(Cubemap target)
+		{
+			if (cubemapFaces == null) return 0;
+
+			bool copyTiles = (SystemInfo.copyTextureSupport & CopyTextureSupport.Basic) != 0;
+			if (copyTiles && cubemapStrip == null)
+				cubemapStrip = new Texture2D(cubemapFaceSize, cubemapFaceSize / 8, target.graphicsFormat, TextureCreationFlags.None);
+
+			int uploaded = 0;
+			for (int face = 0; face < 6; face++)
+			{
+				cubemapPendingTiles[face] |= androidInterface.TakeCubemapDirtyTiles(face);
+				if (cubemapPendingTiles[face] == 0) continue;
+				bool faceUploaded = copyTiles ? CopyDirtyTiles(target, face) : UploadFace(target, face);
+				if (faceUploaded)
+					uploaded++;
+			}
+			if (uploaded > 0 && !copyTiles)
+				target.Apply(false);
+			return uploaded;
+		}
+
+		// Stages each row of tiles with a change and copies its dirty runs into the face
+		private unsafe bool CopyDirtyTiles(Cubemap target, int face)
+		{
+			int tileSize = cubemapFaceSize / 8;
+			int rowBytes = cubemapFaceSize * 4;
+			int* sequence = (int*)cubemapSequence;
+			bool copied = false;
+			for (int tileY = 0; tileY < 8; tileY++)
+			{
+				int rowTiles = (int)((cubemapPendingTiles[face] >> (tileY * 8)) & 0xFF);
+				if (rowTiles == 0) continue;
+
+				// The Java side bumps the sequence to odd before writing the faces and back to even after
+				int before = Volatile.Read(ref sequence[0]);
+				if ((before & 1) != 0) return copied;
+				Thread.MemoryBarrier();
+				Marshal.Copy(cubemapFaces[face] + tileY * tileSize * rowBytes, cubemapStripData, 0, cubemapStripData.Length);
+				Thread.MemoryBarrier();
+				if (Volatile.Read(ref sequence[0]) != before) return copied;
+
+				cubemapStrip.SetPixelData(cubemapStripData, 0);
+				cubemapStrip.Apply(false);
+				for (int tileX = 0; tileX < 8; tileX++)
+				{
+					if ((rowTiles & (1 << tileX)) == 0) continue;
+					int runStart = tileX;
+					while (tileX + 1 < 8 && (rowTiles & (1 << (tileX + 1))) != 0)
+						tileX++;
+					Graphics.CopyTexture(cubemapStrip, 0, 0, runStart * tileSize, 0, (tileX - runStart + 1) * tileSize, tileSize,
+						target, face, 0, runStart * tileSize, tileY * tileSize);
+				}
+				cubemapPendingTiles[face] &= ~(0xFFL << (tileY * 8));
+				copied = true;
+			}
+			return copied;
+		}
+
+		private unsafe bool UploadFace(Cubemap target, int face)
+		{
+			int* sequence = (int*)cubemapSequence;
+			int before = Volatile.Read(ref sequence[0]);
+			if ((before & 1) != 0) return false;
+			Thread.MemoryBarrier();
+			Marshal.Copy(cubemapFaces[face], cubemapFaceData, 0, cubemapFaceData.Length);
+			Thread.MemoryBarrier();
+			if (Volatile.Read(ref sequence[0]) != before) return false;
+			target.SetPixelData(cubemapFaceData, 0, (CubemapFace)face);
+			cubemapPendingTiles[face] = 0;
+			return true;
+		}
+
+		private void UploadLatestFrame()
+		{
+			if (frameBuffers == null) return;
+
+			long frame = androidInterface.AcquireLatestFrame();
+			if (frame < 0) return;
+
+			int slot = (int)(frame & 0xFF);
+			long sequence = frame >> 8;
+			if (sequence == lastFrameSequence)
+			{
+				// Already uploaded this one from an earlier notification
+				androidInterface.ReleaseFrame(slot);
+				return;
+			}
+
+			try
+			{
+				screenTexture.LoadRawTextureData(frameBuffers[slot], bufferSize);
+			}
+			finally
 			{
-				Graphics.Blit(screenTexture, flipTexture, new Vector2(1, -1), Vector2.zero);
-				Graphics.CopyTexture(flipTexture, screenTexture);
+				androidInterface.ReleaseFrame(slot);
 			}
+			lastFrameSequence = sequence;
+			screenTexture.Apply();
 
 			onNewFrame.Invoke();
 		}
 
+		// Messages sent from Android
+
+#pragma warning disable IDE0051 // Remove unused private members
+		private void OnCaptureStarted()
+		{
+			onStarted.Invoke();
+			frameBuffers = androidInterface.GetFrameBuffers();
+			lastFrameSequence = 0;
+		}
+
+		private void OnPermissionDenied()
+		{
+			onPermissionDenied.Invoke();
+		}
+
+		private void OnNewFrameAvailable()
+		{
+			UploadLatestFrame();
+		}
 		private void OnCaptureStopped()
 		{
 			onStopped.Invoke();
@@ -175,6 +806,18 @@ namespace Anaglyph.DisplayCapture
 			Debug.Log("Encoding complete " + savedMp4);
 		}
 
+		private void OnReplaySaved(string path)
+		{
+			Debug.Log("Replay saved " + path);
+			onReplaySaved.Invoke(path);
+		}
+
+		private void OnReplayFailed(string path)
+		{
+			Debug.LogError("Replay failed " + path);
+			onReplayFailed.Invoke(path);
+		}
+
 #pragma warning restore IDE0051 // Remove unused private members
 	}
 }
\ No newline at end of file
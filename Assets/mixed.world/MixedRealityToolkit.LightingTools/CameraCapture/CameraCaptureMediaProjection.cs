@@ -29,6 +29,9 @@ namespace Microsoft.MixedReality.Toolkit.LightingTools
 
 		/// <summary>DisplayCaptureManager instance for capturing the MediaProjection API screen.</summary>
 		private DisplayCaptureManager displayCaptureManager;
+		/// <summary>Color adjustment applied on the GPU before frames are read back.</summary>
+		private int exposure = 0;
+		private int whitebalance = 6500;
 
 		/// <summary>
 		/// Is the camera completely initialized and ready to begin taking pictures?
@@ -62,6 +65,29 @@ namespace Microsoft.MixedReality.Toolkit.LightingTools
 			}
 		}
 		
+		/// <summary>
+		/// Exposure in stops, applied to the captured frames on the GPU before they are read back.
+		/// </summary>
+		public int   Exposure
+		{
+			set
+			{
+				exposure = value;
+				displayCaptureManager.SetColorPipeline(exposure, whitebalance);
+			}
+		}
+		/// <summary>
+		/// Color temperature (K) of the light to neutralize, applied like Exposure.
+		/// </summary>
+		public int   Whitebalance
+		{
+			set
+			{
+				whitebalance = value;
+				displayCaptureManager.SetColorPipeline(exposure, whitebalance);
+			}
+		}
+		
 		/// <param name="aSourceTexture">Which screen are we rendering?</param>
 		/// <param name="aRenderMask">For controlling which render layers get rendered for this capture.</param>
 		public CameraCaptureMediaProjection(RawImage aSourceTexture, int aRenderMask = ~(1 << 31))
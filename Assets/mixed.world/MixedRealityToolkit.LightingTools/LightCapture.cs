@@ -326,7 +326,7 @@ namespace Microsoft.MixedReality.Toolkit.LightingTools
 		#endregion
 
 		#region Public Methods
-		/// <summary> On UWP platforms, this will let you set the exposure of the active camera. Uncertain of the units, but try values in the range of -10 -> +10 </summary>
+		/// <summary> On UWP platforms, this will let you set the exposure of the active camera. Uncertain of the units, but try values in the range of -10 -> +10. With MediaProjection, the value is in stops and applied on the GPU before readback. </summary>
 		public void SetExposure(int exp)
 		{
 			#if WINDOWS_UWP
@@ -336,8 +336,13 @@ namespace Microsoft.MixedReality.Toolkit.LightingTools
 				cam.Exposure = exp;
 			}
 			#endif
+			CameraCaptureMediaProjection projection = captureCamera as CameraCaptureMediaProjection;
+			if (projection != null)
+			{
+				projection.Exposure = exp;
+			}
 		}
-		/// <summary> On UWP platforms, this will let you set the white balance of the active camera. Units are in (K) Kelvin, try values 1000 -> 10,000 </summary>
+		/// <summary> On UWP platforms, this will let you set the white balance of the active camera. Units are in (K) Kelvin, try values 1000 -> 10,000. With MediaProjection, it is applied on the GPU before readback. </summary>
 		public void SetWhitebalance(int wb)
 		{
 			#if WINDOWS_UWP
@@ -347,6 +352,11 @@ namespace Microsoft.MixedReality.Toolkit.LightingTools
 				cam.Whitebalance = wb;
 			}
 			#endif
+			CameraCaptureMediaProjection projection = captureCamera as CameraCaptureMediaProjection;
+			if (projection != null)
+			{
+				projection.Whitebalance = wb;
+			}
 		}
 
 		/// <summary> Clear the internal representation of light, and start over again from scratch. </summary>
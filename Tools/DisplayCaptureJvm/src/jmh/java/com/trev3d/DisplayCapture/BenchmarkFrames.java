@@ -0,0 +1,81 @@
+package com.trev3d.DisplayCapture;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic frames for the benchmarks. Contents are random but seeded, so runs compare.
+ */
+final class BenchmarkFrames {
+
+    // Row padding the Quest's ImageReader adds at the capture sizes used here
+    static final int ROW_PADDING = 64;
+
+    private BenchmarkFrames() {
+    }
+
+    static ByteBuffer rgba(int width, int height, int rowStride, long seed) {
+        byte[] pixels = new byte[rowStride * height];
+        new Random(seed).nextBytes(pixels);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pixels.length);
+        buffer.put(pixels).flip();
+        return buffer;
+    }
+
+    // An ImageReader image over a plain buffer; closing it only counts
+    static final class FakeImage extends Image {
+        private final Plane[] planes;
+        private final int width;
+        private final int height;
+        long timestamp;
+        int closed;
+
+        FakeImage(ByteBuffer buffer, int width, int height, int rowStride) {
+            this.width = width;
+            this.height = height;
+            planes = new Plane[] { new Plane() {
+                @Override
+                public int getPixelStride() {
+                    return 4;
+                }
+
+                @Override
+                public int getRowStride() {
+                    return rowStride;
+                }
+
+                @Override
+                public ByteBuffer getBuffer() {
+                    return buffer;
+                }
+            } };
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public Plane[] getPlanes() {
+            return planes;
+        }
+
+        @Override
+        public void close() {
+            closed++;
+        }
+    }
+}
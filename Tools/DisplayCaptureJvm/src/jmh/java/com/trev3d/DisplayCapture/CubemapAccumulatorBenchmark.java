@@ -0,0 +1,88 @@
+package com.trev3d.DisplayCapture;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One frame blended into CubemapAccumulator's default 64 texel faces, on one face at a time
+ * and on a fork-join pool with a worker per face.
+ *
+ * The upload counters show what Unity's UpdateCubemap would move per accumulate call at this
+ * rate: the rows of tiles it stages against the whole faces it uploaded before it copied only
+ * dirty runs. Divide them by the accumulate rate for bytes per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CubemapAccumulatorBenchmark {
+
+    @Param({ "512", "1024", "2048" })
+    int size;
+
+    @Param({ "1", "6" })
+    int parallelism;
+
+    private ByteBuffer frame;
+    private CubemapAccumulator cubemap;
+    private final float[] pose = { 0f, 0f, 0f, 1f, 1f, 1f };
+    private float angle;
+
+    @Setup
+    public void setup() {
+        frame = BenchmarkFrames.rgba(size, size, size * 4, 8);
+        cubemap = new CubemapAccumulator(new CameraPose(), 64, 0.98f, 8f, parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cubemap.close();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Upload {
+        public long stagedBytes;
+        public long faceBytes;
+    }
+
+    @Benchmark
+    public long accumulate() {
+        // Turn the head a little every frame, as a wearer looking around would
+        angle += 0.01f;
+        pose[1] = (float) Math.sin(angle * 0.5f);
+        pose[3] = (float) Math.cos(angle * 0.5f);
+        cubemap.accumulate(frame, size, size, pose);
+        return cubemap.getFramesAccumulated();
+    }
+
+    @Benchmark
+    public long accumulateAndUpload(Upload upload) {
+        long frames = accumulate();
+        int faceSize = cubemap.getFaceSize();
+        int tileRowBytes = faceSize * (faceSize / CubemapAccumulator.TILES_PER_EDGE) * 4;
+        for (int face = 0; face < CubeFaces.COUNT; face++) {
+            long tiles = cubemap.takeDirtyTiles(face);
+            if (tiles == 0) continue;
+            upload.faceBytes += faceSize * faceSize * 4;
+            for (int row = 0; row < CubemapAccumulator.TILES_PER_EDGE; row++) {
+                if (((tiles >>> (row * CubemapAccumulator.TILES_PER_EDGE)) & 0xFF) != 0)
+                    upload.stagedBytes += tileRowBytes;
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,100 @@
+package com.trev3d.DisplayCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fan-out of one full-size RGBA frame through FrameDispatcher. Receivers only touch the buffer,
+ * so this measures the dispatch itself plus the CPU downscale and packing the subscriptions ask for.
+ * tieredFanOutGpu is the CPU side of the same session on the GL path, which hands in the scaled
+ * tiers and the luma frame already rendered on the GPU.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({ "512", "1024", "2048" })
+    int size;
+
+    private ByteBuffer frame;
+    private FrameDispatcher fullSize;
+    private FrameDispatcher mixed;
+    private ByteBuffer half;
+    private ByteBuffer quarter;
+    private FrameFormat lumaFormat;
+    private ByteBuffer luma;
+    private long timestamp;
+
+    private static final class TouchingReceiver implements IDisplayCaptureReceiver {
+        private final Blackhole blackhole;
+
+        TouchingReceiver(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onNewImage(ByteBuffer byteBuffer, int width, int height, long timestamp) {
+            blackhole.consume(byteBuffer.get(byteBuffer.limit() - 1));
+        }
+
+        @Override
+        public void onNewFrame(ByteBuffer byteBuffer, FrameFormat format, long timestamp) {
+            blackhole.consume(byteBuffer.get(byteBuffer.limit() - 1));
+        }
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        frame = BenchmarkFrames.rgba(size, size, size * 4, 2);
+
+        // Four receivers sharing the full-size frame, the cheapest fan-out
+        fullSize = new FrameDispatcher(new CaptureMetrics());
+        for (int i = 0; i < 4; i++)
+            fullSize.add(new CaptureSubscription(new TouchingReceiver(blackhole), 0f, CaptureSubscription.TIER_FULL, FrameFormat.RGBA));
+
+        // What an ImageReader session with a preview, lighting and a luma consumer looks like
+        mixed = new FrameDispatcher(new CaptureMetrics());
+        mixed.add(new CaptureSubscription(new TouchingReceiver(blackhole), 0f, CaptureSubscription.TIER_FULL, FrameFormat.RGBA));
+        mixed.add(new CaptureSubscription(new TouchingReceiver(blackhole), 0f, CaptureSubscription.TIER_HALF, FrameFormat.RGBA));
+        mixed.add(new CaptureSubscription(new TouchingReceiver(blackhole), 0f, CaptureSubscription.TIER_QUARTER, FrameFormat.RGBA));
+        mixed.add(new CaptureSubscription(new TouchingReceiver(blackhole), 0f, CaptureSubscription.TIER_FULL, FrameFormat.LUMA));
+
+        half = BenchmarkFrames.rgba(size / 2, size / 2, size * 2, 3);
+        quarter = BenchmarkFrames.rgba(size / 4, size / 4, size, 4);
+        lumaFormat = new FrameFormat(FrameFormat.LUMA, size, size);
+        luma = ByteBuffer.allocateDirect(lumaFormat.getByteCount());
+    }
+
+    @Benchmark
+    public void fullSizeFanOut() {
+        fullSize.dispatch(frame, size, size, timestamp++, null, true);
+    }
+
+    @Benchmark
+    public void tieredFanOut() {
+        mixed.dispatch(frame, size, size, timestamp++, null, true);
+    }
+
+    @Benchmark
+    public void tieredFanOutGpu() {
+        long frameTimestamp = timestamp++;
+        mixed.dispatch(frame, size, size, frameTimestamp, null, false);
+        mixed.dispatchScaled(1, half, size / 2, size / 2, frameTimestamp, null);
+        mixed.dispatchScaled(2, quarter, size / 4, size / 4, frameTimestamp, null);
+        mixed.dispatchPacked(lumaFormat, luma, frameTimestamp, null);
+    }
+}
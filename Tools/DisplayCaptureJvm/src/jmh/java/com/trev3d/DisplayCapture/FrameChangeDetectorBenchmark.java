@@ -0,0 +1,54 @@
+package com.trev3d.DisplayCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameChangeDetector.check with the default 8x8 grid, on a static scene where every frame is
+ * skipped and on alternating frames where every frame gets through and becomes the reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameChangeDetectorBenchmark {
+
+    @Param({ "512", "1024", "2048" })
+    int size;
+
+    private ByteBuffer first;
+    private ByteBuffer second;
+    private FrameChangeDetector staticScene;
+    private FrameChangeDetector changingScene;
+    private boolean flip;
+
+    @Setup
+    public void setup() {
+        first = BenchmarkFrames.rgba(size, size, size * 4, 5);
+        second = BenchmarkFrames.rgba(size, size, size * 4, 6);
+        staticScene = new FrameChangeDetector(8, 8, 4, 2f, 0);
+        changingScene = new FrameChangeDetector(8, 8, 4, 2f, 0);
+    }
+
+    @Benchmark
+    public boolean unchanged() {
+        return staticScene.check(first, size, size, size * 4, 4);
+    }
+
+    @Benchmark
+    public boolean changed() {
+        flip = !flip;
+        return changingScene.check(flip ? first : second, size, size, size * 4, 4);
+    }
+}
@@ -0,0 +1,54 @@
+package com.trev3d.DisplayCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What onImageAvailable does with a padded ImageReader image before any receiver sees it:
+ * lease it through a CaptureFrame from the pool, claim a pool slot, copy the plane without padding and bottom row
+ * first, publish the slot and release the image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageCopyBenchmark {
+
+    @Param({ "512", "1024", "2048" })
+    int size;
+
+    private BenchmarkFrames.FakeImage image;
+    private FramePool pool;
+    private CaptureFrame.Pool frames;
+
+    @Setup
+    public void setup() {
+        int rowStride = size * 4 + BenchmarkFrames.ROW_PADDING;
+        image = new BenchmarkFrames.FakeImage(BenchmarkFrames.rgba(size, size, rowStride, 1), size, size, rowStride);
+        pool = new FramePool(3, size * size * 4);
+        frames = new CaptureFrame.Pool(2);
+    }
+
+    @Benchmark
+    public long copyToPool() {
+        image.timestamp++;
+        CaptureFrame frame = frames.obtain(image);
+        int slot = pool.beginWrite();
+        ByteBuffer target = pool.getBuffer(slot);
+        frame.copyPacked(target, true);
+        long sequence = pool.publish(slot);
+        frame.release();
+        return sequence;
+    }
+}
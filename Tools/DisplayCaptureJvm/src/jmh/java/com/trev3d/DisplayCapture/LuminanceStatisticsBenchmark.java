@@ -0,0 +1,112 @@
+package com.trev3d.DisplayCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One frame through LuminanceStatistics, on a single band and on the fork-join pool the
+ * capture uses by default, against the loop LightCapture.UpdateDirectionalLight runs today: every
+ * pixel to float color and grayscale into a 10-bucket Histogram, then the mean color of the
+ * brightest 20%. The baseline runs on one thread whatever the parallelism.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuminanceStatisticsBenchmark {
+
+    @Param({ "512", "1024", "2048" })
+    int size;
+
+    @Param({ "1", "4" })
+    int parallelism;
+
+    // As LightCapture's Histogram
+    private static final int BUCKETS = 10;
+
+    private ByteBuffer frame;
+    private LuminanceStatistics statistics;
+    private final int[] bucketCounts = new int[BUCKETS];
+    private final float[] bucketRed = new float[BUCKETS];
+    private final float[] bucketGreen = new float[BUCKETS];
+    private final float[] bucketBlue = new float[BUCKETS];
+    private long timestamp;
+
+    @Setup
+    public void setup() {
+        frame = BenchmarkFrames.rgba(size, size, size * 4, 4);
+        statistics = new LuminanceStatistics(8, 8, 0.2f, 1, parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        statistics.close();
+    }
+
+    @Benchmark
+    public float analyze() {
+        statistics.onNewImage(frame, size, size, timestamp++);
+        return statistics.getMeanLuminance();
+    }
+
+    @Benchmark
+    public float naivePerPixel() {
+        // Cubemap.GetPixels hands back a new float color array every time
+        int pixels = size * size;
+        float[] colors = new float[pixels * 3];
+        for (int i = 0; i < pixels; i++) {
+            colors[i * 3] = (frame.get(i * 4) & 0xFF) / 255f;
+            colors[i * 3 + 1] = (frame.get(i * 4 + 1) & 0xFF) / 255f;
+            colors[i * 3 + 2] = (frame.get(i * 4 + 2) & 0xFF) / 255f;
+        }
+
+        // Histogram.Clear and Add with Color.grayscale
+        Arrays.fill(bucketCounts, 0);
+        Arrays.fill(bucketRed, 0f);
+        Arrays.fill(bucketGreen, 0f);
+        Arrays.fill(bucketBlue, 0f);
+        for (int i = 0; i < pixels; i++) {
+            float r = colors[i * 3];
+            float g = colors[i * 3 + 1];
+            float b = colors[i * 3 + 2];
+            float gray = 0.299f * r + 0.587f * g + 0.114f * b;
+            int bucket = (int) (gray * (BUCKETS - 1));
+            bucketCounts[bucket]++;
+            bucketRed[bucket] += r;
+            bucketGreen[bucket] += g;
+            bucketBlue[bucket] += b;
+        }
+
+        // FindPercentage(0.8f), then GetColor(bright, 1)
+        int first = BUCKETS - 1;
+        int covered = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            covered += bucketCounts[i];
+            if (covered / (float) pixels >= 0.8f) {
+                first = i;
+                break;
+            }
+        }
+        float red = 0, green = 0, blue = 0;
+        for (int i = first; i < BUCKETS; i++) {
+            red += bucketRed[i];
+            green += bucketGreen[i];
+            blue += bucketBlue[i];
+        }
+        float length = (float) Math.sqrt(red * red + green * green + blue * blue);
+        return length > 0 ? green / length : 0;
+    }
+}
@@ -0,0 +1,53 @@
+package com.trev3d.DisplayCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One frame into SphericalHarmonicsAccumulator with the capture's default bins and samples. The
+ * cost is set by the sample and bin counts, so it should barely move with the frame size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SphericalHarmonicsBenchmark {
+
+    @Param({ "512", "1024", "2048" })
+    int size;
+
+    private ByteBuffer frame;
+    private SphericalHarmonicsAccumulator harmonics;
+    private CameraPose pose;
+    private long timestamp;
+    private float angle;
+
+    @Setup
+    public void setup() {
+        frame = BenchmarkFrames.rgba(size, size, size * 4, 7);
+        pose = new CameraPose();
+        pose.setOrientation(0f, 0f, 0f, 1f);
+        harmonics = new SphericalHarmonicsAccumulator(pose, 4, 32, 2f);
+    }
+
+    @Benchmark
+    public float accumulate() {
+        // Turn the head a little every frame so samples keep landing in new bins
+        angle += 0.01f;
+        pose.setOrientation(0f, (float) Math.sin(angle * 0.5f), 0f, (float) Math.cos(angle * 0.5f));
+        timestamp += 33333333L;
+        harmonics.onNewImage(frame, size, size, timestamp);
+        return harmonics.getCoverage();
+    }
+}
@@ -0,0 +1,29 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Desktop stand-in for the parts of android.media.Image that CaptureFrame uses. Tests and
+ * benchmarks subclass it to feed plain buffers through the ImageReader path.
+ */
+public abstract class Image implements AutoCloseable {
+
+    public abstract static class Plane {
+        public abstract int getPixelStride();
+
+        public abstract int getRowStride();
+
+        public abstract ByteBuffer getBuffer();
+    }
+
+    public abstract int getWidth();
+
+    public abstract int getHeight();
+
+    public abstract long getTimestamp();
+
+    public abstract Plane[] getPlanes();
+
+    @Override
+    public abstract void close();
+}
@@ -0,0 +1,181 @@
+package com.trev3d.DisplayCapture;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FramePoolTest {
+
+    // Small enough to cycle fast, large enough that a write takes a while to tear through
+    private static final int FRAME_SIZE = 64 * 1024;
+    private static final int SLOTS = 3;
+    private static final int READERS = 4;
+    private static final long FRAMES = 20000;
+    // Frames the readers must have checked before the writer stops
+    private static final long READS = 20000;
+    private static final long TIMEOUT_MS = 30000;
+
+    @Test
+    void acquireBeforePublishReturnsNone() {
+        FramePool pool = new FramePool(SLOTS, FRAME_SIZE);
+        assertEquals(FramePool.NONE, pool.acquireLatest());
+        assertEquals(0, pool.getLatestSequence());
+    }
+
+    @Test
+    void writerNeverGetsPinnedOrLatestSlot() {
+        FramePool pool = new FramePool(SLOTS, FRAME_SIZE);
+        int first = publish(pool, 1);
+        assertEquals(1, FramePool.sequenceOf(pool.acquireLatest()));
+        int second = publish(pool, 2);
+        assertNotEquals(first, second);
+        assertEquals(2, FramePool.sequenceOf(pool.acquireLatest()));
+
+        // The first slot is pinned and the second is the latest, only the third is left
+        int third = publish(pool, 3);
+        assertNotEquals(first, third);
+        assertNotEquals(second, third);
+        assertEquals(3, FramePool.sequenceOf(pool.acquireLatest()));
+
+        // Every slot pinned, the writer has to skip the frame
+        assertEquals(-1, pool.beginWrite());
+        assertEquals(1, pool.getDroppedFrames());
+
+        pool.release(second);
+        assertEquals(second, pool.beginWrite());
+        pool.release(first);
+        pool.release(third);
+        assertThrows(IllegalStateException.class, () -> pool.release(third));
+    }
+
+    /**
+     * One writer publishing as fast as it can against readers that pin the latest frame, hold it
+     * for a moment and check it. Every frame is filled with its own sequence number, so a reader
+     * that sees any other value saw the writer at work in its slot.
+     */
+    @Test
+    void readersNeverSeeASlotBeingWritten() throws InterruptedException {
+        FramePool pool = new FramePool(SLOTS, FRAME_SIZE);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> failure = new AtomicReference<String>();
+        AtomicLong framesRead = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread writer = new Thread(() -> {
+            try {
+                start.await();
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                long sequence = 1;
+                while ((sequence <= FRAMES || framesRead.get() < READS) && failure.get() == null
+                        && System.currentTimeMillis() < deadline) {
+                    int slot = pool.beginWrite();
+                    if (slot < 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    fill(pool.getBuffer(slot), sequence);
+                    long published = pool.publish(slot);
+                    if (published != sequence)
+                        failure.compareAndSet(null, "Published " + published + ", expected " + sequence);
+                    sequence++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, "Writer: " + e);
+            } finally {
+                done.set(true);
+            }
+        }, "writer");
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < READERS; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long lastSequence = 0;
+                try {
+                    while (!done.get() && failure.get() == null) {
+                        long frame = pool.acquireLatest();
+                        if (frame == FramePool.NONE) continue;
+                        int slot = FramePool.slotOf(frame);
+                        long sequence = FramePool.sequenceOf(frame);
+                        ByteBuffer buffer = pool.getBuffer(slot);
+
+                        String problem = check(buffer, sequence);
+                        if (problem == null && sequence < lastSequence)
+                            problem = "Sequence went back from " + lastSequence + " to " + sequence;
+                        // Hold the slot while the writer keeps going, then look again
+                        Thread.yield();
+                        if (problem == null)
+                            problem = check(buffer, sequence);
+                        pool.release(slot);
+
+                        if (problem != null)
+                            failure.compareAndSet(null, problem);
+                        lastSequence = sequence;
+                        framesRead.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. releasing a slot the writer took over
+                    failure.compareAndSet(null, Thread.currentThread().getName() + ": " + e);
+                }
+            }, "reader-" + r);
+            readers.add(reader);
+        }
+
+        writer.start();
+        for (Thread reader : readers)
+            reader.start();
+        start.countDown();
+
+        writer.join(TIMEOUT_MS + TimeUnit.SECONDS.toMillis(10));
+        for (Thread reader : readers)
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+
+        assertNull(failure.get());
+        assertFalse(writer.isAlive(), "Writer did not finish");
+        assertTrue(pool.getLatestSequence() >= FRAMES, "Writer published " + pool.getLatestSequence() + " frames");
+        assertTrue(framesRead.get() >= READS, "Readers checked " + framesRead.get() + " frames");
+    }
+
+    // Writes and publishes a frame, returns its slot
+    private static int publish(FramePool pool, long sequence) {
+        int slot = pool.beginWrite();
+        fill(pool.getBuffer(slot), sequence);
+        assertEquals(sequence, pool.publish(slot));
+        return slot;
+    }
+
+    private static void fill(ByteBuffer buffer, long sequence) {
+        for (int offset = 0; offset < FRAME_SIZE; offset += 8)
+            buffer.putLong(offset, sequence);
+    }
+
+    // Null if every word of the frame holds its sequence number
+    private static String check(ByteBuffer buffer, long sequence) {
+        for (int offset = 0; offset < FRAME_SIZE; offset += 8) {
+            long value = buffer.getLong(offset);
+            if (value != sequence)
+                return "Frame " + sequence + " holds " + value + " at byte " + offset;
+        }
+        return null;
+    }
+}
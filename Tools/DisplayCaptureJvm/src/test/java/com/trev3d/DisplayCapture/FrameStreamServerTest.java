@@ -0,0 +1,241 @@
+package com.trev3d.DisplayCapture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class FrameStreamServerTest {
+
+    private static final long TIMEOUT_MS = 10000;
+    // Large enough that a client that stops reading fills the socket buffers within a few units
+    private static final int LARGE_UNIT = 256 * 1024;
+    private static final int CONFIG_ID = -1;
+
+    @Test
+    void slowReaderLosesUnitsWhileFastReaderGetsThemAll() throws Exception {
+        int units = 64;
+        try (FrameStreamServer server = new FrameStreamServer(0, 4, false, null);
+             SocketChannel slow = connect(server, true);
+             SocketChannel fast = connect(server, false)) {
+            awaitTrue(() -> server.getClientCount() == 2, "Both clients accepted");
+
+            AtomicLong received = new AtomicLong();
+            AtomicInteger badByte = new AtomicInteger(-1);
+            Thread reader = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long offset = 0;
+                try {
+                    while (offset < (long) units * LARGE_UNIT) {
+                        buffer.clear();
+                        int read = fast.read(buffer);
+                        if (read < 0) break;
+                        // Every byte of unit i holds i
+                        for (int i = 0; i < read; i++, offset++) {
+                            if (buffer.get(i) != (byte) (offset / LARGE_UNIT) && badByte.get() < 0)
+                                badByte.set((int) offset);
+                        }
+                        received.set(offset);
+                    }
+                } catch (IOException e) {
+                    // Reported through the byte count
+                }
+            }, "fast-reader");
+            reader.start();
+
+            ByteBuffer unit = ByteBuffer.allocate(LARGE_UNIT);
+            for (int i = 0; i < units; i++) {
+                fill(unit, (byte) i);
+                server.send(unit, true);
+                assertEquals(LARGE_UNIT, unit.remaining(), "send leaves data as it is");
+                // Keep the producer at the fast reader's pace, so only the slow one falls behind
+                long expected = (long) (i + 1) * LARGE_UNIT;
+                awaitTrue(() -> received.get() >= expected, "Fast reader got unit " + i);
+            }
+            reader.join(TIMEOUT_MS);
+
+            assertEquals(-1, badByte.get(), "Fast reader saw a wrong byte");
+            assertTrue(server.getDroppedUnits() > 0, "The slow reader never lost a unit");
+
+            // The slow reader gets whole units, just fewer of them
+            long slowBytes = drain(slow, 500);
+            assertEquals(0, slowBytes % LARGE_UNIT);
+            assertTrue(slowBytes < (long) units * LARGE_UNIT, "Slow reader got " + slowBytes + " bytes");
+            assertEquals(units + slowBytes / LARGE_UNIT, server.getSentUnits());
+        }
+    }
+
+    @Test
+    void droppedClientWaitsForKeyUnitAndGetsConfigAgain() throws Exception {
+        AtomicInteger keyUnitRequests = new AtomicInteger();
+        try (FrameStreamServer server = new FrameStreamServer(0, 2, true, keyUnitRequests::incrementAndGet);
+             SocketChannel client = connect(server, true)) {
+            awaitTrue(() -> server.getClientCount() == 1, "Client accepted");
+            // A new client needs a key unit to start with
+            assertEquals(1, keyUnitRequests.get());
+
+            server.setConfig(unit(CONFIG_ID, 16));
+            // Skipped, the client has not had a key unit yet
+            server.send(unit(1, 16), false);
+            server.send(unit(2, 16), true);
+
+            // Stop reading until the client loses a unit
+            int id = 3;
+            while (server.getDroppedUnits() == 0) {
+                if (id > 1000)
+                    fail("The client never fell behind");
+                server.send(unit(id++, LARGE_UNIT), false);
+            }
+            assertEquals(2, keyUnitRequests.get());
+            int lastLarge = id - 1;
+            // Lost too, the client waits for a key unit
+            server.send(unit(5000, 16), false);
+
+            List<Integer> ids = new ArrayList<Integer>();
+            Thread reader = new Thread(() -> readIds(client, ids), "reader");
+            reader.start();
+            // Whether it fits depends on how far the client has drained, so repeat until one arrives
+            int keyId = 10000;
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!containsAtLeast(ids, 10000) && System.currentTimeMillis() < deadline) {
+                server.send(unit(keyId++, 16), true);
+                Thread.sleep(10);
+            }
+            client.shutdownInput();
+            reader.join(TIMEOUT_MS);
+
+            List<Integer> received;
+            synchronized (ids) {
+                received = new ArrayList<Integer>(ids);
+            }
+            // Config, the first key unit, an unbroken run of the large units, then config and a key unit again
+            assertEquals(CONFIG_ID, (int) received.get(0));
+            assertEquals(2, (int) received.get(1));
+            int index = 2;
+            int expected = 3;
+            while (index < received.size() && received.get(index) != CONFIG_ID) {
+                assertEquals(expected++, (int) received.get(index++), "Large units in order in " + received);
+            }
+            assertTrue(expected - 1 < lastLarge, "Some large units were lost");
+            assertEquals(CONFIG_ID, (int) received.get(index), "Config before the key unit in " + received);
+            assertTrue(received.get(index + 1) >= 10000, "Resumed at a key unit in " + received);
+        }
+    }
+
+    @Test
+    void disconnectIsDetected() throws Exception {
+        try (FrameStreamServer server = new FrameStreamServer(0, 4, false, null)) {
+            SocketChannel client = connect(server, false);
+            awaitTrue(() -> server.getClientCount() == 1, "Client accepted");
+            client.close();
+            awaitTrue(() -> server.getClientCount() == 0, "Disconnect noticed");
+            // Nobody left to send to
+            server.send(unit(1, 16), true);
+            assertEquals(0, server.getSentUnits());
+        }
+    }
+
+    private static SocketChannel connect(FrameStreamServer server, boolean smallReceiveBuffer) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        if (smallReceiveBuffer)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        return channel;
+    }
+
+    // A unit of length bytes that starts with its length and id
+    private static ByteBuffer unit(int id, int length) {
+        ByteBuffer unit = ByteBuffer.allocate(length);
+        unit.putInt(length).putInt(id);
+        unit.rewind();
+        return unit;
+    }
+
+    private static void fill(ByteBuffer buffer, byte value) {
+        buffer.clear();
+        while (buffer.hasRemaining())
+            buffer.put(value);
+        buffer.flip();
+    }
+
+    // Reads the ids of units made by unit until the input ends
+    private static void readIds(SocketChannel channel, List<Integer> ids) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer body = ByteBuffer.allocate(LARGE_UNIT);
+        try {
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header)) return;
+                header.flip();
+                int length = header.getInt();
+                int id = header.getInt();
+                body.clear().limit(length - 8);
+                if (!readFully(channel, body)) return;
+                synchronized (ids) {
+                    ids.add(id);
+                }
+            }
+        } catch (IOException e) {
+            // Input shut down
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean containsAtLeast(List<Integer> ids, int id) {
+        synchronized (ids) {
+            for (int value : ids) {
+                if (value >= id) return true;
+            }
+        }
+        return false;
+    }
+
+    // Everything the client has been sent, read until nothing arrives for quietMs
+    private static long drain(SocketChannel channel, long quietMs) throws IOException {
+        channel.configureBlocking(false);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long total = 0;
+        long lastRead = System.currentTimeMillis();
+        while (System.currentTimeMillis() - lastRead < quietMs) {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) break;
+            if (read > 0) {
+                total += read;
+                lastRead = System.currentTimeMillis();
+            }
+            else {
+                Thread.yield();
+            }
+        }
+        return total;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Timed out: " + what);
+            Thread.sleep(1);
+        }
+    }
+}
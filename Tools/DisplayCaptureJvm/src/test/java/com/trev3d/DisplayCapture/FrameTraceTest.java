@@ -0,0 +1,163 @@
+package com.trev3d.DisplayCapture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameTraceTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 24;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void rawFramesRoundTrip() throws IOException {
+        String path = new File(directory, "raw.dct").getPath();
+        CameraPose pose = new CameraPose();
+        pose.setOrientation(0f, 0.6f, 0f, 0.8f);
+        pose.setFieldOfView(90f, 70f);
+        float[] expectedPose = new float[6];
+        pose.get(expectedPose);
+
+        ByteBuffer first = randomFrame(WIDTH * HEIGHT * 4, 1);
+        ByteBuffer second = randomFrame(WIDTH * HEIGHT * 4, 2);
+        FrameFormat luma = new FrameFormat(FrameFormat.LUMA, WIDTH, HEIGHT);
+        ByteBuffer third = randomFrame(luma.getByteCount(), 3);
+        try (FrameTraceWriter writer = new FrameTraceWriter(path, false, true, pose)) {
+            writer.onNewImage(first.duplicate(), WIDTH, HEIGHT, 1000);
+            writer.onNewImage(second.duplicate(), WIDTH, HEIGHT, 2000);
+            writer.onNewFrame(third.duplicate(), luma, 3000);
+            assertEquals(3, writer.getFramesWritten());
+        }
+
+        try (FrameTraceReader reader = new FrameTraceReader(path)) {
+            assertTrue(reader.isFirstRowTop());
+            assertFrame(reader, first, WIDTH, HEIGHT, FrameFormat.RGBA, 1000);
+            assertArrayEquals(expectedPose, reader.getPose());
+            assertFrame(reader, second, WIDTH, HEIGHT, FrameFormat.RGBA, 2000);
+            assertFrame(reader, third, WIDTH, HEIGHT, FrameFormat.LUMA, 3000);
+            assertFalse(reader.next());
+            assertEquals(3, reader.getFramesRead());
+
+            reader.rewind();
+            assertFrame(reader, first, WIDTH, HEIGHT, FrameFormat.RGBA, 1000);
+        }
+    }
+
+    @Test
+    void deflatedFramesRoundTrip() throws IOException {
+        String path = new File(directory, "deflated.dct").getPath();
+        // A flat frame deflates to almost nothing, a noisy one does not shrink and is stored raw
+        ByteBuffer flat = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        for (int i = 0; i < WIDTH * HEIGHT; i++)
+            flat.putInt(0x204080FF);
+        flat.flip();
+        ByteBuffer noisy = randomFrame(WIDTH * HEIGHT * 4, 4);
+
+        long bytesWritten;
+        try (FrameTraceWriter writer = new FrameTraceWriter(path, true, false, null)) {
+            writer.onNewImage(flat.duplicate(), WIDTH, HEIGHT, 10);
+            writer.onNewImage(noisy.duplicate(), WIDTH, HEIGHT, 20);
+            writer.onNewImage(flat.duplicate(), WIDTH, HEIGHT, 30);
+            bytesWritten = writer.getBytesWritten();
+            assertTrue(bytesWritten < writer.getRawBytesWritten(), "Deflated trace is " + bytesWritten + " bytes");
+        }
+
+        try (FrameTraceReader reader = new FrameTraceReader(path)) {
+            assertFalse(reader.isFirstRowTop());
+            assertFrame(reader, flat, WIDTH, HEIGHT, FrameFormat.RGBA, 10);
+            assertFrame(reader, noisy, WIDTH, HEIGHT, FrameFormat.RGBA, 20);
+            assertFrame(reader, flat, WIDTH, HEIGHT, FrameFormat.RGBA, 30);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void framesCrossWindowBoundaries() throws IOException {
+        String path = new File(directory, "windows.dct").getPath();
+        int frameSize = WIDTH * HEIGHT * 4;
+        // Windows of two and a half frames, so records land on every offset within a window
+        int windowSize = frameSize * 5 / 2;
+        ByteBuffer[] frames = new ByteBuffer[12];
+        try (FrameTraceWriter writer = new FrameTraceWriter(path, false, false, null, windowSize)) {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = randomFrame(frameSize, 10 + i);
+                writer.onNewImage(frames[i].duplicate(), WIDTH, HEIGHT, i);
+            }
+        }
+
+        // A reader window smaller than a frame maps each one on its own
+        for (int readerWindow : new int[] { windowSize, frameSize / 2 }) {
+            try (FrameTraceReader reader = new FrameTraceReader(path, readerWindow)) {
+                for (int i = 0; i < frames.length; i++)
+                    assertFrame(reader, frames[i], WIDTH, HEIGHT, FrameFormat.RGBA, i);
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    @Test
+    void truncatedTraceKeepsTheCompleteFrames() throws IOException {
+        String path = new File(directory, "truncated.dct").getPath();
+        ByteBuffer[] frames = new ByteBuffer[3];
+        long[] ends = new long[frames.length];
+        try (FrameTraceWriter writer = new FrameTraceWriter(path, false, false, null)) {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = randomFrame(WIDTH * HEIGHT * 4, 20 + i);
+                writer.onNewImage(frames[i].duplicate(), WIDTH, HEIGHT, i);
+                ends[i] = writer.getBytesWritten();
+            }
+        }
+
+        // Cut the last frame off halfway through its data, as a crash while recording would
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(ends[1] + FrameTraceWriter.RECORD_HEADER_SIZE + 100);
+        }
+        try (FrameTraceReader reader = new FrameTraceReader(path)) {
+            assertFrame(reader, frames[0], WIDTH, HEIGHT, FrameFormat.RGBA, 0);
+            assertFrame(reader, frames[1], WIDTH, HEIGHT, FrameFormat.RGBA, 1);
+            assertThrows(IOException.class, reader::next);
+        }
+
+        // Without even a whole record header left the trace just ends
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(ends[1] + 8);
+        }
+        try (FrameTraceReader reader = new FrameTraceReader(path)) {
+            assertFrame(reader, frames[0], WIDTH, HEIGHT, FrameFormat.RGBA, 0);
+            assertFrame(reader, frames[1], WIDTH, HEIGHT, FrameFormat.RGBA, 1);
+            assertFalse(reader.next());
+        }
+    }
+
+    private static void assertFrame(FrameTraceReader reader, ByteBuffer expected, int width, int height,
+                                    int pixelFormat, long timestamp) throws IOException {
+        assertTrue(reader.next(), "Trace ended early");
+        assertEquals(timestamp, reader.getTimestamp());
+        assertEquals(width, reader.getWidth());
+        assertEquals(height, reader.getHeight());
+        assertEquals(pixelFormat, reader.getPixelFormat());
+        assertEquals(expected.duplicate().rewind(), reader.getFrame());
+    }
+
+    private static ByteBuffer randomFrame(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        ByteBuffer frame = ByteBuffer.allocateDirect(size);
+        frame.put(bytes).flip();
+        return frame;
+    }
+}
@@ -0,0 +1,135 @@
+package com.trev3d.DisplayCapture;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SphericalHarmonicsAccumulatorTest {
+
+    private static final int COEFFICIENTS = SphericalHarmonicsAccumulator.COEFFICIENTS;
+    private static final float Y00 = 0.282095f;
+    private static final float Y10 = 0.488603f;
+    private static final float Y20 = 0.315392f;
+
+    // With an odd bin count one bin sits straight ahead on each face, and 5 samples per bin
+    // never land on a bin edge
+    private static final int BINS_PER_EDGE = 9;
+    private static final int SAMPLES_PER_AXIS = 45;
+    private static final int FRAME_SIZE = 90;
+
+    // Camera orientations that look straight at each cube face: +z, +x, -x, -z, -y, +y
+    private static final float S = (float) Math.sqrt(0.5);
+    private static final float[][] FACE_VIEWS = {
+        { 0f, 0f, 0f, 1f },
+        { 0f, S, 0f, S },
+        { 0f, -S, 0f, S },
+        { 0f, 1f, 0f, 0f },
+        { S, 0f, 0f, S },
+        { -S, 0f, 0f, S },
+    };
+
+    @Test
+    void constantEnvironmentOnlyHasTheConstantTerm() {
+        CameraPose pose = new CameraPose();
+        pose.setOrientation(0f, 0f, 0f, 1f);
+        SphericalHarmonicsAccumulator harmonics = new SphericalHarmonicsAccumulator(pose, 8, 32, 1f);
+
+        // A single view: the bins it does not reach take the average of the ones it does
+        harmonics.onNewImage(solidFrame(200, 100, 50), FRAME_SIZE, FRAME_SIZE, 1);
+        assertTrue(harmonics.getCoverage() > 0f && harmonics.getCoverage() < 1f);
+
+        float[] coefficients = new float[3 * COEFFICIENTS];
+        harmonics.getCoefficients(coefficients);
+        float[] linear = { srgbToLinear(200), srgbToLinear(100), srgbToLinear(50) };
+        for (int channel = 0; channel < 3; channel++) {
+            // The integral of a constant L against Y00 over the sphere is L * Y00 * 4pi
+            float expected = linear[channel] * Y00 * 4f * (float) Math.PI;
+            assertEquals(expected, coefficients[channel * COEFFICIENTS], expected * 1e-4f, "channel " + channel);
+            for (int k = 1; k < COEFFICIENTS; k++)
+                assertEquals(0f, coefficients[channel * COEFFICIENTS + k], 1e-5f, "channel " + channel + " coefficient " + k);
+        }
+    }
+
+    @Test
+    void singleDirectionProjectsOntoItsBasisValues() {
+        CameraPose pose = new CameraPose();
+        pose.setFieldOfView(90f, 90f);
+        SphericalHarmonicsAccumulator harmonics = new SphericalHarmonicsAccumulator(pose, BINS_PER_EDGE, SAMPLES_PER_AXIS, 1f);
+
+        // White in the bin straight ahead of the first view, black everywhere else
+        int spotStart = FRAME_SIZE * (BINS_PER_EDGE / 2) / BINS_PER_EDGE;
+        int spotEnd = FRAME_SIZE * (BINS_PER_EDGE / 2 + 1) / BINS_PER_EDGE;
+        ByteBuffer spot = solidFrame(0, 0, 0);
+        for (int y = spotStart; y < spotEnd; y++) {
+            for (int x = spotStart; x < spotEnd; x++)
+                spot.putInt((y * FRAME_SIZE + x) * 4, 0xFFFFFFFF);
+        }
+        ByteBuffer black = solidFrame(0, 0, 0);
+
+        long timestamp = 1;
+        for (float[] view : FACE_VIEWS) {
+            pose.setOrientation(view[0], view[1], view[2], view[3]);
+            harmonics.onNewImage(view == FACE_VIEWS[0] ? spot : black, FRAME_SIZE, FRAME_SIZE, timestamp++);
+        }
+        assertEquals(1f, harmonics.getCoverage(), 1e-6f);
+
+        // A bin of radiance 1 around +z adds its solid angle times the basis values at +z
+        float cell = 2f / BINS_PER_EDGE;
+        float start = -1f + (BINS_PER_EDGE / 2) * cell;
+        float solidAngle = CubeFaces.solidAngle(start, start, start + cell, start + cell);
+        float[] expected = new float[COEFFICIENTS];
+        expected[0] = Y00 * solidAngle;
+        expected[2] = Y10 * solidAngle;
+        expected[6] = Y20 * 2f * solidAngle;
+
+        float[] coefficients = new float[3 * COEFFICIENTS];
+        harmonics.getCoefficients(coefficients);
+        for (int channel = 0; channel < 3; channel++) {
+            for (int k = 0; k < COEFFICIENTS; k++)
+                assertEquals(expected[k], coefficients[channel * COEFFICIENTS + k], 1e-6f, "channel " + channel + " coefficient " + k);
+        }
+    }
+
+    @Test
+    void nothingIsAccumulatedBeforeThePoseIsKnown() {
+        SphericalHarmonicsAccumulator harmonics = new SphericalHarmonicsAccumulator(new CameraPose(), 8, 32, 1f);
+        harmonics.onNewImage(solidFrame(255, 255, 255), FRAME_SIZE, FRAME_SIZE, 1);
+        assertEquals(0f, harmonics.getCoverage());
+        assertEquals(0, harmonics.getResultBuffer().getInt(SphericalHarmonicsAccumulator.SEQUENCE * 4));
+    }
+
+    @Test
+    void resultBufferMatchesCoefficients() {
+        CameraPose pose = new CameraPose();
+        pose.setOrientation(0f, 0f, 0f, 1f);
+        SphericalHarmonicsAccumulator harmonics = new SphericalHarmonicsAccumulator(pose, 8, 32, 1f);
+        harmonics.onNewImage(solidFrame(90, 160, 230), FRAME_SIZE, FRAME_SIZE, 1);
+
+        ByteBuffer results = harmonics.getResultBuffer();
+        int sequence = results.getInt(SphericalHarmonicsAccumulator.SEQUENCE * 4);
+        assertEquals(0, sequence % 2, "Sequence is odd only while writing");
+        assertTrue(sequence > 0);
+        assertEquals(harmonics.getCoverage(), results.getFloat(SphericalHarmonicsAccumulator.COVERAGE * 4));
+
+        float[] coefficients = new float[3 * COEFFICIENTS];
+        harmonics.getCoefficients(coefficients);
+        for (int i = 0; i < coefficients.length; i++)
+            assertEquals(coefficients[i], results.getFloat((SphericalHarmonicsAccumulator.SH + i) * 4));
+    }
+
+    private static ByteBuffer solidFrame(int red, int green, int blue) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE * FRAME_SIZE * 4);
+        for (int i = 0; i < FRAME_SIZE * FRAME_SIZE; i++)
+            frame.put((byte) red).put((byte) green).put((byte) blue).put((byte) 255);
+        frame.flip();
+        return frame;
+    }
+
+    private static float srgbToLinear(int value) {
+        double c = value / 255.0;
+        return (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+    }
+}